@@ -0,0 +1,102 @@
+package cross.bench;
+
+import com.google.gson.Gson;
+import cross.server.Execution;
+import cross.server.TradeAnalytics;
+import cross.server.TradeStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/*
+* scalabilita' di TradeAnalytics al variare del parallelismo del pool:
+* importa N esecuzioni sintetiche (con owner e aggressore, piu' mesi di segmenti) in una directory
+* temporanea, poi per ogni parallelismo misura l'analisi dell'intero storico e verifica che il risultato
+* coincida con quello della scansione sequenziale
+*
+* uso: java -cp bin;bench-bin;lib\gson-2.11.0.jar cross.bench.AnalyticsBenchmark [fills] [-threads 1,2,4,...]
+* */
+public class AnalyticsBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int USERS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int fills = 5_000_000;
+        List<Integer> threads = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                for (String t : args[++i].split(",")) threads.add(Integer.parseInt(t));
+            } else {
+                fills = Integer.parseInt(args[i]);
+            }
+        }
+        if (threads.isEmpty()) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int t = 1; t < cores; t *= 2) threads.add(t);
+            threads.add(cores);
+        }
+
+        Path dir = Files.createTempDirectory("cross-analytics");
+        try {
+            writeHistory(dir, fills);
+            Gson gson = new Gson();
+            try (TradeStore store = new TradeStore(dir.toString())) {
+                String reference;
+                try (TradeAnalytics analytics = new TradeAnalytics(store, 1)) {
+                    reference = gson.toJson(analytics.analyzeSequential(Long.MIN_VALUE, Long.MAX_VALUE, 100));
+                }
+                System.out.printf("%8s %12s %14s %10s %10s%n", "threads", "bestMs", "records/s", "speedup", "identical");
+                double baseline = 0;
+                for (int t : threads) {
+                    try (TradeAnalytics analytics = new TradeAnalytics(store, t)) {
+                        long best = Long.MAX_VALUE;
+                        boolean identical = true;
+                        for (int round = 0; round < ROUNDS; round++) {
+                            long start = System.nanoTime();
+                            TradeAnalytics.Result result = analytics.analyze(Long.MIN_VALUE, Long.MAX_VALUE, 100);
+                            best = Math.min(best, System.nanoTime() - start);
+                            identical &= gson.toJson(result).equals(reference);
+                        }
+                        double millis = best / 1_000_000.0;
+                        if (baseline == 0) baseline = millis;
+                        System.out.printf("%8d %12.1f %14.0f %10.2f %10s%n", t, millis,
+                                store.size() / (millis / 1000.0), baseline / millis, identical);
+                    }
+                }
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    //un'esecuzione ogni ~2 secondi, prezzo a passeggiata casuale, tipi d'ordine misti
+    private static void writeHistory(Path dir, int fills) throws IOException {
+        String[] types = {"limit", "market", "stop"};
+        Random random = new Random(42);
+        long timestamp = 1_700_000_000_000L;
+        int price = 50_000;
+        try (TradeStore.Importer importer = TradeStore.importer(dir.toString())) {
+            int[] owners = new int[USERS];
+            for (int u = 0; u < USERS; u++) {
+                owners[u] = importer.owners().intern("user" + u);
+            }
+            for (int i = 0; i < fills; i++) {
+                timestamp += 1 + random.nextInt(4000);
+                price = Math.max(1, price + random.nextInt(21) - 10);
+                int size = 1 + random.nextInt(100);
+                int flags = Execution.flags(random.nextBoolean(), types[random.nextInt(3)], types[random.nextInt(3)]);
+                importer.write(new Execution(timestamp, price, size, 2 * i, 2 * i + 1,
+                        owners[random.nextInt(USERS)], owners[random.nextInt(USERS)], flags));
+            }
+        }
+    }
+}
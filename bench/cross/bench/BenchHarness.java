@@ -0,0 +1,193 @@
+package cross.bench;
+
+import cross.server.LatencyHistogram;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+* harness minimo in stile JMH per i benchmark di cross.bench (nessuna dipendenza esterna):
+* - iterazioni di warmup scartate, poi iterazioni di misura a durata fissa
+* - threads thread che chiamano l'operazione in loop, throughput per iterazione (media e min/max)
+* - latenza campionata: un'invocazione ogni sampleEvery viene cronometrata (LatencyHistogram del server)
+* - allocazione: byte allocati dai thread del benchmark (ThreadMXBean), per operazione e al secondo,
+*   piu' numero e tempo delle GC durante la misura (come il profiler gc di JMH)
+* lo stato condiviso va preparato prima di run() e reso thread-safe dall'operazione stessa
+* */
+public final class BenchHarness {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private BenchHarness() {
+    }
+
+    @FunctionalInterface
+    public interface Operation {
+        //thread: indice del thread (0..threads-1), invocation: contatore delle invocazioni del thread
+        void run(int thread, long invocation) throws Exception;
+    }
+
+    public static class Options {
+        int warmupIterations = 3;
+        int iterations = 5;
+        long iterationMillis = 1000;
+        int threads = 1;
+        int sampleEvery = 16;
+
+        //opzioni comuni da riga di comando: -warmup N -iterations N -millis N -sample N, ritorna gli argomenti restanti
+        public static Options parse(List<String> args) {
+            Options options = new Options();
+            List<String> rest = new ArrayList<>();
+            for (int i = 0; i < args.size(); i++) {
+                switch (args.get(i)) {
+                    case "-warmup": options.warmupIterations = Integer.parseInt(args.get(++i)); break;
+                    case "-iterations": options.iterations = Integer.parseInt(args.get(++i)); break;
+                    case "-millis": options.iterationMillis = Long.parseLong(args.get(++i)); break;
+                    case "-sample": options.sampleEvery = Math.max(1, Integer.parseInt(args.get(++i))); break;
+                    default: rest.add(args.get(i));
+                }
+            }
+            args.clear();
+            args.addAll(rest);
+            return options;
+        }
+
+        public Options withThreads(int threads) {
+            Options copy = new Options();
+            copy.warmupIterations = warmupIterations;
+            copy.iterations = iterations;
+            copy.iterationMillis = iterationMillis;
+            copy.threads = threads;
+            copy.sampleEvery = sampleEvery;
+            return copy;
+        }
+    }
+
+    public static class Result {
+        public final String name;
+        public final int threads;
+        public double opsPerSecond;
+        public double minOpsPerSecond = Double.MAX_VALUE;
+        public double maxOpsPerSecond;
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public double bytesPerOp;
+        public double allocMBPerSecond;
+        public long gcCount;
+        public long gcMillis;
+
+        Result(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+    }
+
+    public static Result run(String name, Options options, Operation operation) throws Exception {
+        for (int i = 0; i < options.warmupIterations; i++) {
+            iteration(options, operation, null);
+        }
+        Result result = new Result(name, options.threads);
+        long totalOps = 0;
+        long totalNanos = 0;
+        long allocated = 0;
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        for (int i = 0; i < options.iterations; i++) {
+            long[] measured = iteration(options, operation, result.latency);
+            double opsPerSecond = measured[0] / (measured[1] / 1e9);
+            result.minOpsPerSecond = Math.min(result.minOpsPerSecond, opsPerSecond);
+            result.maxOpsPerSecond = Math.max(result.maxOpsPerSecond, opsPerSecond);
+            totalOps += measured[0];
+            totalNanos += measured[1];
+            allocated += measured[2];
+        }
+        result.opsPerSecond = totalOps / (totalNanos / 1e9);
+        result.bytesPerOp = totalOps == 0 ? 0 : (double) allocated / totalOps;
+        result.allocMBPerSecond = allocated / (totalNanos / 1e9) / (1 << 20);
+        result.gcCount = gcCount() - gcCount;
+        result.gcMillis = gcMillis() - gcMillis;
+        return result;
+    }
+
+    //ritorna {operazioni, durata in ns, byte allocati}
+    private static long[] iteration(Options options, Operation operation, LatencyHistogram latency) throws Exception {
+        AtomicLong operations = new AtomicLong();
+        AtomicLong allocated = new AtomicLong();
+        Throwable[] failure = new Throwable[1];
+        CyclicBarrier barrier = new CyclicBarrier(options.threads + 1);
+        long[] window = new long[2];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < options.threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(() -> {
+                long count = 0;
+                try {
+                    barrier.await();
+                    long deadline = System.nanoTime() + options.iterationMillis * 1_000_000L;
+                    long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+                    while (true) {
+                        if (latency != null && count % options.sampleEvery == 0) {
+                            long start = System.nanoTime();
+                            operation.run(thread, count);
+                            long end = System.nanoTime();
+                            latency.record(end - start);
+                            if (end >= deadline) break;
+                        } else {
+                            operation.run(thread, count);
+                            //il controllo della scadenza ogni 64 operazioni tiene nanoTime fuori dal loop stretto
+                            if ((count & 63) == 63 && System.nanoTime() >= deadline) break;
+                        }
+                        count++;
+                    }
+                    count++;
+                    allocated.addAndGet(THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore);
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) failure[0] = e;
+                    }
+                } finally {
+                    operations.addAndGet(count);
+                }
+            }, "bench-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        barrier.await();
+        window[0] = System.nanoTime();
+        for (Thread worker : workers) worker.join();
+        window[1] = System.nanoTime();
+        if (failure[0] != null) {
+            throw new IllegalStateException("[BenchHarness] Benchmark operation failed: " + failure[0], failure[0]);
+        }
+        return new long[]{operations.get(), window[1] - window[0], allocated.get()};
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    public static void printHeader(String params) {
+        System.out.printf("%-20s %-24s %7s %12s %12s %10s %10s %10s %10s %10s %8s %6s%n", "benchmark", params, "threads",
+                "ops/s", "+-range", "p50 us", "p99 us", "p999 us", "max us", "B/op", "MB/s", "gc");
+    }
+
+    public static void print(Result result, String params) {
+        System.out.printf("%-20s %-24s %7d %12.0f %12.0f %10.2f %10.2f %10.2f %10.2f %10.0f %8.1f %6d%n", result.name, params,
+                result.threads, result.opsPerSecond, (result.maxOpsPerSecond - result.minOpsPerSecond) / 2,
+                result.latency.percentile(0.50) / 1000.0, result.latency.percentile(0.99) / 1000.0,
+                result.latency.percentile(0.999) / 1000.0, result.latency.max() / 1000.0,
+                result.bytesPerOp, result.allocMBPerSecond, result.gcCount);
+    }
+}
@@ -0,0 +1,114 @@
+package cross.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import cross.server.Trade;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+* costo del codec JSON del protocollo, con gli stessi passaggi di WorkerThread:
+* - parseRequest / encodeResponse: richiesta insertLimitOrder (JsonParser.parseString) e risposta con orderId (toString)
+* - parsePayload / encodePayload: risposta getTrades con payload trade (toJsonTree della lista + toString, e parsing lato client)
+* allocazione per operazione e GC dal BenchHarness
+*
+* uso: java -cp bin;bench-bin;lib\gson-2.11.0.jar cross.bench.CodecBenchmark [parseRequest|encodeResponse|parsePayload|encodePayload ...]
+*      [-payload 10,1000,100000] [-threads 1] [-warmup 3] [-iterations 5] [-millis 1000]
+* */
+public class CodecBenchmark {
+
+    private static final String REQUEST =
+            "{\"operation\":\"insertLimitOrder\",\"type\":\"bid\",\"size\":1500,\"price\":58250000}";
+
+    public static void main(String[] args) throws Exception {
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        BenchHarness.Options options = BenchHarness.Options.parse(rest);
+        List<String> benchmarks = new ArrayList<>();
+        List<Integer> payloads = List.of(10, 1000, 100_000);
+        int threads = 1;
+        for (int i = 0; i < rest.size(); i++) {
+            switch (rest.get(i)) {
+                case "-payload": payloads = parseList(rest.get(++i)); break;
+                case "-threads": threads = Integer.parseInt(rest.get(++i)); break;
+                default: benchmarks.add(rest.get(i));
+            }
+        }
+        if (benchmarks.isEmpty()) benchmarks = List.of("parseRequest", "encodeResponse", "parsePayload", "encodePayload");
+        options = options.withThreads(threads);
+
+        Gson gson = new Gson();
+        BenchHarness.printHeader("payload (trades)");
+        for (String benchmark : benchmarks) {
+            switch (benchmark) {
+                case "parseRequest":
+                    BenchHarness.print(BenchHarness.run(benchmark, options, (thread, n) -> {
+                        JsonObject request = JsonParser.parseString(REQUEST).getAsJsonObject();
+                        if (request.get("size").getAsInt() != 1500) throw new IllegalStateException();
+                    }), REQUEST.length() + " chars");
+                    break;
+                case "encodeResponse":
+                    BenchHarness.print(BenchHarness.run(benchmark, options, (thread, n) -> {
+                        JsonObject response = new JsonObject();
+                        response.addProperty("orderId", (int) n);
+                        if (response.toString().isEmpty()) throw new IllegalStateException();
+                    }), "1 field");
+                    break;
+                case "parsePayload":
+                case "encodePayload":
+                    for (int size : payloads) {
+                        List<Trade> trades = trades(size);
+                        String encoded = encode(gson, trades);
+                        BenchHarness.Result result;
+                        if (benchmark.equals("parsePayload")) {
+                            result = BenchHarness.run(benchmark, options, (thread, n) -> {
+                                JsonObject response = JsonParser.parseString(encoded).getAsJsonObject();
+                                if (response.getAsJsonArray("trades").size() != size) throw new IllegalStateException();
+                            });
+                        } else {
+                            result = BenchHarness.run(benchmark, options, (thread, n) -> {
+                                if (encode(gson, trades).length() != encoded.length()) throw new IllegalStateException();
+                            });
+                        }
+                        BenchHarness.print(result, size + " (" + encoded.length() / 1024 + " KB)");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("[CodecBenchmark] Unknown benchmark: " + benchmark);
+            }
+        }
+    }
+
+    //come la risposta di WorkerThread.handleTrades
+    private static String encode(Gson gson, List<Trade> trades) {
+        JsonObject response = new JsonObject();
+        response.addProperty("response", 100);
+        response.add("trades", gson.toJsonTree(trades));
+        response.addProperty("nextCursor", trades.size());
+        return response.toString();
+    }
+
+    static List<Trade> trades(int count) {
+        Random random = new Random(42);
+        List<Trade> trades = new ArrayList<>(count);
+        long timestamp = 1_700_000_000_000L;
+        int price = 58_000_000;
+        String[] orderTypes = {"limit", "market", "stop"};
+        for (int i = 0; i < count; i++) {
+            timestamp += random.nextInt(2000);
+            price = Math.max(1, price + random.nextInt(2001) - 1000);
+            trades.add(new Trade(i + 1, random.nextBoolean() ? "ask" : "bid", orderTypes[random.nextInt(3)],
+                    1 + random.nextInt(5000), price, timestamp));
+        }
+        return trades;
+    }
+
+    private static List<Integer> parseList(String values) {
+        List<Integer> list = new ArrayList<>();
+        for (String value : values.split(",")) list.add(Integer.parseInt(value.trim()));
+        return list;
+    }
+}
@@ -0,0 +1,158 @@
+package cross.bench;
+
+import cross.server.CrossServer;
+import cross.server.HeapOrderBook;
+import cross.server.OffHeapOrderBook;
+import cross.server.Order;
+import cross.server.OrderBook;
+import cross.utils.Log;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/*
+* throughput e latenza campionata dell'engine, chiamando direttamente insertLimitOrder, insertMarketOrder,
+* insertStopOrder e cancelOrder di CrossServer (senza rete), su un server nuovo in una directory temporanea
+* per ogni combinazione di scenario, profondita' e thread. il book parte con depth ordini per lato su spread livelli
+* (bid sotto MID, ask sopra). ogni operazione lascia la profondita' invariata:
+* - deep / thin: un ask a riposo + un bid aggressivo (limit, oppure market una volta su quattro), un fill.
+*   thin usa un book di THIN_DEPTH ordini per lato
+* - cancel: un ask a riposo + la cancellazione dell'ask inserito dallo stesso thread CANCEL_WINDOW operazioni prima
+* - stops: cascade stop bid con stop price MID+1, cascade+1 ask a riposo, un market bid che fa scattare la cascata
+* un limit bid non ha controllo di prezzo nell'engine (esegue contro il miglior ask): per questo il flusso
+* ricostituisce solo il lato ask
+*
+* uso: java -cp bin;bench-bin;lib\gson-2.11.0.jar cross.bench.MatchingBenchmark [deep|thin|cancel|stops ...]
+*      [-depth 1000,100000] [-spread 10] [-threads 1,2,4] [-cascade 8] [-book heap|offheap]
+*      [-warmup 3] [-iterations 5] [-millis 1000] [-sample 16]
+* */
+public class MatchingBenchmark {
+
+    private static final int MID = 100_000;
+    private static final int THIN_DEPTH = 8;
+    private static final int CANCEL_WINDOW = 64;
+
+    public static void main(String[] args) throws Exception {
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        BenchHarness.Options options = BenchHarness.Options.parse(rest);
+        List<String> scenarios = new ArrayList<>();
+        List<Integer> depths = List.of(100_000);
+        List<Integer> threads = List.of(1, 2, 4);
+        int spread = 10;
+        int cascade = 8;
+        String bookType = "heap";
+        for (int i = 0; i < rest.size(); i++) {
+            switch (rest.get(i)) {
+                case "-depth": depths = parseList(rest.get(++i)); break;
+                case "-threads": threads = parseList(rest.get(++i)); break;
+                case "-spread": spread = Integer.parseInt(rest.get(++i)); break;
+                case "-cascade": cascade = Integer.parseInt(rest.get(++i)); break;
+                case "-book": bookType = rest.get(++i); break;
+                default: scenarios.add(rest.get(i));
+            }
+        }
+        if (scenarios.isEmpty()) scenarios = List.of("deep", "thin", "cancel", "stops");
+        if (spread < 1) throw new IllegalArgumentException("[MatchingBenchmark] spread must be positive");
+
+        //il log dell'engine non deve entrare nella misura
+        Log.configure(Log.OFF, null, "bench", 0, 1, false);
+
+        BenchHarness.printHeader("depth/spread/" + bookType);
+        for (String scenario : scenarios) {
+            for (int depth : scenario.equals("thin") ? List.of(THIN_DEPTH) : depths) {
+                for (int t : threads) {
+                    BenchHarness.Result result = runScenario(scenario, depth, spread, cascade, bookType, options.withThreads(t));
+                    BenchHarness.print(result, depth + "/" + spread);
+                }
+            }
+        }
+        Log.shutdown();
+    }
+
+    private static BenchHarness.Result runScenario(String scenario, int depth, int spread, int cascade, String bookType,
+                                                   BenchHarness.Options options) throws Exception {
+        Path dir = Files.createTempDirectory("cross-matching");
+        OrderBook book = bookType.equals("offheap") ? new OffHeapOrderBook() : new HeapOrderBook();
+        CrossServer server = new CrossServer(0, dir.toString(), book);
+        try {
+            AtomicInteger ids = new AtomicInteger(1);
+            prefill(server, ids, depth, spread);
+            BenchHarness.Operation operation;
+            switch (scenario) {
+                case "deep":
+                case "thin":
+                    operation = (thread, n) -> {
+                        restingAsk(server, ids, thread, spread);
+                        if ((n & 3) == 3) {
+                            server.insertMarketOrder(new Order(ids.getAndIncrement(), "bid", 1, 0, "market", owner(thread)));
+                        } else {
+                            server.insertLimitOrder(new Order(ids.getAndIncrement(), "bid", 1, MID + spread, "limit", owner(thread)));
+                        }
+                    };
+                    break;
+                case "cancel":
+                    int[][] windows = new int[options.threads][CANCEL_WINDOW];
+                    operation = (thread, n) -> {
+                        int[] window = windows[thread];
+                        int slot = (int) (n % CANCEL_WINDOW);
+                        if (window[slot] != 0) server.cancelOrder(window[slot]);
+                        window[slot] = restingAsk(server, ids, thread, spread);
+                    };
+                    break;
+                case "stops":
+                    operation = (thread, n) -> {
+                        for (int i = 0; i < cascade; i++) {
+                            server.insertStopOrder(new Order(ids.getAndIncrement(), "bid", 1, MID + 1, "stop", owner(thread)));
+                        }
+                        for (int i = 0; i <= cascade; i++) {
+                            restingAsk(server, ids, thread, spread);
+                        }
+                        server.insertMarketOrder(new Order(ids.getAndIncrement(), "bid", 1, 0, "market", owner(thread)));
+                    };
+                    break;
+                default:
+                    throw new IllegalArgumentException("[MatchingBenchmark] Unknown scenario: " + scenario);
+            }
+            return BenchHarness.run(scenario, options, operation);
+        } finally {
+            server.stop();
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    //prima i bid (con il lato ask vuoto restano nel book), poi gli ask sopra MID
+    private static void prefill(CrossServer server, AtomicInteger ids, int depth, int spread) {
+        for (int i = 0; i < depth; i++) {
+            server.insertLimitOrder(new Order(ids.getAndIncrement(), "bid", 1, MID - 1 - i % spread, "limit", owner(i)));
+        }
+        for (int i = 0; i < depth; i++) {
+            server.insertLimitOrder(new Order(ids.getAndIncrement(), "ask", 1, MID + 1 + i % spread, "limit", owner(i)));
+        }
+    }
+
+    private static int restingAsk(CrossServer server, AtomicInteger ids, int thread, int spread) {
+        int id = ids.getAndIncrement();
+        int price = MID + 1 + ThreadLocalRandom.current().nextInt(spread);
+        server.insertLimitOrder(new Order(id, "ask", 1, price, "limit", owner(thread)));
+        return id;
+    }
+
+    private static String owner(int index) {
+        return "user" + (index % 64);
+    }
+
+    private static List<Integer> parseList(String values) {
+        List<Integer> list = new ArrayList<>();
+        for (String value : values.split(",")) list.add(Integer.parseInt(value.trim()));
+        return list;
+    }
+}
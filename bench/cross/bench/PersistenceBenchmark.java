@@ -0,0 +1,174 @@
+package cross.bench;
+
+import cross.server.CrossServer;
+import cross.server.Execution;
+import cross.server.Trade;
+import cross.server.TradeStore;
+import cross.utils.JsonPersistence;
+import cross.utils.Log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/*
+* costo di persistenza e storico in funzione della dimensione dello storico (trade):
+* - saveTrades / loadTrades: formato trades.json di JsonPersistence (streaming JsonWriter / TradeJsonLoader)
+* - segmentWrite: scrittura dello storico in segmenti (TradeStore.Importer), segmentOpen: apertura di TradeStore
+* - priceHistory: CrossServer.getPriceHistory di un mese con tutto lo storico (calcolo dai segmenti),
+*   priceHistoryCached: getPriceHistoryResponse, la risposta codificata servita dalla cache
+* gli storici cadono tutti nello stesso mese UTC. oltre qualche milione di trade saveTrades/loadTrades
+* richiedono una heap grande (-Xmx) per la lista di Trade
+*
+* uso: java -cp bin;bench-bin;lib\gson-2.11.0.jar cross.bench.PersistenceBenchmark
+*      [saveTrades|loadTrades|segmentWrite|segmentOpen|priceHistory|priceHistoryCached ...]
+*      [-history 1000,100000,1000000] [-warmup 2] [-iterations 3] [-millis 2000]
+* */
+public class PersistenceBenchmark {
+
+    private static final YearMonth MONTH = YearMonth.of(2024, 1);
+
+    public static void main(String[] args) throws Exception {
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        List<String> defaults = new ArrayList<>(List.of("-warmup", "2", "-iterations", "3", "-millis", "2000"));
+        defaults.addAll(rest);
+        BenchHarness.Options options = BenchHarness.Options.parse(defaults);
+        List<String> benchmarks = new ArrayList<>();
+        List<Integer> sizes = List.of(1000, 100_000, 1_000_000);
+        for (int i = 0; i < defaults.size(); i++) {
+            if (defaults.get(i).equals("-history")) {
+                sizes = new ArrayList<>();
+                for (String value : defaults.get(++i).split(",")) sizes.add(Integer.parseInt(value.trim()));
+            } else {
+                benchmarks.add(defaults.get(i));
+            }
+        }
+        if (benchmarks.isEmpty()) {
+            benchmarks = List.of("saveTrades", "loadTrades", "segmentWrite", "segmentOpen", "priceHistory", "priceHistoryCached");
+        }
+        Log.configure(Log.OFF, null, "bench", 0, 1, false);
+
+        BenchHarness.printHeader("history (trades)");
+        for (int size : sizes) {
+            Path dir = Files.createTempDirectory("cross-persistence");
+            try {
+                for (String benchmark : benchmarks) {
+                    BenchHarness.print(run(benchmark, dir, size, options), Integer.toString(size));
+                }
+            } finally {
+                delete(dir);
+            }
+        }
+        Log.shutdown();
+    }
+
+    private static BenchHarness.Result run(String benchmark, Path dir, int size, BenchHarness.Options options) throws Exception {
+        String json = dir.resolve("trades.json").toString();
+        Path segments = dir.resolve("segments");
+        switch (benchmark) {
+            case "saveTrades": {
+                List<Trade> trades = trades(size);
+                return BenchHarness.run(benchmark, options, (thread, n) -> {
+                    if (JsonPersistence.saveTrades(json, trades) < 0) throw new IOException("saveTrades failed");
+                });
+            }
+            case "loadTrades": {
+                if (!Files.exists(Path.of(json))) JsonPersistence.saveTrades(json, trades(size));
+                return BenchHarness.run(benchmark, options, (thread, n) -> {
+                    if (JsonPersistence.loadTrades(json).size() != size) throw new IllegalStateException("loadTrades count");
+                });
+            }
+            case "segmentWrite": {
+                Path target = dir.resolve("segmentWrite");
+                return BenchHarness.run(benchmark, options, (thread, n) -> {
+                    delete(target);
+                    writeSegments(target, size);
+                });
+            }
+            case "segmentOpen": {
+                ensureSegments(segments, size);
+                return BenchHarness.run(benchmark, options, (thread, n) -> {
+                    try (TradeStore store = new TradeStore(segments.resolve("trades").toString())) {
+                        if (store.size() != size) throw new IllegalStateException("segment count");
+                    }
+                });
+            }
+            case "priceHistory":
+            case "priceHistoryCached": {
+                ensureSegments(segments, size);
+                CrossServer server = new CrossServer(0, segments.toString());
+                String monthYear = String.format("%02d%d", MONTH.getMonthValue(), MONTH.getYear());
+                try {
+                    if (benchmark.equals("priceHistory")) {
+                        return BenchHarness.run(benchmark, options, (thread, n) -> {
+                            if (server.getPriceHistory(monthYear).isEmpty()) throw new IllegalStateException("empty history");
+                        });
+                    }
+                    return BenchHarness.run(benchmark, options, (thread, n) -> {
+                        if (server.getPriceHistoryResponse(monthYear).body.isEmpty()) throw new IllegalStateException("empty history");
+                    });
+                } finally {
+                    server.stop();
+                }
+            }
+            default:
+                throw new IllegalArgumentException("[PersistenceBenchmark] Unknown benchmark: " + benchmark);
+        }
+    }
+
+    //una data directory di CrossServer con il solo storico in trades/
+    private static void ensureSegments(Path dataDir, int size) throws IOException {
+        if (Files.exists(dataDir)) return;
+        Files.createDirectories(dataDir);
+        writeSegments(dataDir.resolve("trades"), size);
+    }
+
+    private static void writeSegments(Path directory, int size) throws IOException {
+        Random random = new Random(42);
+        long start = start();
+        long step = Math.max(1, (MONTH.lengthOfMonth() * 86_400_000L - 1) / Math.max(1, size));
+        int price = 58_000_000;
+        try (TradeStore.Importer importer = TradeStore.importer(directory.toString())) {
+            int[] owners = new int[64];
+            for (int u = 0; u < owners.length; u++) owners[u] = importer.owners().intern("user" + u);
+            for (int i = 0; i < size; i++) {
+                price = Math.max(1, price + random.nextInt(2001) - 1000);
+                importer.write(new Execution(start + i * step, price, 1 + random.nextInt(5000), 2 * i + 1, 2 * i + 2,
+                        owners[random.nextInt(owners.length)], owners[random.nextInt(owners.length)],
+                        Execution.flags(random.nextBoolean(), "limit", "market")));
+            }
+        }
+    }
+
+    private static List<Trade> trades(int size) {
+        List<Trade> trades = CodecBenchmark.trades(size);
+        //timestamp riportati nel mese del benchmark, come uno storico reale
+        long offset = start() - trades.get(0).getTimestamp();
+        List<Trade> shifted = new ArrayList<>(size);
+        for (Trade trade : trades) {
+            shifted.add(new Trade(trade.getOrderId(), trade.getType(), trade.getOrderType(), trade.getSize(),
+                    trade.getPrice(), trade.getTimestamp() + offset));
+        }
+        return shifted;
+    }
+
+    private static long start() {
+        return Instant.from(MONTH.atDay(1).atStartOfDay(ZoneOffset.UTC)).toEpochMilli();
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
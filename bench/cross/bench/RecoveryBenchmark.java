@@ -0,0 +1,103 @@
+package cross.bench;
+
+import cross.server.CommandJournal;
+import cross.server.CrossServer;
+import cross.server.EngineSnapshot;
+import cross.server.Order;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+* tempo di recovery dell'engine in funzione della profondita' del book:
+* per ogni dimensione scrive uno snapshot con N ordini a riposo (piu' un journal di comandi)
+* in una directory temporanea e misura l'avvio di CrossServer su quella directory
+*
+* uso: java -cp bin;bench-bin;lib\gson-2.11.0.jar cross.bench.RecoveryBenchmark [size...] [-journal N]
+* */
+public class RecoveryBenchmark {
+
+    private static final int LEVELS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        int journalCommands = 10_000;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-journal")) {
+                journalCommands = Integer.parseInt(args[++i]);
+            } else {
+                sizes.add(Integer.parseInt(args[i]));
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes = List.of(10_000, 100_000, 1_000_000);
+        }
+
+        System.out.printf("%12s %12s %12s %14s%n", "bookSize", "journal", "recoveryMs", "orders/s");
+        for (int size : sizes) {
+            //un giro a vuoto per il warmup della JVM, poi la misura
+            runOnce(Math.min(size, 10_000), journalCommands);
+            long millis = runOnce(size, journalCommands);
+            System.out.printf("%12d %12d %12d %14.0f%n", size, journalCommands, millis,
+                    size / Math.max(millis / 1000.0, 0.001));
+        }
+    }
+
+    private static long runOnce(int bookSize, int journalCommands) throws IOException {
+        Path dir = Files.createTempDirectory("cross-recovery");
+        try {
+            writeSnapshot(dir, bookSize);
+            writeJournal(dir, bookSize, journalCommands);
+            System.gc();
+            long start = System.nanoTime();
+            new CrossServer(0, dir.toString());
+            return (System.nanoTime() - start) / 1_000_000;
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    //ask sopra 10000, bid sotto, nessun incrocio: il book resta intero
+    private static void writeSnapshot(Path dir, int bookSize) throws IOException {
+        List<List<Order>> asks = new ArrayList<>();
+        List<List<Order>> bids = new ArrayList<>();
+        for (int level = 0; level < LEVELS; level++) {
+            asks.add(new ArrayList<>());
+            bids.add(new ArrayList<>());
+        }
+        for (int id = 1; id <= bookSize; id++) {
+            int level = id % LEVELS;
+            String owner = "user" + (id % 500);
+            if ((id & 1) == 0) {
+                asks.get(level).add(new Order(id, "ask", 10, 10_000 + level, "limit", owner));
+            } else {
+                bids.get(LEVELS - 1 - level).add(new Order(id, "bid", 10, 9_999 - level, "limit", owner));
+            }
+        }
+        byte[] data = EngineSnapshot.encode(1, bookSize + 1, 10_000, 0,
+                asks.stream().flatMap(List::stream).toList(), bids.stream().flatMap(List::stream).toList(), List.of());
+        EngineSnapshot.write(EngineSnapshot.path(dir.toString(), 1), data);
+    }
+
+    //limit fuori mercato e relative cancellazioni, come un flusso tipico tra due snapshot
+    private static void writeJournal(Path dir, int bookSize, int commands) throws IOException {
+        try (CommandJournal journal = CommandJournal.open(CommandJournal.path(dir.toString(), 1))) {
+            int id = bookSize + 1;
+            long millis = System.currentTimeMillis();
+            for (int i = 0; i < commands; i++) {
+                if (i % 2 == 0) {
+                    journal.appendOrder(new Order(id++, "ask", 5, 20_000 + (i % LEVELS), "limit", "user" + (i % 500)), millis);
+                } else {
+                    journal.appendCancel(id - 1, millis);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,2 @@
+javac -cp ".;lib\gson-2.11.0.jar;bin" -d bench-bin bench\cross\bench\*.java
+
@@ -0,0 +1,141 @@
+package cross.client;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/*
+* protocollo del client senza interfaccia: connessione TCP con una richiesta JSON per riga e una risposta per riga,
+* socket UDP per le notifiche dei trade ricevute su un thread dedicato.
+* usata dalla CLI (CrossClient) e dal generatore di carico (LoadGenerator)
+* */
+public class ClientConnection implements Closeable {
+
+    private final Socket tcpSocket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private DatagramSocket udpSocket;
+
+    public ClientConnection(String serverIp, int serverPort) throws IOException {
+        tcpSocket = new Socket(serverIp, serverPort);
+        tcpSocket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(tcpSocket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(new OutputStreamWriter(tcpSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+    }
+
+    /*
+    * apre il socket UDP (porta 0: effimera) e avvia il thread che passa ogni notifica a listener
+    * ritorna la porta locale, da comunicare al server nel login
+    * */
+    public int openNotifications(int udpPort, Consumer<String> listener) throws SocketException {
+        udpSocket = new DatagramSocket(udpPort);
+        DatagramSocket socket = udpSocket;
+        Thread receiver = new Thread(() -> {
+            byte[] buf = new byte[65535]; //dimensione massima per un pacchetto UDP (16 bit), inclusi header e payload
+            while (!socket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(packet);
+                    listener.accept(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    if (socket.isClosed()) break;
+                    System.err.println("[ClientConnection - notifications] error in receiving UDP: " + e.getMessage());
+                }
+            }
+        }, "udp-listener-" + socket.getLocalPort());
+        receiver.setDaemon(true);
+        receiver.start();
+        return socket.getLocalPort();
+    }
+
+    public void send(JsonObject request) {
+        out.println(request.toString());
+        out.flush();
+    }
+
+    //risposta alla richiesta inviata, null se il server ha chiuso la connessione
+    public JsonObject receive() throws IOException {
+        String line = in.readLine();
+        return line == null ? null : JsonParser.parseString(line).getAsJsonObject();
+    }
+
+    public JsonObject call(JsonObject request) throws IOException {
+        send(request);
+        JsonObject response = receive();
+        if (response == null) throw new EOFException("[ClientConnection] connection closed from server");
+        return response;
+    }
+
+    // ---- richieste del protocollo ----
+
+    public static JsonObject register(String username, String password) {
+        JsonObject request = operation("register");
+        request.addProperty("username", username);
+        request.addProperty("password", password);
+        return request;
+    }
+
+    public static JsonObject login(String username, String password, String udpIp, int udpPort) {
+        JsonObject request = operation("login");
+        request.addProperty("username", username);
+        request.addProperty("password", password);
+        request.addProperty("udpIp", udpIp);
+        request.addProperty("udpPort", udpPort);
+        return request;
+    }
+
+    public static JsonObject limitOrder(String type, int size, int price) {
+        JsonObject request = operation("insertLimitOrder");
+        request.addProperty("type", type);
+        request.addProperty("size", size);
+        request.addProperty("price", price);
+        return request;
+    }
+
+    public static JsonObject marketOrder(String type, int size) {
+        JsonObject request = operation("insertMarketOrder");
+        request.addProperty("type", type);
+        request.addProperty("size", size);
+        return request;
+    }
+
+    public static JsonObject stopOrder(String type, int size, int stopPrice) {
+        JsonObject request = operation("insertStopOrder");
+        request.addProperty("type", type);
+        request.addProperty("size", size);
+        request.addProperty("stopPrice", stopPrice);
+        return request;
+    }
+
+    public static JsonObject cancelOrder(int orderId) {
+        JsonObject request = operation("cancelOrder");
+        request.addProperty("orderId", orderId);
+        return request;
+    }
+
+    //monthYear nel formato MMYYYY
+    public static JsonObject priceHistory(String monthYear) {
+        JsonObject request = operation("getPriceHistory");
+        request.addProperty("monthYear", monthYear);
+        return request;
+    }
+
+    public static JsonObject operation(String name) {
+        JsonObject request = new JsonObject();
+        request.addProperty("operation", name);
+        return request;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (udpSocket != null && !udpSocket.isClosed()) udpSocket.close();
+        if (!tcpSocket.isClosed()) tcpSocket.close();
+    }
+}
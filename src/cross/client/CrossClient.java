@@ -12,17 +12,14 @@ import java.util.Map;
 public class CrossClient {
     private final String serverIp;
     private final int serverPort;
-    private Socket tcpSocket;
-    private BufferedReader in;
-    private PrintWriter out;
+    //connessione TCP + UDP con il server (protocollo condiviso con LoadGenerator)
+    private ClientConnection connection;
     
     private final Gson gson;
     
     private final String udpIp; //Ip del client
     private final int udpPort; // porta UDP su cui il client ascolta
-    
-    private DatagramSocket udpSocket;
-    private NotificationListener notificationListener;
+
     //costruttore
     public CrossClient(String serverIp, int serverPort, String udpIp, int udpPort) {
         this.serverIp = serverIp;
@@ -35,19 +32,12 @@ public class CrossClient {
     public void start() {
         try{
             //connessione TCP al server
-            tcpSocket = new Socket(serverIp,serverPort);
-            in = new BufferedReader(new InputStreamReader(tcpSocket.getInputStream()));
-            out = new PrintWriter(tcpSocket.getOutputStream(), true);
+            connection = new ClientConnection(serverIp, serverPort);
             System.out.println("[CrossClient] Connected to TCP server " + serverIp + ":" + serverPort);
             
-            //setup UDP socket
-            udpSocket = new DatagramSocket(udpPort);
+            //setup UDP socket e avvio del listener per le notifiche UDP
+            connection.openNotifications(udpPort, CrossClient::handleNotification);
             System.out.println("[CrossClient] UDP socket opened on port " + udpPort);
-            
-            //avvio notificationListener per le notifiche UDP
-            notificationListener = new NotificationListener(udpSocket);
-            Thread listnerThread = new Thread(notificationListener);
-            listnerThread.start();
             System.out.println("[CrossClient] LISTENER UDP thread started");
             
             //inizializzazione dell'interfaccia CLI
@@ -58,11 +48,8 @@ public class CrossClient {
         } finally{
             //chiusura
             try{
-                if(udpSocket != null && !udpSocket.isClosed()){
-                    udpSocket.close();
-                }
-                if(tcpSocket != null && !tcpSocket.isClosed()){
-                    tcpSocket.close();
+                if(connection != null){
+                    connection.close();
                 }
             } catch (IOException e){
                 e.printStackTrace();
@@ -117,6 +104,18 @@ public class CrossClient {
                     case "history":
                         handleGetPriceHistory(tokens);
                         break;
+                    case "candles":
+                        handleGetCandles(tokens);
+                        break;
+                    case "trades":
+                        handleGetTrades(tokens);
+                        break;
+                    case "analytics":
+                        handleGetAnalytics(tokens);
+                        break;
+                    case "stats":
+                        handleGetStats(tokens);
+                        break;
                     case "exit":
                         System.out.println("Exit from Cross Client.");
                         return;
@@ -143,6 +142,10 @@ public class CrossClient {
         System.out.println("  stop <ask/bid> <size> <stop_price>");
         System.out.println("  cancel <orderId>");
         System.out.println("  history <MMYYYY>");
+        System.out.println("  candles <1m/5m/1h/1d> [count]");
+        System.out.println("  trades <minutes>");
+        System.out.println("  analytics <minutes> [priceBucket]");
+        System.out.println("  stats");
         System.out.println("  exit");
     }
     
@@ -430,6 +433,193 @@ public class CrossClient {
     }
     
     
+    //ultime count candele della risoluzione, fino ad ora
+    public void handleGetCandles(String[] token) {
+        if(token.length != 2 && token.length != 3){
+            System.out.println("Corrected Usage: candles <1m/5m/1h/1d> [count]");
+            return;
+        }
+        long millis;
+        switch (token[1]){
+            case "1m": millis = 60_000L; break;
+            case "5m": millis = 300_000L; break;
+            case "1h": millis = 3_600_000L; break;
+            case "1d": millis = 86_400_000L; break;
+            default:
+                System.out.println("Invalid resolution: should be 1m, 5m, 1h or 1d");
+                return;
+        }
+        int count;
+        try{
+            count = token.length == 3 ? Integer.parseInt(token[2]) : 30;
+        } catch (NumberFormatException e){
+            System.out.println("Invalid count: should be a positive integer");
+            return;
+        }
+        if(count <= 0){
+            System.out.println("Invalid count: should be a positive integer");
+            return;
+        }
+        
+        long to = System.currentTimeMillis() + 1;
+        JsonObject request = new JsonObject();
+        request.addProperty("operation", "getCandles");
+        request.addProperty("resolution", token[1]);
+        request.addProperty("from", to - count * millis);
+        request.addProperty("to", to);
+        
+        sendRequest(request);
+        JsonObject response = receiveResponse();
+        
+        if(response != null){
+            int responseCode = response.has("response") ? response.get("response").getAsInt() : -1;
+            if(responseCode == 100 && response.has("candles")){
+                var candles = response.getAsJsonArray("candles");
+                if(candles.isEmpty()){
+                    System.out.println("[CrossClient - candles] no trades in the requested interval.");
+                }
+                for(JsonElement element : candles){
+                    JsonObject candle = element.getAsJsonObject();
+                    System.out.println("  " + java.time.Instant.ofEpochMilli(candle.get("time").getAsLong())
+                            + " | Open: " + candle.get("open").getAsInt() + " | Close: " + candle.get("close").getAsInt()
+                            + " | High: " + candle.get("high").getAsInt() + " | Low: " + candle.get("low").getAsInt()
+                            + " | Volume: " + candle.get("volume").getAsLong() + " | VWAP: " + candle.get("vwap").getAsLong());
+                }
+            } else {
+                handleResponse(response);
+            }
+        }
+    }
+    
+    //trade degli ultimi minutes minuti, tutte le pagine
+    public void handleGetTrades(String[] token) {
+        if(token.length != 2){
+            System.out.println("Corrected Usage: trades <minutes>");
+            return;
+        }
+        int minutes;
+        try{
+            minutes = Integer.parseInt(token[1]);
+        } catch (NumberFormatException e){
+            minutes = -1;
+        }
+        if(minutes <= 0){
+            System.out.println("Invalid minutes: should be a positive integer");
+            return;
+        }
+        
+        long to = System.currentTimeMillis() + 1;
+        long cursor = -1;
+        int count = 0;
+        do {
+            JsonObject request = new JsonObject();
+            request.addProperty("operation", "getTrades");
+            request.addProperty("from", to - minutes * 60_000L);
+            request.addProperty("to", to);
+            if(cursor >= 0) request.addProperty("cursor", cursor);
+            
+            sendRequest(request);
+            JsonObject response = receiveResponse();
+            if(response == null) return;
+            int responseCode = response.has("response") ? response.get("response").getAsInt() : -1;
+            if(responseCode != 100 || !response.has("trades")){
+                handleResponse(response);
+                return;
+            }
+            for(JsonElement element : response.getAsJsonArray("trades")){
+                JsonObject trade = element.getAsJsonObject();
+                System.out.println("  " + java.time.Instant.ofEpochMilli(trade.get("timestamp").getAsLong())
+                        + " | order Id: " + trade.get("orderId").getAsInt() + " | " + trade.get("type").getAsString()
+                        + " " + trade.get("orderType").getAsString() + " | size " + trade.get("size").getAsInt()
+                        + " | price " + trade.get("price").getAsInt());
+                count++;
+            }
+            cursor = response.has("nextCursor") ? response.get("nextCursor").getAsLong() : -1;
+        } while(cursor >= 0);
+        System.out.println("[CrossClient - trades] " + count + " trades in the last " + minutes + " minutes.");
+    }
+    
+    //aggregazioni sui trade degli ultimi minutes minuti
+    public void handleGetAnalytics(String[] token) {
+        if(token.length != 2 && token.length != 3){
+            System.out.println("Corrected Usage: analytics <minutes> [priceBucket]");
+            return;
+        }
+        int minutes;
+        int priceBucket;
+        try{
+            minutes = Integer.parseInt(token[1]);
+            priceBucket = token.length == 3 ? Integer.parseInt(token[2]) : 100;
+        } catch (NumberFormatException e){
+            minutes = -1;
+            priceBucket = -1;
+        }
+        if(minutes <= 0 || priceBucket <= 0){
+            System.out.println("Invalid arguments: minutes and priceBucket should be positive integers");
+            return;
+        }
+        
+        long to = System.currentTimeMillis() + 1;
+        JsonObject request = new JsonObject();
+        request.addProperty("operation", "getAnalytics");
+        request.addProperty("from", to - minutes * 60_000L);
+        request.addProperty("to", to);
+        request.addProperty("priceBucket", priceBucket);
+        
+        sendRequest(request);
+        JsonObject response = receiveResponse();
+        if(response == null) return;
+        int responseCode = response.has("response") ? response.get("response").getAsInt() : -1;
+        if(responseCode != 100 || !response.has("analytics")){
+            handleResponse(response);
+            return;
+        }
+        JsonObject analytics = response.getAsJsonObject("analytics");
+        System.out.println("  Fills: " + analytics.get("fills").getAsLong() + " | Volume: " + analytics.get("volume").getAsLong()
+                + " | VWAP: " + analytics.get("vwap").getAsLong() + " | High: " + analytics.get("high").getAsInt()
+                + " | Low: " + analytics.get("low").getAsInt());
+        for(Map.Entry<String, JsonElement> side : analytics.getAsJsonObject("volumeBySide").entrySet()){
+            System.out.println("  " + side.getKey() + " volume by order type: " + side.getValue());
+        }
+        System.out.println("  volume by aggressor: " + analytics.get("volumeByAggressor"));
+        for(Map.Entry<String, JsonElement> user : analytics.getAsJsonObject("turnoverByUser").entrySet()){
+            System.out.println("  user " + user.getKey() + " | turnover " + user.getValue().getAsLong());
+        }
+        for(Map.Entry<String, JsonElement> bucket : analytics.getAsJsonObject("priceDistribution").entrySet()){
+            System.out.println("  price " + bucket.getKey() + "+ | volume " + bucket.getValue().getAsLong());
+        }
+    }
+    
+    //metriche del server: latenze per operazione (microsecondi), timer interni e gauge
+    public void handleGetStats(String[] token) {
+        if(token.length != 1){
+            System.out.println("Corrected Usage: stats");
+            return;
+        }
+        JsonObject request = new JsonObject();
+        request.addProperty("operation", "getStats");
+        
+        sendRequest(request);
+        JsonObject response = receiveResponse();
+        if(response == null) return;
+        int responseCode = response.has("response") ? response.get("response").getAsInt() : -1;
+        if(responseCode != 100 || !response.has("stats")){
+            handleResponse(response);
+            return;
+        }
+        JsonObject stats = response.getAsJsonObject("stats");
+        System.out.println("  Uptime: " + stats.get("uptimeMillis").getAsLong() / 1000 + " s");
+        for(Map.Entry<String, JsonElement> operation : stats.getAsJsonObject("operations").entrySet()){
+            System.out.println("  " + operation.getKey() + " " + operation.getValue());
+        }
+        for(Map.Entry<String, JsonElement> timer : stats.getAsJsonObject("timers").entrySet()){
+            System.out.println("  [" + timer.getKey() + "] " + timer.getValue());
+        }
+        for(Map.Entry<String, JsonElement> gauge : stats.getAsJsonObject("gauges").entrySet()){
+            System.out.println("  " + gauge.getKey() + ": " + gauge.getValue().getAsLong());
+        }
+    }
+    
     //handling server response
     private void handleResponse (JsonObject response) {
         if(!response.has("response") || !response.has("errorMessage")){
@@ -446,19 +636,18 @@ public class CrossClient {
     }
     //invio richiesta JSON al server
     private void sendRequest(JsonObject request){
-        out.println(request.toString());
-        out.flush();
+        connection.send(request);
     }
     
     //ricezione risposta JSON dal server
     private JsonObject receiveResponse(){
         try{
-            String line = in.readLine();
-            if(line == null){
+            JsonObject response = connection.receive();
+            if(response == null){
                 System.out.println("[CrossClient] connection closed from server");
                 System.exit(0);
             }
-            return JsonParser.parseString(line).getAsJsonObject();
+            return response;
         } catch (IOException e) {
             System.err.println("[CrossClient] response receiving error: " + e.getMessage());
             e.printStackTrace();
@@ -467,53 +656,32 @@ public class CrossClient {
     }
     
     //---- handling notification ----
-        private record NotificationListener(DatagramSocket socket) implements Runnable {
-        @Override
-            public void run() {
-                byte[] buf = new byte[65535]; //dimensione massima per un pacchetto UDP (16 bit), inclusi header e payload
-                while (!socket.isClosed()) {
-                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                    try {
-                        socket.receive(packet);
-                        String msg = new String(packet.getData(), 0, packet.getLength());
-                        handleNotification(msg);
-                    } catch (IOException e) {
-                        if (socket.isClosed()) {
-                            break;
-                        }
-                        System.err.println("[CrossClient - NotificationListener] error in receiving UDP: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
+    //gestione notifica ricevuta via UDP
+    private static void handleNotification(String msg) {
+        //le notifiche dal server sono JSON con un array di "TRADES"
+        // ogni trade ha: orderId, type, orderType, size, price, timestamp
+        try {
+            JsonObject json = JsonParser.parseString(msg).getAsJsonObject();
+            if (!json.has("trades")) {
+                System.err.println("[CrossClient - handleNotification] error in JSON: doesnt' exists 'trades'");
+                return;
             }
-        
-        //gestione notifica ricevuta via UDP
-            private void handleNotification(String msg) {
-                //le notifiche dal server sono JSON con un array di "TRADES"
-                // ogni trade ha: orderId, type, orderType, size, price, timestamp
-                try {
-                    JsonObject json = JsonParser.parseString(msg).getAsJsonObject();
-                    if (!json.has("trades")) {
-                        System.err.println("[CrossClient - handleNotification] error in JSON: doesnt' exists 'trades'");
-                        return;
-                    }
-                    var trades = json.getAsJsonArray("trades");
-                    for (var tradeElement : trades) {
-                        JsonObject trade = tradeElement.getAsJsonObject();
-                        int orderId = trade.get("orderId").getAsInt();
-                        String type = trade.get("type").getAsString();
-                        String orderType = trade.get("orderType").getAsString();
-                        int size = trade.get("size").getAsInt();
-                        int price = trade.get("price").getAsInt();
-                        long timestamp = trade.get("timestamp").getAsLong();
-                        
-                        System.out.println("\n[TRADE NOTIFICATION] order Id: " + orderId + " | Tipo " + type + " | Order Type " + orderType + " | size " + size + " | Price " + price + " | Timestamp " + timestamp);
-                        System.out.print("> ");
-                    }
-                } catch (Exception e) {
-                    System.out.println("[CrossClient - handleNotification] error in notification handling: " + e.getMessage());
-                    e.printStackTrace();
-                }
+            var trades = json.getAsJsonArray("trades");
+            for (var tradeElement : trades) {
+                JsonObject trade = tradeElement.getAsJsonObject();
+                int orderId = trade.get("orderId").getAsInt();
+                String type = trade.get("type").getAsString();
+                String orderType = trade.get("orderType").getAsString();
+                int size = trade.get("size").getAsInt();
+                int price = trade.get("price").getAsInt();
+                long timestamp = trade.get("timestamp").getAsLong();
+                
+                System.out.println("\n[TRADE NOTIFICATION] order Id: " + orderId + " | Tipo " + type + " | Order Type " + orderType + " | size " + size + " | Price " + price + " | Timestamp " + timestamp);
+                System.out.print("> ");
             }
+        } catch (Exception e) {
+            System.out.println("[CrossClient - handleNotification] error in notification handling: " + e.getMessage());
+            e.printStackTrace();
         }
+    }
 }
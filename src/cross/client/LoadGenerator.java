@@ -0,0 +1,263 @@
+package cross.client;
+
+import com.google.gson.JsonObject;
+import cross.server.LatencyHistogram;
+
+import java.io.IOException;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+* generatore di carico senza interfaccia, sullo stesso protocollo del client (ClientConnection):
+* - sessions sessioni concorrenti, ognuna con un utente sintetico (register + login) e il proprio socket UDP
+* - mix configurabile di limit/market/stop/cancel/history (pesi relativi)
+* - closed loop (rate 0): ogni sessione invia la richiesta successiva appena riceve la risposta
+* - open loop (rate > 0, richieste/s totali): le richieste seguono un calendario fisso; la latenza e' misurata
+*   dall'istante previsto dal calendario, non dall'invio, quindi i ritardi accumulati dal server non spariscono
+*   dalle misure (correzione della coordinated omission). il tempo di servizio (dall'invio) e' riportato a parte
+* - notifiche UDP ricevute: pacchetti e trade al secondo
+* le misure iniziano dopo warmup secondi
+*
+* uso: java -cp Client.jar cross.client.LoadGenerator [-host 127.0.0.1] [-port 12345] [-sessions 16]
+*      [-duration 30] [-warmup 5] [-rate 0] [-mix limit=40,market=10,stop=10,cancel=30,history=10]
+*      [-user load] [-price 58000000] [-spread 100]
+* */
+public class LoadGenerator {
+
+    private static final String[] OPERATIONS = {"limit", "market", "stop", "cancel", "history"};
+    private static final String PASSWORD = "load#test1";
+    private static final int CANCEL_WINDOW = 32;
+
+    private String host = "127.0.0.1";
+    private int port = 12345;
+    private int sessions = 16;
+    private long durationSeconds = 30;
+    private long warmupSeconds = 5;
+    private double rate = 0;
+    private final int[] weights = {40, 10, 10, 30, 10};
+    private String userPrefix = "load";
+    private int price = 58_000_000;
+    private int spread = 100;
+
+    //misure dopo il warmup: latenza corretta per operazione, tempo di servizio complessivo
+    private final LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length];
+    private final AtomicLong[] errors = new AtomicLong[OPERATIONS.length];
+    private final LatencyHistogram allLatency = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong notifiedTrades = new AtomicLong();
+    private final AtomicLong failedSessions = new AtomicLong();
+
+    private long measureStart;
+    private long end;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println("[LoadGenerator] Invalid arguments - " + e.getMessage());
+            return;
+        }
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "-host": host = value; break;
+                case "-port": port = Integer.parseInt(value); break;
+                case "-sessions": sessions = Integer.parseInt(value); break;
+                case "-duration": durationSeconds = Long.parseLong(value); break;
+                case "-warmup": warmupSeconds = Long.parseLong(value); break;
+                case "-rate": rate = Double.parseDouble(value); break;
+                case "-user": userPrefix = value; break;
+                case "-price": price = Integer.parseInt(value); break;
+                case "-spread": spread = Integer.parseInt(value); break;
+                case "-mix":
+                    Arrays.fill(weights, 0);
+                    for (String entry : value.split(",")) {
+                        String[] pair = entry.split("=");
+                        int index = Arrays.asList(OPERATIONS).indexOf(pair[0].trim());
+                        if (index < 0) throw new IllegalArgumentException("unknown operation in mix: " + pair[0]);
+                        weights[index] = Integer.parseInt(pair[1].trim());
+                    }
+                    break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+            i++;
+        }
+        if (sessions <= 0 || durationSeconds <= 0 || warmupSeconds < 0 || rate < 0 || spread <= 0
+                || Arrays.stream(weights).sum() <= 0) {
+            throw new IllegalArgumentException("sessions, duration, spread and mix must be positive, rate and warmup not negative");
+        }
+    }
+
+    private void run() throws InterruptedException {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latency[i] = new LatencyHistogram();
+            errors[i] = new AtomicLong();
+        }
+        //tutte le sessioni fanno login prima dell'inizio del carico
+        CountDownLatch ready = new CountDownLatch(sessions);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < sessions; s++) {
+            final int session = s;
+            Thread thread = new Thread(() -> session(session, ready, go), "load-session-" + s);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        if (failedSessions.get() == sessions) {
+            System.err.println("[LoadGenerator] No session could log in, is the server running on " + host + ":" + port + "?");
+            go.countDown();
+            return;
+        }
+        long start = System.nanoTime();
+        measureStart = start + warmupSeconds * 1_000_000_000L;
+        end = measureStart + durationSeconds * 1_000_000_000L;
+        long notificationsAtStart = 0;
+        long tradesAtStart = 0;
+        go.countDown();
+        System.out.printf("[LoadGenerator] %d sessions, %s, warmup %d s, measuring %d s%n", sessions - failedSessions.get(),
+                rate > 0 ? "open loop at " + rate + " req/s" : "closed loop", warmupSeconds, durationSeconds);
+        if (warmupSeconds > 0) {
+            LockSupport.parkNanos(measureStart - System.nanoTime());
+        }
+        notificationsAtStart = notifications.get();
+        tradesAtStart = notifiedTrades.get();
+        for (Thread thread : threads) thread.join();
+        report(notifications.get() - notificationsAtStart, notifiedTrades.get() - tradesAtStart);
+    }
+
+    private void session(int session, CountDownLatch ready, CountDownLatch go) {
+        String user = userPrefix + session;
+        Random random = new Random(session);
+        int[] ownOrders = new int[CANCEL_WINDOW];
+        int ownCount = 0;
+        boolean loggedIn = false;
+        try (ClientConnection connection = new ClientConnection(host, port)) {
+            int udpPort = connection.openNotifications(0, message -> {
+                notifications.incrementAndGet();
+                int trades = 0;
+                for (int i = message.indexOf("orderId"); i >= 0; i = message.indexOf("orderId", i + 7)) trades++;
+                notifiedTrades.addAndGet(trades);
+            });
+            //l'utente puo' esistere gia' da un'esecuzione precedente (102: username non disponibile)
+            JsonObject register = connection.call(ClientConnection.register(user, PASSWORD));
+            int registered = register.get("response").getAsInt();
+            if (registered != 100 && registered != 102) {
+                throw new IOException("register failed for " + user + ": " + register);
+            }
+            JsonObject login = connection.call(ClientConnection.login(user, PASSWORD, "127.0.0.1", udpPort));
+            if (login.get("response").getAsInt() != 100) {
+                throw new IOException("login failed for " + user + ": " + login);
+            }
+            loggedIn = true;
+            ready.countDown();
+            go.await();
+
+            //calendario dell'open loop: una richiesta ogni interval ns per sessione, sfasata tra le sessioni
+            long interval = rate > 0 ? (long) (sessions * 1e9 / rate) : 0;
+            long intended = System.nanoTime() + (interval > 0 ? interval * session / sessions : 0);
+            String month = YearMonth.now(ZoneOffset.UTC).format(java.time.format.DateTimeFormatter.ofPattern("MMyyyy"));
+            int total = Arrays.stream(weights).sum();
+            while (true) {
+                if (interval > 0) {
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                }
+                long sent = System.nanoTime();
+                if (interval == 0) intended = sent;
+                if (intended >= end) break;
+
+                int operation = pick(random.nextInt(total));
+                JsonObject request;
+                switch (operation) {
+                    case 0: {
+                        boolean ask = random.nextBoolean();
+                        int offset = 1 + random.nextInt(spread);
+                        request = ClientConnection.limitOrder(ask ? "ask" : "bid", 1 + random.nextInt(10), ask ? price + offset : price - offset);
+                        break;
+                    }
+                    case 1:
+                        request = ClientConnection.marketOrder(random.nextBoolean() ? "ask" : "bid", 1 + random.nextInt(5));
+                        break;
+                    case 2: {
+                        boolean ask = random.nextBoolean();
+                        request = ClientConnection.stopOrder(ask ? "ask" : "bid", 1 + random.nextInt(5),
+                                ask ? price - spread - random.nextInt(spread) : price + spread + random.nextInt(spread));
+                        break;
+                    }
+                    case 3:
+                        request = ClientConnection.cancelOrder(ownCount > 0 ? ownOrders[random.nextInt(Math.min(ownCount, CANCEL_WINDOW))] : 0);
+                        break;
+                    default:
+                        request = ClientConnection.priceHistory(month);
+                }
+                JsonObject response = connection.call(request);
+                long done = System.nanoTime();
+
+                if (response.has("orderId") && response.get("orderId").getAsInt() > 0) {
+                    ownOrders[ownCount++ % CANCEL_WINDOW] = response.get("orderId").getAsInt();
+                }
+                if (intended >= measureStart) {
+                    latency[operation].record(done - intended);
+                    allLatency.record(done - intended);
+                    serviceTime.record(done - sent);
+                    if ((response.has("response") && response.get("response").getAsInt() != 100)
+                            || (response.has("orderId") && response.get("orderId").getAsInt() == -1)) {
+                        errors[operation].incrementAndGet();
+                    }
+                }
+                if (interval > 0) intended += interval;
+            }
+            connection.call(ClientConnection.operation("logout"));
+        } catch (IOException | RuntimeException e) {
+            failedSessions.incrementAndGet();
+            System.err.println("[LoadGenerator] Session " + user + " failed - " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!loggedIn) ready.countDown();
+        }
+    }
+
+    private int pick(int ticket) {
+        for (int i = 0; i < weights.length; i++) {
+            if (ticket < weights[i]) return i;
+            ticket -= weights[i];
+        }
+        return weights.length - 1;
+    }
+
+    private void report(long notificationPackets, long trades) {
+        double seconds = durationSeconds;
+        System.out.printf("%-10s %10s %8s %10s %10s %10s %10s %10s %10s  (ms)%n",
+                "operation", "count", "errors", "req/s", "p50", "p90", "p99", "p999", "max");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (latency[i].count() > 0) row(OPERATIONS[i], latency[i], errors[i].get(), seconds);
+        }
+        long totalErrors = Arrays.stream(errors).mapToLong(AtomicLong::get).sum();
+        row("all", allLatency, totalErrors, seconds);
+        row("service", serviceTime, -1, seconds);
+        System.out.printf("notifications: %.1f packets/s, %.1f trades/s | failed sessions: %d%n",
+                notificationPackets / seconds, trades / seconds, failedSessions.get());
+        if (rate > 0 && allLatency.count() < rate * seconds * 0.95) {
+            System.out.printf("[LoadGenerator] target rate not sustained: %.0f of %.0f req/s%n", allLatency.count() / seconds, rate);
+        }
+    }
+
+    private static void row(String name, LatencyHistogram histogram, long errors, double seconds) {
+        System.out.printf("%-10s %10d %8s %10.0f %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, histogram.count(),
+                errors < 0 ? "-" : Long.toString(errors), histogram.count() / seconds,
+                histogram.percentile(0.50) / 1e6, histogram.percentile(0.90) / 1e6, histogram.percentile(0.99) / 1e6,
+                histogram.percentile(0.999) / 1e6, histogram.max() / 1e6);
+    }
+}
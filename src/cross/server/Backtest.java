@@ -0,0 +1,249 @@
+package cross.server;
+
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import cross.utils.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/*
+* backtest di un file di ordini storici sul MatchingEngine, in memoria e su un solo thread:
+* stesse regole di matching del server, senza rete, utenti, persistenza ne' notifiche.
+* il file viene letto in streaming, l'orologio dell'engine segue il timestamp di ogni ordine.
+* formati:
+* - csv: timestamp,operation,type,size,price,owner,orderId (intestazione e righe # ignorate, campi vuoti ammessi)
+* - json: array di oggetti o un oggetto per riga, campi come le richieste del client
+*   (operation, type, size, price/stopPrice, orderId) piu' timestamp e owner opzionali
+* operation: limit, market, stop, cancel (oppure insertLimitOrder, insertMarketOrder, insertStopOrder, cancelOrder).
+* senza orderId gli ordini ricevono id crescenti, come nel server; cancel richiede l'orderId
+*
+* uso: java -cp Server.jar cross.server.Backtest <orders.csv|orders.json> [-book heap|offheap] [-trades executions.csv]
+* */
+public class Backtest implements MatchingEngine.Listener {
+
+    private static final String DEFAULT_OWNER = "backtest";
+
+    private final MatchingEngine engine;
+    private final Writer tradesOut;
+    private long timestamp;
+    private int nextOrderId = 1;
+    //tempo passato nell'engine, escluso il parsing del file
+    private long engineNanos;
+
+    private long commands;
+    private long rejected;
+    private long executions;
+    private long volume;
+    private long rested;
+    private long cancelled;
+    private long failedCancels;
+    private long discarded;
+
+    public Backtest(MatchingEngine engine, Writer tradesOut) {
+        this.engine = engine;
+        this.tradesOut = tradesOut;
+        engine.setClock(() -> timestamp);
+        engine.setListener(this);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: Backtest <orders.csv|orders.json> [-book heap|offheap] [-trades executions.csv]");
+            return;
+        }
+        String input = args[0];
+        String bookType = "heap";
+        String trades = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-book": bookType = args[++i]; break;
+                case "-trades": trades = args[++i]; break;
+                default:
+                    System.err.println("[Backtest] Unknown option " + args[i]);
+                    return;
+            }
+        }
+        Log.configure(Log.WARN, null, "backtest", 0, 1, true);
+        OrderBook book = bookType.equals("offheap") ? new OffHeapOrderBook() : new HeapOrderBook();
+        try (Writer tradesOut = trades == null ? null : Files.newBufferedWriter(Paths.get(trades), StandardCharsets.UTF_8)) {
+            if (tradesOut != null) tradesOut.write("timestamp,price,size,bidOrderId,askOrderId,bidOwner,askOwner,aggressor\n");
+            Backtest backtest = new Backtest(new MatchingEngine(book), tradesOut);
+            long start = System.nanoTime();
+            if (input.endsWith(".csv")) {
+                backtest.runCsv(input);
+            } else {
+                backtest.runJson(input);
+            }
+            backtest.report(bookType, System.nanoTime() - start);
+        } finally {
+            Log.shutdown();
+        }
+    }
+
+    public void runCsv(String path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            String[] fields = new String[7];
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("timestamp")) continue;
+                int count = split(line, fields);
+                try {
+                    if (count > 0 && !fields[0].isEmpty()) timestamp = Long.parseLong(fields[0]);
+                    apply(field(fields, count, 1), field(fields, count, 2), intField(fields, count, 3),
+                            intField(fields, count, 4), field(fields, count, 5), intField(fields, count, 6));
+                } catch (NumberFormatException e) {
+                    Log.warn("[Backtest - csv] Skipping line {}: {}", lineNumber, e.getMessage());
+                    rejected++;
+                }
+            }
+        }
+    }
+
+    public void runJson(String path) throws IOException {
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8))) {
+            //piu' valori top-level: un oggetto per riga
+            reader.setStrictness(Strictness.LENIENT);
+            boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+            if (array) reader.beginArray();
+            while (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT) {
+                readJsonCommand(reader);
+            }
+            if (array) reader.endArray();
+        }
+    }
+
+    private void readJsonCommand(JsonReader reader) throws IOException {
+        String operation = null;
+        String type = null;
+        String owner = null;
+        int size = 0;
+        int price = 0;
+        int orderId = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "operation": operation = reader.nextString(); break;
+                case "type": type = reader.nextString(); break;
+                case "owner": owner = reader.nextString(); break;
+                case "size": size = reader.nextInt(); break;
+                case "price":
+                case "stopPrice": price = reader.nextInt(); break;
+                case "orderId": orderId = reader.nextInt(); break;
+                case "timestamp": timestamp = reader.nextLong(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        apply(operation, type, size, price, owner, orderId);
+    }
+
+    //un comando del file, con le validazioni del WorkerThread
+    private void apply(String operation, String type, int size, int price, String owner, int orderId) {
+        commands++;
+        String op = operation == null ? "" : operation;
+        if (op.equals("cancel") || op.equals("cancelOrder")) {
+            if (orderId <= 0) {
+                rejected++;
+                return;
+            }
+            long start = System.nanoTime();
+            boolean removed = engine.cancelOrder(orderId);
+            engineNanos += System.nanoTime() - start;
+            if (!removed) failedCancels++;
+            return;
+        }
+        String orderType;
+        switch (op) {
+            case "limit": case "insertLimitOrder": orderType = "limit"; break;
+            case "market": case "insertMarketOrder": orderType = "market"; break;
+            case "stop": case "insertStopOrder": orderType = "stop"; break;
+            default:
+                rejected++;
+                return;
+        }
+        if (type == null || (orderType.equals("limit") && ((!type.equals("bid") && !type.equals("ask")) || size <= 0))) {
+            rejected++;
+            return;
+        }
+        if (orderId <= 0) {
+            orderId = nextOrderId;
+        }
+        nextOrderId = Math.max(nextOrderId, orderId + 1);
+        Order order = new Order(orderId, type, size, orderType.equals("market") ? 0 : price, orderType,
+                owner == null || owner.isEmpty() ? DEFAULT_OWNER : owner);
+
+        long start = System.nanoTime();
+        switch (orderType) {
+            case "limit": engine.insertLimitOrder(order); break;
+            case "market": engine.insertMarketOrder(order); break;
+            default: engine.insertStopOrder(order);
+        }
+        engineNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void onExecution(Order bid, Order ask, int price, int size, boolean askAggressor, long timestamp) {
+        executions++;
+        volume += size;
+        if (tradesOut == null) return;
+        try {
+            tradesOut.write(timestamp + "," + price + "," + size + "," + bid.getOrderId() + "," + ask.getOrderId() + ","
+                    + bid.getOwner() + "," + ask.getOwner() + "," + (askAggressor ? "ask" : "bid") + "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void onOrderRested(Order order) {
+        rested++;
+    }
+
+    @Override
+    public void onOrderCancelled(int orderId) {
+        cancelled++;
+    }
+
+    @Override
+    public void onOrderDiscarded(Order order) {
+        discarded++;
+    }
+
+    private void report(String bookType, long elapsedNanos) {
+        System.out.printf("[Backtest] %d commands in %.1f ms (%.0f commands/s), engine %.1f ms (%.0f commands/s, %s book)%n",
+                commands, elapsedNanos / 1e6, commands / (elapsedNanos / 1e9),
+                engineNanos / 1e6, commands / (Math.max(1, engineNanos) / 1e9), bookType);
+        System.out.printf("executions %d, volume %d, last price %d%n", executions, volume, engine.getLastPrice());
+        System.out.printf("rested %d, cancelled %d, failed cancels %d, discarded %d, rejected %d%n",
+                rested, cancelled, failedCancels, discarded, rejected);
+        System.out.printf("final book %d resting orders, %d stop orders%n", engine.getBook().size(), engine.getStopOrders().size());
+    }
+
+    //split su virgola senza regex, ritorna il numero di campi letti (al massimo fields.length)
+    private static int split(String line, String[] fields) {
+        int count = 0;
+        int start = 0;
+        while (count < fields.length) {
+            int comma = line.indexOf(',', start);
+            fields[count++] = (comma < 0 ? line.substring(start) : line.substring(start, comma)).trim();
+            if (comma < 0) break;
+            start = comma + 1;
+        }
+        return count;
+    }
+
+    private static String field(String[] fields, int count, int index) {
+        return index < count ? fields[index] : "";
+    }
+
+    private static int intField(String[] fields, int count, int index) {
+        String value = field(fields, count, index);
+        return value.isEmpty() ? 0 : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,34 @@
+package cross.server;
+
+/*
+* candela di una risoluzione: time e' l'inizio dell'intervallo (ms UTC),
+* vwap = somma(price * size) / volume, arrotondato all'unita' di prezzo
+* */
+public class Candle {
+    public long time;
+    public int open;
+    public int high;
+    public int low;
+    public int close;
+    public long volume;
+    public long vwap;
+    //somma price * size, serve per unire candele senza perdere precisione sul vwap
+    transient long notional;
+
+    Candle(long time, int open, int high, int low, int close, long volume, long notional) {
+        this.time = time;
+        this.open = open;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+        this.volume = volume;
+        this.notional = notional;
+        this.vwap = volume > 0 ? (notional + volume / 2) / volume : close;
+    }
+
+    //la candela later segue temporalmente questa
+    Candle merge(Candle later){
+        return new Candle(time, open, Math.max(high, later.high), Math.min(low, later.low), later.close,
+                volume + later.volume, notional + later.notional);
+    }
+}
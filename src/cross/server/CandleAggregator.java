@@ -0,0 +1,278 @@
+package cross.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/*
+* candele multi-risoluzione (1m, 5m, 1h, 1d) aggiornate a ogni esecuzione:
+* - solo la candela a 1 minuto viene aggiornata dal trade, ogni risoluzione superiore
+*   riceve le candele chiuse della risoluzione inferiore (5m da 1m, 1h da 5m, 1d da 1h)
+* - ogni risoluzione tiene le candele recenti in un anello di array primitivi indicizzato per intervallo,
+*   le candele chiuse vengono scritte su disco (CandleFile) a ogni salvataggio
+* - una candela ancora aperta di una risoluzione superiore si completa al momento della query
+*   con le candele aperte delle risoluzioni inferiori (al massimo tre)
+* il costo di una query dipende solo dal numero di candele richieste, non dallo storico.
+* aggiornamenti sotto il write lock dell'engine e quello dell'aggregatore; la lettura degli anelli e' ottimistica
+* (StampedLock), senza bloccare le esecuzioni, e viene ripetuta sotto il read lock solo se un aggiornamento
+* l'ha invalidata. lettura da disco fuori da ogni lock.
+* all'avvio i file vengono riaperti: gli anelli ripartono dalle candele su disco e vanno riaggregati
+* solo i trade da resumeTime(), il giorno successivo all'ultima candela giornaliera scritta
+* */
+public class CandleAggregator implements Closeable {
+
+    public static final int MAX_QUERY_CANDLES = 5000;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final Level[] levels;
+    private final StampedLock lock = new StampedLock();
+    //timestamp da cui riaggregare lo storico su disco, Long.MIN_VALUE: tutto
+    private final long resumeTime;
+
+    public CandleAggregator(String directory) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        CandleResolution[] resolutions = CandleResolution.values();
+        levels = new Level[resolutions.length];
+        for(int i = 0; i < resolutions.length; i++){
+            CandleResolution resolution = resolutions[i];
+            levels[i] = new Level(resolution, CandleFile.open(dir.resolve("candles-" + resolution.getLabel() + ".bin"), resolution));
+        }
+        /*
+        * ogni candela chiusa viene scritta insieme alle candele inferiori che la compongono, quindi i file
+        * delle risoluzioni inferiori arrivano almeno fin dove arriva quello giornaliero: ripartendo dal giorno
+        * successivo all'ultima candela di ogni livello, allineato al giorno, tutte le candele precedenti sono su disco
+        * */
+        long resume = Long.MAX_VALUE;
+        for(Level level : levels){
+            long last = level.file.lastTime();
+            resume = Math.min(resume, last == Long.MIN_VALUE ? Long.MIN_VALUE : last + level.resolution.getMillis());
+        }
+        CandleResolution top = levels[levels.length - 1].resolution;
+        resumeTime = resume == Long.MIN_VALUE ? Long.MIN_VALUE : top.bucket(resume) * top.getMillis();
+        if(resumeTime != Long.MIN_VALUE){
+            //finestra degli anelli dalle candele complete su disco, le successive arrivano dalla riaggregazione
+            for(Level level : levels){
+                long from = resumeTime - level.capacity * level.resolution.getMillis();
+                for(Candle candle : level.file.read(from, resumeTime, level.capacity)){
+                    level.merge(level.resolution.bucket(candle.time), candle);
+                }
+            }
+        }
+    }
+
+    //primo timestamp dello storico da passare a update() dopo l'apertura
+    public long resumeTime(){
+        return resumeTime;
+    }
+
+    //una chiamata per esecuzione (non per lato)
+    public void update(long timestamp, int price, int size){
+        long stamp = lock.writeLock();
+        try{
+            Level base = levels[0];
+            long bucket = base.resolution.bucket(timestamp);
+            //un orologio che torna indietro non riapre candele gia' chiuse
+            if(base.current != NONE && bucket < base.current) bucket = base.current;
+            if(base.current != NONE && bucket != base.current) close(0);
+            base.merge(bucket, new Candle(bucket * base.resolution.getMillis(), price, price, price, price, size, (long) price * size));
+            base.current = bucket;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    //chiude la candela aperta del livello e la aggrega nel livello superiore
+    private void close(int index){
+        Level level = levels[index];
+        Candle candle = level.get(level.current);
+        level.current = NONE;
+        //riaggregata all'avvio ma gia' su disco
+        if(candle.time > level.persisted) level.closed.add(candle);
+        if(index + 1 == levels.length) return;
+        Level parent = levels[index + 1];
+        long bucket = parent.resolution.bucket(candle.time);
+        if(parent.current != NONE && parent.current != bucket) close(index + 1);
+        parent.merge(bucket, candle);
+        parent.current = bucket;
+    }
+
+    /*
+    * candele della risoluzione che intersecano [from, to), in ordine di tempo, al massimo limit.
+    * gli intervalli senza esecuzioni non hanno candela
+    * */
+    public List<Candle> candles(CandleResolution resolution, long from, long to, int limit) throws IOException {
+        List<Candle> result = new ArrayList<>();
+        if(from >= to) return result;
+        limit = Math.min(limit, MAX_QUERY_CANDLES);
+        Level level = levels[resolution.ordinal()];
+        long firstBucket = resolution.bucket(from);
+        long lastBucket = resolution.bucket(to - 1);
+
+        //finestra dell'anello: le ultime capacity candele fino all'intervallo dell'ultima esecuzione
+        long newest = read(() -> {
+            Level base = levels[0];
+            return base.newest == NONE ? NONE : resolution.bucket(base.newest * base.resolution.getMillis());
+        });
+        long ringStart = newest == NONE ? Long.MAX_VALUE : newest - level.capacity + 1;
+        //intervalli piu' vecchi dell'anello: candele chiuse su disco
+        if(firstBucket < ringStart){
+            long diskEnd = Math.min(lastBucket + 1, ringStart);
+            result.addAll(level.file.read(firstBucket * resolution.getMillis(), diskEnd * resolution.getMillis(), limit));
+        }
+        int remaining = limit - result.size();
+        List<Candle> recent = read(() -> {
+            List<Candle> candles = new ArrayList<>();
+            for(long bucket = Math.max(firstBucket, ringStart); bucket <= Math.min(lastBucket, newest) && candles.size() < remaining; bucket++){
+                Candle candle = level.get(bucket);
+                //parti ancora aperte nei livelli inferiori, dalla piu' vecchia alla piu' recente
+                for(int i = resolution.ordinal() - 1; i >= 0; i--){
+                    Level lower = levels[i];
+                    long current = lower.current;
+                    if(current == NONE || resolution.bucket(current * lower.resolution.getMillis()) != bucket) continue;
+                    Candle open = lower.get(current);
+                    if(open == null) continue;
+                    if(candle == null){
+                        candle = new Candle(bucket * resolution.getMillis(), open.open, open.high, open.low, open.close, open.volume, open.notional);
+                    } else {
+                        candle = candle.merge(open);
+                    }
+                }
+                if(candle != null) candles.add(candle);
+            }
+            return candles;
+        });
+        result.addAll(recent);
+        return result;
+    }
+
+    /*
+    * sezione di lettura degli anelli: prima senza lock, valida solo se nessun aggiornamento e' avvenuto nel frattempo,
+    * altrimenti ripetuta sotto il read lock. nella lettura ottimistica i valori possono essere incoerenti:
+    * un'eccezione viene trattata come lettura invalidata
+    * */
+    private <T> T read(Supplier<T> section){
+        long stamp = lock.tryOptimisticRead();
+        if(stamp != 0){
+            try{
+                T result = section.get();
+                if(lock.validate(stamp)) return result;
+            } catch (RuntimeException e){
+                //aggiornamento concorrente, si ripete sotto lock
+            }
+        }
+        stamp = lock.readLock();
+        try{
+            return section.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    //scrive su disco le candele chiuse dall'ultimo salvataggio, chiamato dal solo thread di persistenza
+    public long flush() throws IOException {
+        long bytes = 0;
+        for(Level level : levels){
+            List<Candle> closed;
+            long stamp = lock.writeLock();
+            try{
+                closed = new ArrayList<>(level.closed);
+                level.closed.clear();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            try{
+                bytes += level.file.append(closed);
+            } catch (IOException e){
+                //ritentate al prossimo salvataggio
+                stamp = lock.writeLock();
+                try{
+                    level.closed.addAll(0, closed);
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+                throw e;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(Level level : levels){
+            level.file.close();
+        }
+    }
+
+    //anello di candele di una risoluzione, uno slot per intervallo (indice = intervallo mod capacita')
+    private static final class Level {
+        final CandleResolution resolution;
+        final int capacity;
+        final CandleFile file;
+        final long[] time;
+        final int[] open;
+        final int[] high;
+        final int[] low;
+        final int[] close;
+        final long[] volume;
+        final long[] notional;
+        //intervallo della candela aperta, non ancora passata al livello superiore
+        long current = NONE;
+        //intervallo piu' recente presente nell'anello
+        long newest = NONE;
+        //candele chiuse in attesa di essere scritte su disco
+        final List<Candle> closed = new ArrayList<>();
+        //inizio dell'ultima candela su disco all'apertura
+        final long persisted;
+
+        Level(CandleResolution resolution, CandleFile file) {
+            this.resolution = resolution;
+            this.capacity = resolution.getRingCapacity();
+            this.file = file;
+            this.persisted = file.lastTime();
+            time = new long[capacity];
+            Arrays.fill(time, NONE);
+            open = new int[capacity];
+            high = new int[capacity];
+            low = new int[capacity];
+            close = new int[capacity];
+            volume = new long[capacity];
+            notional = new long[capacity];
+        }
+
+        void merge(long bucket, Candle candle){
+            int slot = (int) Math.floorMod(bucket, (long) capacity);
+            long start = bucket * resolution.getMillis();
+            if(time[slot] != start){
+                //slot libero o occupato da un intervallo uscito dalla finestra (gia' chiuso)
+                time[slot] = start;
+                open[slot] = candle.open;
+                high[slot] = candle.high;
+                low[slot] = candle.low;
+                volume[slot] = 0;
+                notional[slot] = 0;
+            } else {
+                high[slot] = Math.max(high[slot], candle.high);
+                low[slot] = Math.min(low[slot], candle.low);
+            }
+            close[slot] = candle.close;
+            volume[slot] += candle.volume;
+            notional[slot] += candle.notional;
+            if(bucket > newest) newest = bucket;
+        }
+
+        Candle get(long bucket){
+            int slot = (int) Math.floorMod(bucket, (long) capacity);
+            long start = bucket * resolution.getMillis();
+            if(time[slot] != start) return null;
+            return new Candle(start, open[slot], high[slot], low[slot], close[slot], volume[slot], notional[slot]);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package cross.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+* candele chiuse di una risoluzione su disco, record a larghezza fissa in ordine di tempo:
+* time (8 byte) | open | high | low | close (4 ciascuno) | volume (8) | notional (8)
+* un solo scrittore (thread di persistenza), i lettori condividono una mappatura dei record gia' scritti,
+* rifatta solo quando il file e' cresciuto, e cercano l'inizio dell'intervallo con una ricerca binaria.
+* il file viene riaperto a ogni avvio: un record troncato da un crash viene scartato
+* */
+public class CandleFile implements Closeable {
+
+    private static final int MAGIC = 0x434E444C; // "CNDL"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_BYTES = 40;
+
+    private final FileChannel channel;
+    //record scritti e resi durevoli, visibili ai lettori
+    private volatile int count;
+    //inizio dell'ultima candela su disco, Long.MIN_VALUE se il file e' vuoto
+    private volatile long lastTime = Long.MIN_VALUE;
+    //mappatura condivisa dai lettori, copre i primi mappedRecords record
+    private volatile Mapping mapping = new Mapping(null, 0);
+
+    private record Mapping(MappedByteBuffer buffer, int records) {}
+
+    private CandleFile(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /*
+    * apre (o crea) il file della risoluzione mantenendo le candele gia' scritte.
+    * il file e' derivato dai segmenti dei trade: un'intestazione non valida o di un'altra risoluzione
+    * lo azzera e le candele vengono ricostruite dallo storico
+    * */
+    public static CandleFile open(Path path, CandleResolution resolution) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try{
+            CandleFile file = new CandleFile(channel);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if(readFully(channel, header, 0) && header.getInt() == MAGIC && header.getInt() == VERSION
+                    && header.getLong() == resolution.getMillis()){
+                //solo record interi: la coda di una scrittura interrotta viene scartata
+                file.count = (int) ((channel.size() - HEADER_BYTES) / RECORD_BYTES);
+                channel.truncate(HEADER_BYTES + (long) file.count * RECORD_BYTES);
+                ByteBuffer time = ByteBuffer.allocate(8);
+                if(file.count > 0 && readFully(channel, time, HEADER_BYTES + (long) (file.count - 1) * RECORD_BYTES)){
+                    file.lastTime = time.getLong();
+                }
+            } else {
+                channel.truncate(0);
+                header.clear();
+                header.putInt(MAGIC).putInt(VERSION).putLong(resolution.getMillis());
+                header.flip();
+                while(header.hasRemaining()){
+                    channel.write(header, header.position());
+                }
+                channel.force(false);
+            }
+            return file;
+        } catch (IOException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    //riempie buffer dalla posizione e lo prepara alla lettura, false se il file finisce prima
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, position + buffer.position()) < 0) return false;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    //inizio dell'ultima candela su disco, Long.MIN_VALUE se non ce ne sono
+    public long lastTime() {
+        return lastTime;
+    }
+
+    //ritorna i byte scritti
+    public long append(List<Candle> candles) throws IOException {
+        if(candles.isEmpty()) return 0;
+        ByteBuffer buffer = ByteBuffer.allocate(candles.size() * RECORD_BYTES);
+        for(Candle candle : candles){
+            buffer.putLong(candle.time).putInt(candle.open).putInt(candle.high).putInt(candle.low).putInt(candle.close)
+                    .putLong(candle.volume).putLong(candle.notional);
+        }
+        buffer.flip();
+        long position = HEADER_BYTES + (long) count * RECORD_BYTES;
+        while(buffer.hasRemaining()){
+            position += channel.write(buffer, position);
+        }
+        channel.force(false);
+        lastTime = candles.get(candles.size() - 1).time;
+        count += candles.size();
+        return (long) candles.size() * RECORD_BYTES;
+    }
+
+    //candele con inizio in [fromTime, toTime), al massimo limit
+    public List<Candle> read(long fromTime, long toTime, int limit) throws IOException {
+        int records = count;
+        List<Candle> result = new ArrayList<>();
+        if(records == 0 || fromTime >= toTime || limit <= 0) return result;
+        MappedByteBuffer buffer = map(records);
+        int low = 0;
+        int high = records;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(time(buffer, mid) < fromTime) low = mid + 1;
+            else high = mid;
+        }
+        for(int i = low; i < records && result.size() < limit; i++){
+            int position = HEADER_BYTES + i * RECORD_BYTES;
+            long time = buffer.getLong(position);
+            if(time >= toTime) break;
+            result.add(new Candle(time, buffer.getInt(position + 8), buffer.getInt(position + 12), buffer.getInt(position + 16),
+                    buffer.getInt(position + 20), buffer.getLong(position + 24), buffer.getLong(position + 32)));
+        }
+        return result;
+    }
+
+    //mappatura che copre almeno records record: rifatta solo se il file e' cresciuto dall'ultima
+    private MappedByteBuffer map(int records) throws IOException {
+        Mapping current = mapping;
+        if(current.records() >= records) return current.buffer();
+        synchronized (this) {
+            current = mapping;
+            if(current.records() < records){
+                int mapped = count;
+                current = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + (long) mapped * RECORD_BYTES), mapped);
+                mapping = current;
+            }
+            return current.buffer();
+        }
+    }
+
+    private static long time(ByteBuffer buffer, int index){
+        return buffer.getLong(HEADER_BYTES + index * RECORD_BYTES);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,47 @@
+package cross.server;
+
+/*
+* risoluzioni delle candele, ognuna costruita aggregando le candele chiuse della precedente.
+* ringCapacity: quante candele recenti restano in memoria, le piu' vecchie si leggono da disco
+* */
+public enum CandleResolution {
+    M1("1m", 60_000L, 7 * 1440),        //una settimana
+    M5("5m", 300_000L, 31 * 288),       //un mese
+    H1("1h", 3_600_000L, 366 * 24),     //un anno
+    D1("1d", 86_400_000L, 10 * 366);    //dieci anni
+
+    private final String label;
+    private final long millis;
+    private final int ringCapacity;
+
+    CandleResolution(String label, long millis, int ringCapacity) {
+        this.label = label;
+        this.millis = millis;
+        this.ringCapacity = ringCapacity;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    public int getRingCapacity() {
+        return ringCapacity;
+    }
+
+    //indice dell'intervallo (UTC) che contiene il timestamp
+    public long bucket(long timestamp){
+        return Math.floorDiv(timestamp, millis);
+    }
+
+    //null se la label non corrisponde a nessuna risoluzione
+    public static CandleResolution parse(String label){
+        for(CandleResolution resolution : values()){
+            if(resolution.label.equals(label)) return resolution;
+        }
+        return null;
+    }
+}
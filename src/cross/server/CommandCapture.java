@@ -0,0 +1,164 @@
+package cross.server;
+
+import cross.utils.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/*
+* cattura deterministica dei comandi accettati dall'engine, per il replay offline (CommandReplay):
+* - header: magic, versione, istante di inizio, snapshot dello stato dell'engine all'inizio della cattura
+* - un record per comando (insert/cancel) nell'ordine di acquisizione del write lock, con l'istante del comando
+*   usato per i timestamp delle esecuzioni (stesso formato dei comandi del CommandJournal)
+* - in chiusura un record finale con l'impronta delle esecuzioni e del book a fine cattura
+* ogni record: lunghezza, payload, CRC32. a differenza del journal di recovery il file non ruota con gli snapshot.
+* le append sono chiamate sotto il write lock dell'engine
+* */
+public class CommandCapture implements Closeable {
+
+    private static final int MAGIC = 0x43415054; // "CAPT"
+    private static final int VERSION = 1;
+    static final byte COMMAND = 'C';
+    static final byte END = 'E';
+
+    private final DataOutputStream out;
+    private final FileOutputStream file;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private long commands;
+
+    private CommandCapture(File target, long startMillis, byte[] snapshot) throws IOException {
+        this.file = new FileOutputStream(target);
+        this.out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(startMillis);
+        out.writeInt(snapshot.length);
+        out.write(snapshot);
+        out.flush();
+    }
+
+    //snapshot: stato iniziale codificato con EngineSnapshot.encode
+    public static CommandCapture create(Path directory, long startMillis, byte[] snapshot) throws IOException {
+        Files.createDirectories(directory);
+        Path target = directory.resolve("capture-" + startMillis + ".bin");
+        return new CommandCapture(target.toFile(), startMillis, snapshot);
+    }
+
+    public void appendOrder(Order order, long commandMillis) throws IOException {
+        record.reset();
+        recordOut.writeByte(COMMAND);
+        recordOut.writeLong(commandMillis);
+        CommandJournal.writeOrder(recordOut, order);
+        writeRecord();
+        commands++;
+    }
+
+    public void appendCancel(int orderId, long commandMillis) throws IOException {
+        record.reset();
+        recordOut.writeByte(COMMAND);
+        recordOut.writeLong(commandMillis);
+        CommandJournal.writeCancel(recordOut, orderId);
+        writeRecord();
+        commands++;
+    }
+
+    public long commands() {
+        return commands;
+    }
+
+    //record finale con l'impronta dell'engine live, confrontata dal replay
+    public void finish(ExecutionDigest executions, byte[] bookDigest) throws IOException {
+        record.reset();
+        recordOut.writeByte(END);
+        recordOut.writeLong(executions.count());
+        recordOut.write(executions.value());
+        recordOut.write(bookDigest);
+        writeRecord();
+    }
+
+    private void writeRecord() throws IOException {
+        if (record.size() > 1024) throw new IOException("[CommandCapture] Record too large");
+        recordOut.flush();
+        crc.reset();
+        crc.update(record.toByteArray(), 0, record.size());
+        out.writeInt(record.size());
+        record.writeTo(out);
+        out.writeInt((int) crc.getValue());
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.flush();
+        file.getFD().sync();
+        out.close();
+    }
+
+    //contenuto di una cattura: stato iniziale, comandi con il loro istante, impronte finali (se la cattura e' stata chiusa)
+    public static class Reader implements Closeable {
+        public final long startMillis;
+        public final byte[] snapshot;
+        private final DataInputStream in;
+        private final CRC32 check = new CRC32();
+        //valorizzati dal record finale
+        public long liveExecutions = -1;
+        public byte[] liveExecutionDigest;
+        public byte[] liveBookDigest;
+
+        public Reader(Path path) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                in.close();
+                throw new IOException("[CommandCapture] Unsupported capture format: " + path);
+            }
+            startMillis = in.readLong();
+            snapshot = new byte[in.readInt()];
+            in.readFully(snapshot);
+        }
+
+        //prossimo comando, null a fine file (o al primo record troncato/corrotto); millis[0] riceve l'istante del comando
+        public CommandJournal.Command next(long[] millis) throws IOException {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > 1024) {
+                        Log.warn("[CommandCapture - read] Corrupted record length, stopping");
+                        return null;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    int expected = in.readInt();
+                    check.reset();
+                    check.update(payload, 0, payload.length);
+                    if ((int) check.getValue() != expected) {
+                        Log.warn("[CommandCapture - read] Checksum mismatch, stopping");
+                        return null;
+                    }
+                } catch (EOFException e) {
+                    return null;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte kind = record.readByte();
+                if (kind == END) {
+                    liveExecutions = record.readLong();
+                    liveExecutionDigest = new byte[32];
+                    record.readFully(liveExecutionDigest);
+                    liveBookDigest = new byte[32];
+                    record.readFully(liveBookDigest);
+                    continue;
+                }
+                millis[0] = record.readLong();
+                return CommandJournal.readCommand(record, millis[0]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package cross.server;
+
+import cross.utils.Log;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/*
+* journal append-only dei comandi accettati dall'engine (insert/cancel), in ordine di arrivo.
+* header: magic, versione. ogni record: lunghezza, payload (istante del comando + comando), CRC32 del payload.
+* l'istante del comando e' il clock del replay: le esecuzioni ricostruite hanno il timestamp originale.
+* un record troncato o corrotto (crash durante la scrittura) chiude il replay, un header sconosciuto lo rifiuta.
+* le append sono chiamate sotto il write lock dell'engine, quindi non serve sincronizzazione
+* */
+public class CommandJournal implements Closeable {
+
+    public static final byte LIMIT = 1;
+    public static final byte MARKET = 2;
+    public static final byte STOP = 3;
+    public static final byte CANCEL = 4;
+
+    private static final int MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int VERSION = 1;
+
+    private static final Pattern FILE_PATTERN = Pattern.compile("journal-(\\d+)\\.log");
+
+    private final FileOutputStream file;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+
+    private CommandJournal(File target) throws IOException {
+        boolean empty = target.length() == 0;
+        if (!empty) checkHeader(target);
+        this.file = new FileOutputStream(target, true);
+        this.out = new DataOutputStream(new BufferedOutputStream(file, 1 << 14));
+        if (empty) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+        }
+    }
+
+    //in append solo su un journal dello stesso formato
+    private static void checkHeader(File target) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(target))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("[CommandJournal] Unsupported journal format: " + target);
+            }
+        } catch (EOFException e) {
+            throw new IOException("[CommandJournal] Truncated journal header: " + target, e);
+        }
+    }
+
+    public static Path path(String dataDir, long seq){
+        return Paths.get(dataDir, "journal-" + seq + ".log");
+    }
+
+    public static List<Long> listSequences(String dataDir){
+        return EngineSnapshot.listSequences(dataDir, FILE_PATTERN);
+    }
+
+    public static CommandJournal open(Path path) throws IOException {
+        return new CommandJournal(path.toFile());
+    }
+
+    //insert di un ordine: op ricavato dall'orderType
+    public void appendOrder(Order order, long commandMillis) throws IOException {
+        record.reset();
+        recordOut.writeLong(commandMillis);
+        writeOrder(recordOut, order);
+        writeRecord();
+    }
+
+    public void appendCancel(int orderId, long commandMillis) throws IOException {
+        record.reset();
+        recordOut.writeLong(commandMillis);
+        writeCancel(recordOut, orderId);
+        writeRecord();
+    }
+
+    //codifica di un comando, condivisa con CommandCapture
+    static void writeOrder(DataOutputStream out, Order order) throws IOException {
+        switch (order.getOrderType()){
+            case "limit": out.writeByte(LIMIT); break;
+            case "market": out.writeByte(MARKET); break;
+            default: out.writeByte(STOP);
+        }
+        out.writeInt(order.getOrderId());
+        out.writeByte(order.getType().equals("ask") ? 1 : 0);
+        out.writeInt(order.getSize());
+        out.writeInt(order.getPrice());
+        out.writeUTF(order.getOwner());
+    }
+
+    static void writeCancel(DataOutputStream out, int orderId) throws IOException {
+        out.writeByte(CANCEL);
+        out.writeInt(orderId);
+    }
+
+    //il flush consegna il record al sistema operativo: sopravvive al crash del processo.
+    //l'fsync avviene alla rotazione/chiusura
+    private void writeRecord() throws IOException {
+        recordOut.flush();
+        crc.reset();
+        crc.update(record.toByteArray(), 0, record.size());
+        out.writeInt(record.size());
+        record.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.flush();
+        file.getFD().sync();
+        out.close();
+    }
+
+    //comando letto dal journal
+    public static class Command {
+        public final byte op;
+        public final int orderId;
+        public final String type;
+        public final int size;
+        public final int price;
+        public final String owner;
+        //istante del comando, orologio dell'engine nel replay
+        public final long millis;
+
+        Command(byte op, int orderId, String type, int size, int price, String owner, long millis) {
+            this.op = op;
+            this.orderId = orderId;
+            this.type = type;
+            this.size = size;
+            this.price = price;
+            this.owner = owner;
+            this.millis = millis;
+        }
+
+        //ordine equivalente a quello creato dal WorkerThread
+        public Order toOrder(){
+            String orderType = op == LIMIT ? "limit" : op == MARKET ? "market" : "stop";
+            return new Order(orderId, type, size, price, orderType, owner);
+        }
+    }
+
+    //rilegge il journal passando i comandi all'handler, ritorna il numero di comandi validi
+    public static int replay(Path path, Consumer<Command> handler) throws IOException {
+        int count = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile()), 1 << 16))){
+            CRC32 check = new CRC32();
+            try{
+                if(in.readInt() != MAGIC || in.readInt() != VERSION){
+                    throw new IOException("[CommandJournal - replay] Unsupported journal format: " + path);
+                }
+            } catch (EOFException e){
+                return 0; //journal vuoto o header troncato dal crash alla creazione
+            }
+            while(true){
+                byte[] payload;
+                int expected;
+                try{
+                    int length = in.readInt();
+                    if(length <= 0 || length > 1024){
+                        Log.warn("[CommandJournal - replay] Corrupted record length in {}, stopping replay", path);
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    expected = in.readInt();
+                } catch (EOFException e){
+                    break; //fine journal (o record finale troncato)
+                }
+                check.reset();
+                check.update(payload, 0, payload.length);
+                if((int) check.getValue() != expected){
+                    Log.warn("[CommandJournal - replay] Checksum mismatch in {}, stopping replay", path);
+                    break;
+                }
+                handler.accept(decode(payload));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Command decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        return readCommand(in, in.readLong());
+    }
+
+    static Command readCommand(DataInputStream in, long millis) throws IOException {
+        byte op = in.readByte();
+        int orderId = in.readInt();
+        if(op == CANCEL){
+            return new Command(op, orderId, null, 0, 0, null, millis);
+        }
+        String type = in.readByte() == 1 ? "ask" : "bid";
+        int size = in.readInt();
+        int price = in.readInt();
+        String owner = in.readUTF();
+        return new Command(op, orderId, type, size, price, owner, millis);
+    }
+}
@@ -0,0 +1,118 @@
+package cross.server;
+
+import cross.utils.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+* replay offline di una cattura dei comandi (CommandCapture), alla massima velocita':
+* l'engine parte dallo stato iniziale della cattura in una directory temporanea, senza rete ne' journal,
+* e riceve i comandi nell'ordine originale con l'orologio che ritorna l'istante registrato di ogni comando.
+* al termine confronta l'impronta delle esecuzioni e del book con quella dell'engine live (record finale
+* della cattura) e, con -expect, con il risultato di un replay precedente (ad esempio di un'altra versione)
+*
+* uso: java -cp Server.jar cross.server.CommandReplay <capture.bin> [-book heap|offheap] [-out result.txt] [-expect result.txt]
+* */
+public class CommandReplay {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: CommandReplay <capture.bin> [-book heap|offheap] [-out result.txt] [-expect result.txt]");
+            return;
+        }
+        Path capturePath = Paths.get(args[0]);
+        String bookType = "heap";
+        Path out = null;
+        Path expect = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-book": bookType = args[++i]; break;
+                case "-out": out = Paths.get(args[++i]); break;
+                case "-expect": expect = Paths.get(args[++i]); break;
+                default:
+                    System.err.println("[CommandReplay] Unknown option " + args[i]);
+                    return;
+            }
+        }
+        Log.configure(Log.WARN, null, "replay", 0, 1, true);
+        try {
+            boolean identical = replay(capturePath, bookType, out, expect);
+            if (!identical) System.exit(1);
+        } finally {
+            Log.shutdown();
+        }
+    }
+
+    //ritorna false se una delle impronte di riferimento non coincide
+    private static boolean replay(Path capturePath, String bookType, Path out, Path expect) throws IOException {
+        Path dir = Files.createTempDirectory("cross-replay");
+        try (CommandCapture.Reader reader = new CommandCapture.Reader(capturePath)) {
+            //lo stato iniziale diventa lo snapshot da cui l'engine fa recovery
+            EngineSnapshot.write(EngineSnapshot.path(dir.toString(), 1), reader.snapshot);
+            OrderBook book = bookType.equals("offheap") ? new OffHeapOrderBook() : new HeapOrderBook();
+            CrossServer server = new CrossServer(0, dir.toString(), book);
+            try {
+                server.closeJournal();
+                long[] millis = new long[1];
+                ExecutionDigest executions = server.digestExecutions();
+
+                //comandi in memoria: la lettura del file resta fuori dalla misura
+                //ogni comando porta il proprio istante, usato come orologio dell'engine
+                List<CommandJournal.Command> commands = new ArrayList<>();
+                for (CommandJournal.Command command = reader.next(millis); command != null; command = reader.next(millis)) {
+                    commands.add(command);
+                }
+
+                long start = System.nanoTime();
+                for (CommandJournal.Command command : commands) {
+                    server.applyJournalCommand(command);
+                }
+                long elapsed = System.nanoTime() - start;
+
+                String executionDigest = ExecutionDigest.hex(executions.value());
+                String bookDigest = ExecutionDigest.hex(server.bookDigest());
+                System.out.printf("[CommandReplay] %d commands, %d executions in %.1f ms (%.0f commands/s, %s book)%n",
+                        commands.size(), executions.count(), elapsed / 1e6, commands.size() / (elapsed / 1e9), bookType);
+                System.out.println("executions " + executions.count() + " " + executionDigest);
+                System.out.println("book " + bookDigest);
+
+                String result = "executions " + executions.count() + " " + executionDigest + "\nbook " + bookDigest + "\n";
+                if (out != null) Files.write(out, result.getBytes(StandardCharsets.UTF_8));
+
+                boolean identical = true;
+                if (reader.liveExecutionDigest != null) {
+                    String live = "executions " + reader.liveExecutions + " " + ExecutionDigest.hex(reader.liveExecutionDigest)
+                            + "\nbook " + ExecutionDigest.hex(reader.liveBookDigest) + "\n";
+                    identical = report("live engine", live, result);
+                } else {
+                    System.out.println("[CommandReplay] Capture has no final record (server not stopped cleanly): live comparison skipped");
+                }
+                if (expect != null) {
+                    identical &= report(expect.toString(), new String(Files.readAllBytes(expect), StandardCharsets.UTF_8), result);
+                }
+                return identical;
+            } finally {
+                server.stop();
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static boolean report(String reference, String expected, String actual) {
+        boolean identical = expected.trim().equals(actual.trim());
+        System.out.println("[CommandReplay] " + (identical ? "IDENTICAL to " : "DIFFERENT from ") + reference);
+        if (!identical) System.out.println("expected:\n" + expected.trim());
+        return identical;
+    }
+}
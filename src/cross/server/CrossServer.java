@@ -2,93 +2,205 @@ package cross.server;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
-import cross.utils.JsonPersistence;
+import cross.utils.Log;
+import cross.utils.TradeJsonLoader;
+import cross.utils.UserStore;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.DatagramSocket;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
 
 
 public class CrossServer {
     
     private final int port;
     private ServerSocket serverSocket;
+    //un thread per connessione: lettura delle richieste e scrittura delle risposte
     private final ExecutorService threadPool;
     
     //serializzazione/deserializzazione JSON
     protected final Gson gson;
     
     //mapping utenti
-    protected final Map<String,String> userMap; //mappa username-> password per registrazione.
+    protected final UserStore userStore; //username-> password, persistenza incrementale
     protected final Set<String> loggedUsers; // set di utenti loggati
     
     //mappatura per associare un socket all'username loggato
     protected final Map<Socket,String> socketMap;
     
     //strutture ordini
-    //Order Book
-    protected final ConcurrentSkipListMap<Integer,ConcurrentLinkedQueue<Order>> askBook;
-    protected final ConcurrentSkipListMap<Integer,ConcurrentLinkedQueue<Order>> bidBook;
+    //Order Book: ordini a riposo di entrambi i lati, in heap (HeapOrderBook) o fuori heap (OffHeapOrderBook)
+    protected final OrderBook book;
+    //matching su book, stop order e lastPrice, chiamato sotto il write lock
+    protected final MatchingEngine engine;
+    //vista immutabile del mercato, ripubblicata a fine comando: le letture non prendono il lock dell'engine
+    private volatile MarketView marketView;
     
-    private int currentOrderId; // contatore id
-    protected final List<Order> stopOrders; //stop order memorizzati in una lista
+    //id dei nuovi ordini: blocchi per thread senza lock, limite registrato su disco
+    private final OrderIdAllocator orderIds;
+    //id piu' alto tra gli ordini passati all'engine (sotto il write lock): stato deterministico di snapshot e catture
+    private int lastOrderId;
     
     //notifiche: manteniamo user-> (ip, porta udp)
     //quando fa login, comunica al server dove inviargli le notifiche
     protected Map<String,ClientNotificationInfo> clientNotifications;
     
-    //last price, usato per controllare stop
-    protected int lastPrice;
-    
     //invio pacchetti UDP
     protected final NotificationService notificationService;
     
     //persistenza
-    private static final String USER_FILE = "../data/users.json";
-    private static final String TRADES_FILE = "../data/trades.json";
+    private static final String DEFAULT_DATA_DIR = "../data";
+    private final String dataDir;
+    private final String tradesFile;
+    //oltre questa dimensione il vecchio trades.json viene importato a blocchi paralleli
+    private static final long LEGACY_PARALLEL_THRESHOLD = 32L << 20;
+    
+    //storico esecuzioni: segmenti mensili su disco + finestra dei trade recenti in memoria
+    protected final TradeStore executedTrades;
+    //finestra in memoria: al massimo tradeWindowTrades trade, non piu' vecchi di tradeWindowMillis (0: nessun limite)
+    private volatile int tradeWindowTrades = 1_000_000;
+    private volatile long tradeWindowMillis = 0;
+    //candele 1m/5m/1h/1d aggiornate a ogni esecuzione
+    protected final CandleAggregator candles;
+    //risposte getPriceHistory codificate, invalidate per il mese corrente dal contatore dei trade
+    private static final long HISTORY_CACHE_CHARS = 8L << 20;
+    private static final long HISTORY_TTL_MILLIS = 1000;
+    private final ResponseCache<YearMonth> historyCache = new ResponseCache<>(HISTORY_CACHE_CHARS);
+    private volatile long tradeGeneration;
+    //aggregazioni sullo storico su un pool dedicato, separato dalla gestione degli ordini
+    private static final int ANALYTICS_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    protected final TradeAnalytics analytics;
+    
+    //persistenza in background: un salvataggio alla volta, fuori dai lock dell'engine
+    private final Object persistLock = new Object();
+    //salvataggi periodici, creati da start() e fermati da stop() prima del salvataggio finale
+    private volatile ScheduledExecutorService persistScheduler;
+    //attesa massima allo stop per il salvataggio e le richieste in corso
+    private static final long STOP_DRAIN_SECONDS = 10;
+    private volatile long lastPersistMillis;
+    private volatile long lastPersistBytes;
+    private volatile long persistCount;
     
-    //storico esecuzioni
-    protected final List<Trade> executedTrades;
+    //stato dell'engine: snapshot binari periodici + journal dei comandi successivi
+    private CommandJournal journal;
+    private long journalSeq;
+    //durante il recovery le esecuzioni gia' presenti nello storico non vengono riaggiunte
+    private boolean recovering;
+    private int replaySkipTrades;
     
     //flag per gestione stato server
     private volatile boolean isRunning;
     //true per fairness, first-come, first-served
     private final ReadWriteLock rwLock = new ReentrantReadWriteLock(true);
+    //credenziali: cambi password in scrittura, login con lettura ottimistica (mai in coda al matching)
+    private final StampedLock accountLock = new StampedLock();
+    
+    //orologio dell'engine (iniettabile per il replay deterministico) e istante del comando corrente, fissato
+    //all'acquisizione del write lock: tutte le esecuzioni generate da un comando hanno lo stesso timestamp
+    private volatile LongSupplier clock = System::currentTimeMillis;
+    private long commandMillis;
+    //comando rieseguito da applyJournalCommand (null fuori dal replay), il suo istante sostituisce l'orologio;
+    //letto solo dal thread che esegue il replay
+    private CommandJournal.Command replayCommand;
+    //cattura opzionale dei comandi per il replay offline (CommandReplay), con l'impronta delle esecuzioni
+    private CommandCapture capture;
+    private ExecutionDigest executionDigest;
+    
+    //metriche sempre attive: operazioni (WorkerThread), matching, attesa del lock, persistenza, notifiche
+    protected final MetricsRegistry metrics = new MetricsRegistry();
+    private final LatencyHistogram matchingTime = metrics.timer("matching");
+    private final LatencyHistogram lockWaitTime = metrics.timer("lockWait");
+    private final LatencyHistogram persistTime = metrics.timer("persist");
+    //read lock di persistData: copia degli ordini per lo snapshot e rotazione del journal
+    private final LatencyHistogram snapshotPauseTime = metrics.timer("snapshotPause");
+    //tracce per ordine, disattivate di default (traceOrders)
+    protected final OrderTracer tracer = new OrderTracer(metrics);
+    //esecuzione delle richieste su executor separati per auth, order entry e query
+    private final RequestPools requestPools = new RequestPools(metrics);
     
     public CrossServer(int port) throws IOException {
+        this(port, DEFAULT_DATA_DIR);
+    }
+    
+    public CrossServer(int port, OrderBook book) throws IOException {
+        this(port, DEFAULT_DATA_DIR, book);
+    }
+    
+    //dataDir: directory di utenti, trade, snapshot e journal
+    public CrossServer(int port, String dataDir) throws IOException {
+        this(port, dataDir, new HeapOrderBook());
+    }
+    
+    //book: storage degli ordini a riposo, vuoto (viene popolato dal recovery)
+    public CrossServer(int port, String dataDir, OrderBook book) throws IOException {
         this.port = port;
+        this.dataDir = dataDir;
+        this.tradesFile = dataDir + "/trades.json";
         this.threadPool = Executors.newCachedThreadPool();
         this.gson = new Gson();
         
-        this.userMap = new ConcurrentHashMap<>();
+        this.userStore = new UserStore(dataDir + "/users.json", dataDir + "/users.log");
         this.loggedUsers = ConcurrentHashMap.newKeySet();
         
         this.socketMap = new ConcurrentHashMap<>();
         
-        this.currentOrderId = 1; //iniziamo con ID = 1
-        this.lastPrice = 1;
-        
-        askBook = new ConcurrentSkipListMap<>();
-        bidBook = new ConcurrentSkipListMap<>(Comparator.reverseOrder());
-        stopOrders = Collections.synchronizedList(new ArrayList<>());
+        //le esecuzioni dell'engine vengono registrate e notificate da recordExecution, con l'istante del comando
+        this.book = book;
+        this.engine = new MatchingEngine(book);
+        engine.setClock(() -> commandMillis);
+        engine.setListener(new MatchingEngine.Listener() {
+            @Override
+            public void onExecution(Order bid, Order ask, int price, int size, boolean askAggressor, long timestamp) {
+                recordExecution(bid, ask, price, size, askAggressor, timestamp);
+            }
+        });
         
         //caricamento utenti e trades dal file JSON
-        JsonPersistence.loadUsers(USER_FILE,userMap);
-        this.executedTrades = JsonPersistence.loadTrades(TRADES_FILE);
+        userStore.load();
+        migrateLegacyTrades();
+        this.executedTrades = new TradeStore(dataDir + "/trades");
+        
+        //candele: riaperte da disco, si riaggregano solo i trade successivi all'ultima candela giornaliera scritta
+        this.candles = new CandleAggregator(dataDir + "/candles");
+        executedTrades.forEachOnDisk(candles.resumeTime(), (timestamp, price, size, bidOwner, askOwner, flags) -> candles.update(timestamp, price, size));
+        candles.flush();
+        this.analytics = new TradeAnalytics(executedTrades, ANALYTICS_PARALLELISM);
+        
+        //ripristino book, stop order, lastPrice e ultimo id; i nuovi id partono oltre il limite su disco
+        this.orderIds = OrderIdAllocator.open(Paths.get(dataDir, "orderids.hwm"));
+        recoverEngineState();
+        orderIds.advanceTo(lastOrderId + 1);
+        publishMarketView();
         
         //mappatura user-> ip/porta
         this.clientNotifications = new ConcurrentHashMap<>();
         
         //creazione DatagramSoket su una porta casuale per inviare paccetti
         DatagramSocket udpSocket = new DatagramSocket();
-        notificationService = new NotificationService(udpSocket);
+        notificationService = new NotificationService(udpSocket, metrics.timer("notification"));
         
-        System.out.println("CROSS SERVER STARTED, Uploaded " + userMap.size() + " users and "+ executedTrades.size() + " executed trades.");
+        //gauge letti solo su richiesta delle statistiche
+        metrics.gauge("bookDepth", () -> marketView.restingOrders);
+        metrics.gauge("stopOrders", () -> marketView.stopOrders);
+        metrics.gauge("notificationsInFlight", notificationService::inFlight);
+        metrics.gauge("loggedUsers", loggedUsers::size);
+        metrics.gauge("droppedLogMessages", Log::dropped);
+        
+        Log.info("CROSS SERVER STARTED, Uploaded {} users and {} executed trades.", userStore.size(), executedTrades.size());
         
         this.isRunning = true;
         
@@ -97,11 +209,13 @@ public class CrossServer {
     //avvio del server
     public void start() throws IOException {
         serverSocket = new ServerSocket(port);
-        System.out.println("[CrossServer - start] Server start on port " + port);
-        System.out.println("[CrossServer - start] Uploaded "+ userMap.size() + " users and "+ executedTrades.size() + " executed trades.");
+        requestPools.start();
+        Log.info("[CrossServer - start] Server start on port {}", port);
+        Log.info("[CrossServer - start] Uploaded {} users and {} executed trades.", userStore.size(), executedTrades.size());
         
         //salvataggio dati su file JSON ogni 30 secondi, singolo thread dedicato che viene riutilizzato per ogni chiamata del persistData
         ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        persistScheduler = scheduler;
         scheduler.scheduleAtFixedRate(this::persistData, 30, 90, TimeUnit.SECONDS);
         
         
@@ -109,49 +223,470 @@ public class CrossServer {
             while(isRunning) {
                 try{
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("[CrossServer - start] New connection with" + clientSocket.getRemoteSocketAddress());
+                    Log.info("[CrossServer - start] New connection with {}", clientSocket.getRemoteSocketAddress());
                     WorkerThread workerThread = new WorkerThread(clientSocket,this);
                     threadPool.submit(workerThread);
                 } catch (IOException e) {
                     if(isRunning) {
-                        System.err.println("[CrossServer - start] Error during accepting connection");
-                        e.printStackTrace();
+                        Log.error("[CrossServer - start] Error during accepting connection", e);
                     }
                     //se non e' in esecuzione, allora prob che e' stato chiuso il serverSocket
                 }
         }
         
         } finally {
-            shutdown(scheduler);
+            //dopo stop() la chiusura ordinata e' gia' in corso li': qui solo un'uscita anomala dal ciclo
+            if(isRunning) shutdown(scheduler);
         }
     }
     
-    //salvataggio dati su file JSON (utenti e trades eseguiti)
-    private void persistData() {
+    /*
+    * migrazione una tantum dal vecchio trades.json ai segmenti mensili: importazione in una directory
+    * temporanea rinominata solo a fine importazione, poi trades.json viene rinominato in .imported
+    * */
+    private void migrateLegacyTrades() throws IOException {
+        Path legacy = Paths.get(tradesFile);
+        if (!Files.exists(legacy)) return;
+        Path target = Paths.get(dataDir, "trades");
+        if (!Files.exists(target)) {
+            Path importing = Paths.get(dataDir, "trades.importing");
+            if (Files.exists(importing)) {
+                for (File file : Objects.requireNonNull(importing.toFile().listFiles())) {
+                    Files.delete(file.toPath());
+                }
+            }
+            //parsing in streaming direttamente sui segmenti: heap limitata anche con milioni di trade,
+            //a blocchi paralleli se il file e' grande
+            long start = System.nanoTime();
+            int threads = Files.size(legacy) > LEGACY_PARALLEL_THRESHOLD ? Runtime.getRuntime().availableProcessors() : 1;
+            int imported;
+            try (TradeStore.Importer importer = TradeStore.importer(importing.toString())) {
+                TradeJsonLoader.loadParallel(tradesFile, threads, importer, TradeJsonLoader.CONSOLE_PROGRESS);
+                imported = importer.getCount();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            Files.move(importing, target, StandardCopyOption.ATOMIC_MOVE);
+            Log.info("[CrossServer - migrate] Imported {} trades from {} in {} ms", imported, tradesFile, (System.nanoTime() - start) / 1_000_000);
+        }
+        Files.move(legacy, Paths.get(tradesFile + ".imported"), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /*
+    * recovery all'avvio: ultimo snapshot valido + replay di tutti i journal con sequenza >= snapshot.
+    * le esecuzioni generate dal replay che risultano gia' salvate (executionCount dello snapshot .. esecuzioni caricate)
+    * non vengono riaggiunti, le notifiche non vengono inviate
+    * */
+    private void recoverEngineState() throws IOException {
+        long start = System.nanoTime();
+        int executionCount = 0;
+        long snapshotSeq = 0;
+        
+        List<Long> snapshots = EngineSnapshot.listSequences(dataDir);
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            try {
+                EngineSnapshot snapshot = EngineSnapshot.read(EngineSnapshot.path(dataDir, snapshots.get(i)));
+                snapshot.asks.forEach(engine::restore);
+                snapshot.bids.forEach(engine::restore);
+                snapshot.stops.forEach(engine::restore);
+                lastOrderId = snapshot.nextOrderId - 1;
+                engine.restoreLastPrice(snapshot.lastPrice);
+                executionCount = snapshot.executionCount;
+                snapshotSeq = snapshot.seq;
+                break;
+            } catch (IOException e) {
+                //snapshot illeggibile: si prova il precedente
+                Log.warn("[CrossServer - recover] Skipping unreadable snapshot {} - {}", snapshots.get(i), e.getMessage());
+            }
+        }
+        
+        replaySkipTrades = executedTrades.size() - executionCount;
+        if (replaySkipTrades < 0) {
+            Log.warn("[CrossServer - recover] Trade history is behind the snapshot by {} executions", -replaySkipTrades);
+            replaySkipTrades = 0;
+        }
+        
+        recovering = true;
+        int replayed = 0;
+        long lastSeq = snapshotSeq;
+        try {
+            for (long seq : CommandJournal.listSequences(dataDir)) {
+                if (seq < snapshotSeq) continue;
+                replayed += CommandJournal.replay(CommandJournal.path(dataDir, seq), this::applyJournalCommand);
+                lastSeq = seq;
+            }
+        } finally {
+            recovering = false;
+            replaySkipTrades = 0;
+        }
+        
+        //nuovo journal: un eventuale record troncato in coda al precedente non viene mai seguito da altri
+        journalSeq = lastSeq + 1;
+        journal = CommandJournal.open(CommandJournal.path(dataDir, journalSeq));
+        
+        Log.info("[CrossServer - recover] Restored {} resting orders and {} stop orders, replayed {} commands in {} ms",
+                book.size(), engine.getStopOrders().size(), replayed, (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    //riapplica un comando del journal con le stesse regole del WorkerThread (anche dal replay delle catture):
+    //l'istante registrato del comando sostituisce l'orologio, le esecuzioni ricostruite hanno il timestamp originale
+    void applyJournalCommand(CommandJournal.Command command) {
+        replayCommand = command;
+        try {
+            applyCommand(command);
+        } finally {
+            replayCommand = null;
+        }
+    }
+    
+    private void applyCommand(CommandJournal.Command command) {
+        switch (command.op) {
+            case CommandJournal.LIMIT:
+                insertLimitOrder(command.toOrder());
+                break;
+            case CommandJournal.MARKET:
+                insertMarketOrder(command.toOrder());
+                break;
+            case CommandJournal.STOP:
+                insertStopOrder(command.toOrder());
+                break;
+            case CommandJournal.CANCEL:
+                cancelOrder(command.orderId);
+                break;
+        }
+    }
+    
+    //registra il comando nel journal, chiamato sotto il write lock prima di modificare lo stato
+    private void journalOrder(Order order) {
+        if (order.getOrderId() > lastOrderId) lastOrderId = order.getOrderId();
+        if (recovering) return;
+        if (journal != null) {
+            try {
+                journal.appendOrder(order, commandMillis);
+            } catch (IOException e) {
+                Log.error("[CrossServer - journal] Error appending order {} - {}", order.getOrderId(), e.getMessage());
+            }
+        }
+        if (capture != null) {
+            try {
+                capture.appendOrder(order, commandMillis);
+            } catch (IOException e) {
+                Log.error("[CrossServer - capture] Error capturing order {} - {}", order.getOrderId(), e.getMessage());
+            }
+        }
+    }
+    
+    private void journalCancel(int orderId) {
+        if (recovering) return;
+        if (journal != null) {
+            try {
+                journal.appendCancel(orderId, commandMillis);
+            } catch (IOException e) {
+                Log.error("[CrossServer - journal] Error appending cancel {} - {}", orderId, e.getMessage());
+            }
+        }
+        if (capture != null) {
+            try {
+                capture.appendCancel(orderId, commandMillis);
+            } catch (IOException e) {
+                Log.error("[CrossServer - capture] Error capturing cancel {} - {}", orderId, e.getMessage());
+            }
+        }
+    }
+    
+    /*
+    * avvia la cattura dei comandi in dataDir/capture: stato attuale dell'engine piu' tutti i comandi successivi,
+    * fino allo stop del server che scrive l'impronta finale di esecuzioni e book (vedi CommandReplay)
+    * */
+    public void startCapture() throws IOException {
+        rwLock.writeLock().lock();
+        try {
+            if (capture != null) return;
+            capture = CommandCapture.create(Paths.get(dataDir, "capture"), clock.getAsLong(), encodeEngineState());
+            executionDigest = new ExecutionDigest();
+            Log.info("[CrossServer - capture] Capturing engine commands in {}/capture", dataDir);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+    
+    private void finishCapture() {
+        rwLock.writeLock().lock();
+        try {
+            if (capture == null) return;
+            capture.finish(executionDigest, bookDigest());
+            capture.close();
+            Log.info("[CrossServer - capture] Captured {} commands, {} executions", capture.commands(), executionDigest.count());
+        } catch (IOException e) {
+            Log.error("[CrossServer - capture] Error closing command capture - {}", e.getMessage());
+        } finally {
+            capture = null;
+            rwLock.writeLock().unlock();
+        }
+    }
+    
+    //stato dell'engine nel formato degli snapshot, senza sequenza ne' conteggio delle esecuzioni
+    private byte[] encodeEngineState() throws IOException {
+        return EngineSnapshot.encode(0, peekNextOrderId(), engine.getLastPrice(), 0, book.orders(true), book.orders(false), engine.getStopOrders());
+    }
+    
+    //impronta del book, degli stop order, di lastPrice e del prossimo orderId
+    byte[] bookDigest() throws IOException {
+        rwLock.readLock().lock();
+        try {
+            return ExecutionDigest.of(encodeEngineState());
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+    
+    //impronta delle esecuzioni generate da qui in avanti, per il replay
+    ExecutionDigest digestExecutions() {
         rwLock.writeLock().lock();
         try {
-            JsonPersistence.saveUsers(USER_FILE, userMap);
-            JsonPersistence.saveTrades(TRADES_FILE, executedTrades);
-            System.out.println("[CrossServer - persistData] SERVER: COMPLETED PERIODIC DATA SAVE");
-        } finally{
+            executionDigest = new ExecutionDigest();
+            return executionDigest;
+        } finally {
             rwLock.writeLock().unlock();
         }
     }
     
-    //stop server
+    //orologio usato per l'istante dei comandi (e quindi delle esecuzioni), System.currentTimeMillis di default
+    public void setClock(LongSupplier clock) {
+        this.clock = Objects.requireNonNull(clock);
+    }
+    
+    /*
+    * salvataggio dati (utenti, trades eseguiti, stato dell'engine)
+    * il watermark dei trade e la copia degli ordini (EngineSnapshot.capture) vengono presi insieme sotto il read lock,
+    * che ferma il matching solo per una scansione del book (circa 10 ms ogni 100k ordini, metrica snapshotPause);
+    * nello stesso istante il journal ruota su un file gia' aperto. fsync e chiusura del journal precedente,
+    * codifica dello snapshot e scrittura su disco avvengono fuori da ogni lock, sul thread chiamante (scheduler o stop):
+    * prima i trade, poi lo snapshot, cosi' lo storico non e' mai indietro rispetto allo snapshot
+    * */
+    private void persistData() {
+        synchronized (persistLock) {
+            EngineEvents.Persist event = new EngineEvents.Persist();
+            event.begin();
+            long start = System.nanoTime();
+            int watermark;
+            //journalSeq cambia solo qui, sotto persistLock: il prossimo journal viene creato prima del lock
+            long snapshotSeq = journalSeq + 1;
+            CommandJournal next = null;
+            try {
+                next = CommandJournal.open(CommandJournal.path(dataDir, snapshotSeq));
+            } catch (IOException e) {
+                Log.error("[CrossServer - persistData] Engine snapshot failed - {}", e.getMessage());
+            }
+            EngineSnapshot.Image image = null;
+            int nextOrderId = 0;
+            int lastPrice = 0;
+            CommandJournal previous = null;
+            long pauseStart = System.nanoTime();
+            rwLock.readLock().lock();
+            try {
+                watermark = executedTrades.size();
+                if (next != null) {
+                    image = EngineSnapshot.capture(book.orders(true), book.orders(false), engine.getStopOrders(),
+                            engine.getRestingOrders() + engine.getStopOrders().size());
+                    nextOrderId = peekNextOrderId();
+                    lastPrice = engine.getLastPrice();
+                    previous = journal;
+                    journal = next;
+                    journalSeq = snapshotSeq;
+                }
+            } finally {
+                rwLock.readLock().unlock();
+            }
+            long snapshotPause = System.nanoTime() - pauseStart;
+            snapshotPauseTime.record(snapshotPause);
+            //i comandi fino alla rotazione devono essere durevoli prima che lo snapshot li renda superflui
+            if (previous != null) {
+                try {
+                    previous.close();
+                } catch (IOException e) {
+                    Log.error("[CrossServer - persistData] Error closing command journal - {}", e.getMessage());
+                }
+            }
+            byte[] snapshot = null;
+            long encodingStart = System.nanoTime();
+            if (image != null) {
+                try {
+                    snapshot = image.encode(snapshotSeq, nextOrderId, lastPrice, watermark);
+                } catch (IOException e) {
+                    Log.error("[CrossServer - persistData] Engine snapshot failed - {}", e.getMessage());
+                }
+            }
+            long snapshotEncoding = System.nanoTime() - encodingStart;
+            Future<Long> usersSaved = userStore.compact();
+            
+            long bytes = 0;
+            boolean tradesSaved;
+            try {
+                bytes += executedTrades.flush(watermark);
+                tradesSaved = true;
+                //i trade ora su disco fuori dalla finestra lasciano la heap, le query li leggono dai segmenti
+                rwLock.readLock().lock();
+                try {
+                    executedTrades.evict(tradeWindowTrades, tradeWindowMillis, System.currentTimeMillis());
+                } finally {
+                    rwLock.readLock().unlock();
+                }
+            } catch (IOException e) {
+                Log.error("[CrossServer - persistData] Error writing trade segments - {}", e.getMessage());
+                tradesSaved = false;
+            }
+            try {
+                bytes += candles.flush();
+            } catch (IOException e) {
+                Log.error("[CrossServer - persistData] Error writing candles - {}", e.getMessage());
+            }
+            boolean snapshotWritten = false;
+            if (snapshot != null && tradesSaved) {
+                try {
+                    EngineSnapshot.write(EngineSnapshot.path(dataDir, snapshotSeq), snapshot);
+                    bytes += snapshot.length;
+                    snapshotWritten = true;
+                    deleteObsoleteEngineFiles(snapshotSeq);
+                } catch (IOException e) {
+                    //il recovery usera' lo snapshot precedente e tutti i journal successivi
+                    Log.error("[CrossServer - persistData] Error writing engine snapshot - {}", e.getMessage());
+                }
+            }
+            try {
+                long userBytes = usersSaved.get();
+                if (userBytes > 0) bytes += userBytes;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.error("[CrossServer - persistData] Error saving users - {}", e.getMessage());
+            }
+            
+            long elapsed = System.nanoTime() - start;
+            persistTime.record(elapsed);
+            if (event.shouldCommit()) {
+                event.trades = watermark;
+                event.bytes = bytes;
+                event.snapshot = snapshotWritten;
+                event.snapshotPause = snapshotPause;
+                event.snapshotEncoding = snapshotEncoding;
+                event.commit();
+            }
+            lastPersistMillis = elapsed / 1_000_000;
+            lastPersistBytes = bytes;
+            persistCount++;
+            Log.info("[CrossServer - persistData] SERVER: COMPLETED PERIODIC DATA SAVE ({} trades, {} in memory, {} bytes, {} ms)",
+                    watermark, executedTrades.inMemory(), bytes, lastPersistMillis);
+        }
+    }
+    
+    //snapshot e journal precedenti a uno snapshot gia' su disco non servono piu' al recovery
+    private void deleteObsoleteEngineFiles(long snapshotSeq) {
+        try {
+            for (long seq : EngineSnapshot.listSequences(dataDir)) {
+                if (seq < snapshotSeq) Files.deleteIfExists(EngineSnapshot.path(dataDir, seq));
+            }
+            for (long seq : CommandJournal.listSequences(dataDir)) {
+                if (seq < snapshotSeq) Files.deleteIfExists(CommandJournal.path(dataDir, seq));
+            }
+        } catch (IOException e) {
+            Log.error("[CrossServer - persistData] Error deleting obsolete engine files - {}", e.getMessage());
+        }
+    }
+    
+    //dimensione della finestra dei trade in memoria, applicata dal salvataggio successivo
+    public void setTradeWindow(int maxTrades, long maxAgeMillis) {
+        if (maxTrades < 0 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("[CrossServer] Trade window must not be negative");
+        }
+        this.tradeWindowTrades = maxTrades;
+        this.tradeWindowMillis = maxAgeMillis;
+    }
+    
+    //metriche dell'ultimo salvataggio
+    public long getLastPersistMillis() {
+        return lastPersistMillis;
+    }
+    
+    public long getLastPersistBytes() {
+        return lastPersistBytes;
+    }
+    
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+    
+    public RequestPools getRequestPools() {
+        return requestPools;
+    }
+    
+    public OrderTracer getTracer() {
+        return tracer;
+    }
+    
+    public long getPersistCount() {
+        return persistCount;
+    }
+    
+    /*
+    * stop server: prima si fermano le sorgenti di modifiche (nuove connessioni, salvataggi periodici,
+    * comandi accodati o in corso negli executor), poi il salvataggio finale e la chiusura delle risorse.
+    * nessun persistData o ordine puo' quindi scrivere su journal, allocatore di id o store gia' chiusi
+    * */
     public void stop(){
         isRunning = false;
         try{
-            persistData();
             if(serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            stopPersistScheduler();
+            if(!requestPools.drain(STOP_DRAIN_SECONDS, TimeUnit.SECONDS)){
+                Log.warn("[CrossServer - stop] Requests still running after {} s, interrupted", STOP_DRAIN_SECONDS);
+            }
+        } catch (IOException e){
+            Log.error("[CrossServer - stop] Error closing server socket", e);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            Log.warn("[CrossServer - stop] Interrupted while waiting for running requests");
+        }
+        finishCapture();
+        try{
+            persistData();
+            userStore.close();
+            closeJournal();
+            orderIds.close();
+            executedTrades.close();
+            candles.close();
+            analytics.close();
             threadPool.shutdownNow();
             notificationService.terminate();
-            System.out.println("[CrossServer - stop] Server correctly stopped");
+            Log.info("[CrossServer - stop] Server correctly stopped");
         } catch (IOException e){
-            System.err.println("[CrossServer - stop] Error during shutdown of server");
-            e.printStackTrace();
+            Log.error("[CrossServer - stop] Error during shutdown of server", e);
+        }
+    }
+    
+    void closeJournal() {
+        rwLock.writeLock().lock();
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        } catch (IOException e) {
+            Log.error("[CrossServer - stop] Error closing command journal - {}", e.getMessage());
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+    
+    //salvataggi periodici fermati, attesa di quello eventualmente in corso
+    private void stopPersistScheduler() throws InterruptedException {
+        ScheduledExecutorService scheduler = persistScheduler;
+        if(scheduler == null) return;
+        scheduler.shutdown();
+        if(!scheduler.awaitTermination(STOP_DRAIN_SECONDS, TimeUnit.SECONDS)){
+            Log.warn("[CrossServer - stop] Periodic save still running after {} s", STOP_DRAIN_SECONDS);
         }
     }
     
@@ -162,11 +697,11 @@ public class CrossServer {
                 scheduler.shutdownNow();
             }
             threadPool.shutdownNow();
+            requestPools.shutdown();
             notificationService.terminate();
-            System.out.println("[CrossServer - shutdown] Server correctly shut down");
+            Log.info("[CrossServer - shutdown] Server correctly shut down");
         } catch (Exception e){
-            System.err.println("[CrossServer - shutdown] Error during shutdown of resources");
-            e.printStackTrace();
+            Log.error("[CrossServer - shutdown] Error during shutdown of resources", e);
         }
     }
     
@@ -174,8 +709,14 @@ public class CrossServer {
     public boolean isRunning(){
         return isRunning;
     }
-    protected synchronized int getNextOrderId(){
-        return currentOrderId++;
+    //chiamato dai worker prima di ogni ordine, senza lock (vedi OrderIdAllocator)
+    protected int getNextOrderId(){
+        return orderIds.next();
+    }
+    
+    //prossimo id secondo gli ordini arrivati all'engine, letto sotto il lock dell'engine
+    private int peekNextOrderId(){
+        return lastOrderId + 1;
     }
     
     public JsonObject handleRegister(String username, String password){
@@ -188,25 +729,17 @@ public class CrossServer {
             return response;
         }
         
-        rwLock.writeLock().lock();
-        try{
-            // Tentativo atomico di aggiunta utente
-            String previousValue = userMap.putIfAbsent(username, password);
-            if (previousValue != null) {
-                response.addProperty("response", 102);
-                response.addProperty("errorMessage", "[CrossServer - register] Username unavailable");
-                return response;
-            }
-        } finally {
-            rwLock.writeLock().unlock();
+        // Tentativo atomico di aggiunta utente (putIfAbsent), il nuovo account viene accodato al log utenti.
+        // nessun lock: un account nuovo non puo' essere loggato, il matching non viene mai fermato
+        if (!userStore.register(username, password)) {
+            response.addProperty("response", 102);
+            response.addProperty("errorMessage", "[CrossServer - register] Username unavailable");
+            return response;
         }
         
         response.addProperty("response",100);
         response.addProperty("errorMessage", "OK");
         
-        //salva gli utenti aggiornati
-        persistData();
-        
         return response;
     }
     
@@ -214,17 +747,11 @@ public class CrossServer {
     public JsonObject handleLogin(String username, String password, String udpIp, int udpPort){
         JsonObject response = new JsonObject();
         
-        //acquisizione readLock prima di lettura
-        rwLock.readLock().lock();
-        try{
-            //verifica esistenza utente/validita' password
-            if(!userMap.containsKey(username) || !userMap.get(username).equals(password)) {
-                response.addProperty("response",101);
-                response.addProperty("errorMessage", "[CrossServer - login] Username/password mismatch");
-                return response;
-            }
-        } finally {
-            rwLock.readLock().unlock();
+        //lettura ottimistica, fuori dal lock dell'engine: valida se nessun cambio password e' avvenuto nel frattempo
+        long stamp = accountLock.tryOptimisticRead();
+        //verifica esistenza utente/validita' password
+        if(!userStore.checkPassword(username, password)) {
+            return loginMismatch(response);
         }
         
         //verifica se l'utente e' gia' loggato se no, aggiungi. concurrentHashMap.newKeySet().add funziona come putIfAbsent
@@ -234,15 +761,32 @@ public class CrossServer {
             return response;
         }
         
+        //cambio password concorrente: la verifica viene ripetuta dopo la sua conclusione
+        if(!accountLock.validate(stamp)) {
+            stamp = accountLock.readLock();
+            try {
+                if(!userStore.checkPassword(username, password)) {
+                    loggedUsers.remove(username);
+                    return loginMismatch(response);
+                }
+            } finally {
+                accountLock.unlockRead(stamp);
+            }
+        }
+        
         //registra info per notifica
         registerNotification(username,udpIp,udpPort);
         
+        //login di sessione: nessuno stato persistente cambia, nessun I/O su disco
         response.addProperty("response",100);
         response.addProperty("errorMessage", "OK");
         
-        //salva dati aggiornati
-        persistData();
-        
+        return response;
+    }
+    
+    private static JsonObject loginMismatch(JsonObject response){
+        response.addProperty("response",101);
+        response.addProperty("errorMessage", "[CrossServer - login] Username/password mismatch");
         return response;
     }
     
@@ -262,7 +806,6 @@ public class CrossServer {
         response.addProperty("response",100);
         response.addProperty("errorMessage", "OK");
         
-        persistData();
         return response;
     }
     
@@ -270,7 +813,8 @@ public class CrossServer {
     public JsonObject handleUpdateCredentials(String username, String oldPassword, String newPassword){
         JsonObject response = new JsonObject();
         
-        rwLock.writeLock().lock();
+        //lock degli account: serializza il cambio password con la verifica dei login, non con il matching
+        long stamp = accountLock.writeLock();
         try{
             //controllo password nuova
             if(newPassword.equals(oldPassword)) {
@@ -293,7 +837,8 @@ public class CrossServer {
                 response.addProperty("errorMessage", "[CrossServer - update] Username currently logged in");
                 return response;
             }
-            boolean updated = userMap.replace(username,oldPassword,newPassword);
+            //solo l'account modificato viene accodato al log utenti
+            boolean updated = userStore.updatePassword(username,oldPassword,newPassword);
             if(!updated){
                 response.addProperty("response",102);
                 response.addProperty("errorMessage", "OK");
@@ -302,74 +847,63 @@ public class CrossServer {
             response.addProperty("response",100);
             response.addProperty("errorMessage", "[CrossServer - update] Username or old password mismatch");
             
-            
-            persistData();
-            
             return response;
             
             } finally {
-            rwLock.writeLock().unlock();
+            accountLock.unlockWrite(stamp);
         }
     }
     public void insertLimitOrder(Order order){
-        rwLock.writeLock().lock();
+        EngineEvents.OrderAccepted event = new EngineEvents.OrderAccepted();
+        event.begin();
+        long lockWait = lockForOrderEntry();
         try{
-            matchLimitOrder(order);
-            if(order.getRemainingSize() > 0){
-            addToBook(order);
+            journalOrder(order);
+            long start = System.nanoTime();
+            try {
+                engine.insertLimitOrder(order);
+            } finally {
+                endMatch(start);
             }
+            commitAccepted(event, order, lockWait);
         } finally {
+            publishMarketView();
             rwLock.writeLock().unlock();
         }
     }
     
     public boolean insertMarketOrder(Order order){
-        rwLock.writeLock().lock();
+        EngineEvents.OrderAccepted event = new EngineEvents.OrderAccepted();
+        event.begin();
+        long lockWait = lockForOrderEntry();
         try {
-            //verifica se il marketOder puo' essere eseguito completamente
-            int totalAvailableSize = 0;
-            if (order.getType().equals("ask")) {
-                for (Map.Entry<Integer, ConcurrentLinkedQueue<Order>> entry : bidBook.entrySet()) {
-                    for (Order bidOrder : entry.getValue()) {
-                        totalAvailableSize += bidOrder.getRemainingSize();
-                        if (totalAvailableSize >= order.getSize()) {
-                            break;
-                        }
-                    }
-                    if (totalAvailableSize >= order.getSize()) {
-                        break;
-                    }
-                }
-            } else { //lato bid
-                for (Map.Entry<Integer, ConcurrentLinkedQueue<Order>> entry : askBook.entrySet()) {
-                    for (Order askOrder : entry.getValue()) {
-                        totalAvailableSize += askOrder.getRemainingSize();
-                        if (totalAvailableSize >= order.getSize()) {
-                            break;
-                        }
-                    }
-                    if (totalAvailableSize >= order.getSize()) {
-                        break;
-                    }
-                }
-            }
-            if (totalAvailableSize < order.getSize()) {
-                //ordine scartato
-                System.out.println("[CrossServer - insertMarket] Market Order discarded: size not fully executable");
-                return false;
+            journalOrder(order);
+            //scartato dall'engine se non completamente eseguibile
+            long start = System.nanoTime();
+            boolean executed;
+            try {
+                executed = engine.insertMarketOrder(order);
+            } finally {
+                endMatch(start);
             }
-            matchLimitOrder(order);
-            return true;
+            if (executed) commitAccepted(event, order, lockWait);
+            return executed;
         } finally {
+            publishMarketView();
             rwLock.writeLock().unlock();
         }
     }
     
     public void insertStopOrder(Order order){
-        rwLock.writeLock().lock();
+        EngineEvents.OrderAccepted event = new EngineEvents.OrderAccepted();
+        event.begin();
+        long lockWait = lockForOrderEntry();
         try{
-            stopOrders.add(order);
+            journalOrder(order);
+            engine.insertStopOrder(order);
+            commitAccepted(event, order, lockWait);
         } finally {
+            publishMarketView();
             rwLock.writeLock().unlock();
         }
     }
@@ -377,291 +911,110 @@ public class CrossServer {
     // rimuove un ordine (non eseguito) dal book o dalla lista stop.
     // ritorna true se trovato e rimosso, altrimenti false
     public boolean cancelOrder(int orderId) {
-        rwLock.writeLock().lock();
+        lockForOrderEntry();
         try {
-            //dalla book
-            boolean removed = removeFromBook(orderId, askBook);
-            if (!removed) removed = removeFromBook(orderId, bidBook);
-            if (!removed) removed = removeFromStopOrders(orderId); //dalla list stop
-            return removed;
+            journalCancel(orderId);
+            return engine.cancelOrder(orderId);
         } finally {
+            publishMarketView();
             rwLock.writeLock().unlock();
         }
     }
     
+    //write lock per l'inserimento/cancellazione, con il tempo di attesa nelle metriche; ritorna l'attesa in ns.
+    //fissa anche l'istante del comando (non decrescente rispetto allo storico), usato dall'engine
+    private long lockForOrderEntry(){
+        long start = System.nanoTime();
+        rwLock.writeLock().lock();
+        long now = replayCommand != null ? replayCommand.millis : clock.getAsLong();
+        commandMillis = Math.max(now, executedTrades.lastTimestamp());
+        long wait = System.nanoTime() - start;
+        lockWaitTime.record(wait);
+        tracer.lockAcquired();
+        return wait;
+    }
     
-    /*matching di limit order
-    * selling: type = ask, to be get matched, best bidding(buying) price should be greater or equal than asking(selling) price,
-    * therefore bestBid >= askPrice
-    *
-    * buying: type = bid, to be get matched, best asking(selling) price should be lesser or equal than bidding(buying) price,
-    * therefor bestAsk <= bidPrice
-    */
-    private void matchLimitOrder(Order incoming){
-        //lock gia' acquisita dal chiamante (writelock)
-        //caso ask (vendita)
-        if(incoming.getType().equals("ask")){
-            while(incoming.getRemainingSize() > 0) {
-                //finche esiste ordine, vado a prendere il primo nell bidBook (quindi matching con il valore massimo di bid (offerta))
-                Map.Entry<Integer, ConcurrentLinkedQueue<Order>> bestBidEntry = bidBook.firstEntry();
-                if (bestBidEntry == null) break; //no bid
-                
-                int bestBidPrice = bestBidEntry.getKey();
-                if (bestBidPrice < incoming.getPrice()) {
-                    //matching avviene sse il prezzo di vendita (ask, incoming.getPrice()) e' maggiore o uguale al prezzo piu' alto di offerta
-                    //matching fallito
-                    break;
-                }
-                //prendo la lista di vendita abilitata di bestBidPrice
-                ConcurrentLinkedQueue<Order> list = bestBidEntry.getValue();
-                
-                //controlla se ci sono gli ordini al bestBidPrice
-                if(list.isEmpty()){
-                    bidBook.remove(bestBidPrice);
-                    continue; //nel caso affermativo, passa al prossimo prezzo
-                }
-                
-                //visto che non e' vuoto, prendi il primo della lista
-                Order topBid = list.peek();
-                
-                //calcola tradeSize, ovvero la size di ordine da matchare
-                int tradeSize = Math.min(incoming.getRemainingSize(),topBid.getRemainingSize());
-                executeTrade(topBid,incoming,bestBidPrice,tradeSize);
-               
-                //se il volume dell'ordine e' vuota allora elimina l'ordine dalla lista
-                if(topBid.getRemainingSize() == 0){
-                    list.poll();
-                    if(list.isEmpty()){
-                        bidBook.remove(bestBidEntry.getKey());
-                    }
-                }
-            }
-        } else {
-            //caso bid, logica uguale alla precedente
-            while(incoming.getRemainingSize() > 0) {
-                Map.Entry<Integer, ConcurrentLinkedQueue<Order>> bestAskEntry = askBook.firstEntry();
-                if (bestAskEntry == null) break;
-                int bestAskPrice = bestAskEntry.getKey();
-                ConcurrentLinkedQueue<Order> list = bestAskEntry.getValue();
-                if(list.isEmpty()){
-                    askBook.remove(bestAskEntry.getKey());
-                    continue;
-                }
-                Order topAsk = list.peek();
-                int tradeSize = Math.min(incoming.getRemainingSize(),topAsk.getRemainingSize());
-                executeTrade(incoming,topAsk,bestAskPrice,tradeSize);
-                
-                
-                if(topAsk.getRemainingSize() == 0){
-                    list.poll();
-                    if(list.isEmpty()){
-                        askBook.remove(bestAskEntry.getKey());
-                    }
-                }
-            }
-        }
+    //evento JFR dell'ordine accettato, sotto il write lock (remainingSize non e' ancora cambiato da altri thread)
+    private static void commitAccepted(EngineEvents.OrderAccepted event, Order order, long lockWait){
+        if(!event.shouldCommit()) return;
+        event.orderId = order.getOrderId();
+        event.side = order.getType();
+        event.orderType = order.getOrderType();
+        event.price = order.getPrice();
+        event.size = order.getSize();
+        event.remainingSize = order.getRemainingSize();
+        event.lockWait = lockWait;
+        event.commit();
     }
     
-    /*
-     matching di market order, price = 0
-    * selling: type = ask => contro i bid
-    * buying: type = bid => contro gli ask
-    * */
-    private void matchMarketOrder(Order incoming){
-        //lock gia' acquisita dal chiamante (writelock)
-        if(incoming.getType().equals("ask")){
-            while(incoming.getRemainingSize() > 0) {
-                Map.Entry<Integer, ConcurrentLinkedQueue<Order>> bestBidEntry = bidBook.firstEntry();
-                if (bestBidEntry == null) {
-                    System.out.println("[CrossServer - matchMarket] No bids available to match the market ask order");
-                    break;
-                }
-                
-                ConcurrentLinkedQueue<Order> list = bestBidEntry.getValue();
-                if(list.isEmpty()){
-                    bidBook.remove(bestBidEntry.getKey());
-                    continue;
-                }
-                
-                Order topBid = list.peek();
-                int tradeSize = Math.min(incoming.getRemainingSize(),topBid.getRemainingSize());
-                System.out.println("Matching market ask order with bid price: " + bestBidEntry.getKey() + " | Trade size: " + tradeSize);
-                executeTrade(topBid,incoming,bestBidEntry.getKey(),tradeSize);
-                
-                if(topBid.getRemainingSize() == 0){
-                    list.poll();
-                    if(list.isEmpty()){
-                        bidBook.remove(bestBidEntry.getKey());
-                    }
-                }
-            }
-        } else {
-            //type bid
-            while(incoming.getRemainingSize() > 0){
-                Map.Entry<Integer, ConcurrentLinkedQueue<Order>> bestAskEntry = askBook.firstEntry();
-                if (bestAskEntry == null) {
-                    System.out.println("[CrossServer - matchMarket] No bids available to match the market bid order");
-                    break;
-                }
-                ConcurrentLinkedQueue<Order> list = bestAskEntry.getValue();
-                if(list.isEmpty()){
-                    askBook.remove(bestAskEntry.getKey());
-                    continue;
-                }
-                
-                Order topAsk = list.peek();
-                int tradeSize = Math.min(incoming.getRemainingSize(),topAsk.getRemainingSize());
-                System.out.println("Matching market bid order with ask price: " + bestAskEntry.getKey() + " | Trade size: " + tradeSize);
-                executeTrade(incoming,topAsk,bestAskEntry.getKey(),tradeSize);
-                
-                if(topAsk.getRemainingSize() == 0){
-                    list.poll();
-                    if(list.isEmpty()){
-                        askBook.remove(bestAskEntry.getKey());
-                    }
-                }
-                
-            }
-        }
+    //nuova vista del mercato, sotto il write lock a fine comando (peek in tempo costante sul livello migliore)
+    private void publishMarketView(){
+        Order bid = book.peek(false);
+        Order ask = book.peek(true);
+        marketView = new MarketView(bid == null ? 0 : bid.getPrice(), ask == null ? 0 : ask.getPrice(),
+                engine.getLastPrice(), engine.getRestingOrders(), engine.getStopOrders().size());
     }
     
-    //ogni volta che cambia lastPrice, controlliamo se scatta qualche stopOrder
-    private void checkStopOrders(){
-        rwLock.writeLock().lock();
-        try{
-            Iterator<Order> iterator = stopOrders.iterator();
-            while(iterator.hasNext()){
-                Order order = iterator.next();
-                try{
-                if(order.getType().equals("ask")){
-                    System.out.println("Activating Stop Ask Order ID: " + order.getOrderId() + " | Size: " + order.getRemainingSize() + " | Stop Price: " + order.getPrice());
-                    //lastPrice <= stopPrice
-                    if(lastPrice <= order.getPrice()){
-                        int totalAvailable = 0;
-                        for(Map.Entry<Integer, ConcurrentLinkedQueue<Order>> entry : bidBook.entrySet()){
-                            for(Order bidOrder : entry.getValue()){
-                                totalAvailable += bidOrder.getRemainingSize();
-                                if(totalAvailable >= order.getRemainingSize()){
-                                    break;
-                                }
-                            }
-                            if(totalAvailable >= order.getRemainingSize()){
-                                break;
-                            }
-                        }
-                        if(totalAvailable < order.getRemainingSize()){
-                            System.out.println("[CrossServer - checkStop] Stop Ask Order ID: " + order.getOrderId() +
-                                    " discarded: size not fully executable (required: " + order.getRemainingSize() +
-                                    ", available: " + totalAvailable + ")");
-                            iterator.remove();
-                        } else{
-                        //converti in market, price = 0 va bene perche' il prezzo sara' quello del mercato
-                        Order market = new Order(order.getOrderId(), "ask", order.getRemainingSize(), 0, "market", order.getOwner());
-                        iterator.remove();
-                        matchMarketOrder(market);
-                        }
-                    }
-                } else {
-                    //type: bid, scatta se lastPrice >= stopPrice
-                    if(lastPrice >= order.getPrice()) {
-                        int totalAvailable = 0;
-                        for (Map.Entry<Integer, ConcurrentLinkedQueue<Order>> entry : askBook.entrySet()) {
-                            for (Order askOrder : entry.getValue()) {
-                                totalAvailable += askOrder.getRemainingSize();
-                                if (totalAvailable >= order.getRemainingSize()) {
-                                    break;
-                                }
-                            }
-                            if (totalAvailable >= order.getRemainingSize()) {
-                                break;
-                            }
-                        }
-                        if (totalAvailable < order.getRemainingSize()) {
-                            System.out.println("[CrossServer - checkStop] Stop Bid Order ID: " + order.getOrderId() +
-                                    " discarded: size not fully executable (required: " + order.getRemainingSize() +
-                                    ", available: " + totalAvailable + ")");
-                            iterator.remove();
-                        } else {
-                            System.out.println("Activating Stop Bid Order ID: " + order.getOrderId() + " | Size: " + order.getRemainingSize() + " | Stop Price: " + order.getPrice());
-                            Order market = new Order(order.getOrderId(), "bid", order.getRemainingSize(), 0, "market", order.getOwner());
-                            iterator.remove();
-                            matchMarketOrder(market);
-                        }
-                    }
-                }
-                } catch (Exception e) {
-                    System.err.println("[CrossServer - checkStop] checkStopOrders: Exception while checking stop orders - " + e.getMessage());
-                    e.printStackTrace();
-                }
-            }
-        } finally {
-            rwLock.writeLock().unlock();
-        }
+    //ultima vista del mercato pubblicata, senza lock
+    public MarketView getMarketView(){
+        return marketView;
     }
     
-    //esecuzione trade di dimensione tradeSize al prezzo price, tra un orderAsk e un orderBid
-    private void executeTrade(Order bidSide, Order askSide, int price, int tradeSize){
-        //gia' protetto dal write lock del chiamante (matchLimitOrder/matchMarketOrder)
-        //assumiamo che bidSide sia sempre "bid" e askSide sia sempre "ask", garantita dal matching
-        try{
-        //esecuzione fill
-        bidSide.fill(tradeSize);
-        askSide.fill(tradeSize);
-        
-        //lastprice
-        lastPrice= price;
-        System.out.println("Trade executed: Bid ID=" + bidSide.getOrderId() + " | Ask ID=" + askSide.getOrderId() + " | Price=" + price + " | Size=" + tradeSize);
-        
-        //stopcheck
-        checkStopOrders();
-        
-        
-        long timeStamp = System.currentTimeMillis();
-        
-        //creazione oggetto trade lato bid
-        Trade bidTrade = new Trade(
-                bidSide.getOrderId(),  // orderId
-                "bid",                 // type
-                bidSide.getOrderType(),// orderType
-                tradeSize,             // size
-                price,                 // price
-                timeStamp);            //timestamp
-        
-        //creazione oggetto trade lato ask
-        Trade askTrade = new Trade(
-                askSide.getOrderId(),  // orderId
-                "ask",                 // type
-                askSide.getOrderType(),// orderType
-                tradeSize,             // size
-                price,                 // price
-                timeStamp);            //timestamp
-        
-        //salavtaggio ordine nello salavataggio
-        rwLock.writeLock().lock();
-        try{
-            executedTrades.add(bidTrade);
-            executedTrades.add(askTrade);
-        } finally {
-            rwLock.writeLock().unlock();
-        }
+    //durata del matching nelle metriche (comprende esecuzioni, notifiche e stop attivati)
+    private void endMatch(long start){
+        matchingTime.record(System.nanoTime() - start);
+        tracer.matched();
+    }
+    
+    //esecuzione generata dall'engine, sotto il write lock del comando: storico, candele, impronta della cattura, notifiche
+    private void recordExecution(Order bidSide, Order askSide, int price, int tradeSize, boolean askAggressor, long commandTime){
+        //timestamp non decrescenti: lo storico resta ordinato per tempo
+        long timeStamp = Math.max(commandTime, executedTrades.lastTimestamp());
         
-        //invio notifica via UDP
-        notifyTradeExecution(bidSide,askSide,bidTrade);
-        notifyTradeExecution(bidSide,askSide,askTrade);
-        } catch (Exception e){
-            System.err.println("[CrossServer - executeTrade] Exception during trade execution - " + e.getMessage());
-            e.printStackTrace();
+        //salavtaggio esecuzione nello storico: un solo record per entrambi i lati
+        OwnerTable owners = executedTrades.owners();
+        Execution execution = new Execution(timeStamp, price, tradeSize, bidSide.getOrderId(), askSide.getOrderId(),
+                owners.intern(bidSide.getOwner()), owners.intern(askSide.getOwner()),
+                Execution.flags(askAggressor, bidSide.getOrderType(), askSide.getOrderType()));
+        if(replaySkipTrades > 0){
+            //esecuzione rigenerata dal replay e gia' presente nello storico
+            replaySkipTrades--;
+        } else {
+            executedTrades.append(execution);
+            candles.update(timeStamp, price, tradeSize);
+            tradeGeneration++;
+        }
+        if(executionDigest != null && !recovering){
+            executionDigest.update(timeStamp, price, tradeSize, bidSide.getOrderId(), askSide.getOrderId(),
+                    bidSide.getOwner(), askSide.getOwner(), execution.getFlags());
         }
+        
+        //durante il recovery le notifiche sono gia' state inviate prima del riavvio
+        if(recovering) return;
+        
+        //invio notifica via UDP, una vista Trade per lato
+        notifyTradeExecution(bidSide,askSide,execution.bidView());
+        notifyTradeExecution(bidSide,askSide,execution.askView());
     }
     
-    
+
     public void notifyTradeExecution(Order bid, Order ask, Trade trade) {
         //recuperiamo owner
         String user = trade.getType().equals("bid") ? bid.getOwner() : ask.getOwner();
         
         ClientNotificationInfo info = clientNotifications.get(user);
         if(info != null){
-            notificationService.sendNotificiation(info,buildTradeNotificationJson(trade, trade.getType().toUpperCase()));
+            if(!notificationService.sendNotificiation(info,buildTradeNotificationJson(trade, trade.getType().toUpperCase()))){
+                EngineEvents.NotificationDropped dropped = new EngineEvents.NotificationDropped();
+                if(dropped.shouldCommit()){
+                    dropped.orderId = trade.getOrderId();
+                    dropped.price = trade.getPrice();
+                    dropped.size = trade.getSize();
+                    dropped.destination = info.ip + ":" + info.port;
+                    dropped.commit();
+                }
+            }
+            tracer.notificationSent();
         }
         
     }
@@ -680,52 +1033,6 @@ public class CrossServer {
         return gson.toJson(root);
     }
     
-    //aggiunge un limitOrder non completamente evaso al book corrispondente
-    private void addToBook(Order order){
-        //protetto da writeLock del chiamante
-        if(order.getType().equals("ask")){
-            askBook.computeIfAbsent(order.getPrice(), k -> new ConcurrentLinkedQueue<>()).add(order);
-        } else {
-            bidBook.computeIfAbsent(order.getPrice(), k -> new ConcurrentLinkedQueue<>()).add(order);
-        }
-    }
-    
-    //rimuove un ordine dal book, se presente e non completamente eseguito
-    private boolean removeFromBook(int OrderId, ConcurrentSkipListMap<Integer, ConcurrentLinkedQueue<Order>> book){
-        //lock gia' acquisito
-        for(Map.Entry<Integer,ConcurrentLinkedQueue<Order>> entry: book.entrySet()){
-            ConcurrentLinkedQueue<Order> list = entry.getValue();
-            //rimuoviamo se troviamo l'ordine
-            Iterator<Order> iterator = list.iterator();
-            while(iterator.hasNext()){
-                Order order = iterator.next();
-                if(order.getOrderId() == OrderId && order.getRemainingSize()>0){
-                    iterator.remove();
-                    if(list.isEmpty()){
-                        book.remove(order.getPrice());
-                    }
-                    return true;
-                }
-            }
-        
-        }
-        return false;
-    }
-    
-
-    private boolean removeFromStopOrders(int orderId){
-        //lock gia' acquisto
-            Iterator<Order> iterator = stopOrders.iterator();
-            while(iterator.hasNext()){
-                Order order = iterator.next();
-                if(order.getOrderId() == orderId && order.getRemainingSize()>0){
-                    iterator.remove();
-                    return true;
-                }
-            }
-        return false;
-    }
-    
     public Gson getGson() {
         return gson;
     }
@@ -747,12 +1054,54 @@ public class CrossServer {
     
     
     public Map<String,OHLC> getPriceHistory(String monthYear){
+        YearMonth yearMonth = parseMonthYear(monthYear);
+        return yearMonth == null ? Collections.emptyMap() : getPriceHistory(yearMonth);
+    }
+    
+    /*
+    * risposta getPriceHistory gia' codificata, dalla cache: i mesi conclusi non cambiano piu'
+    * (i timestamp dei trade non decrescono), il mese corrente scade dopo HISTORY_TTL_MILLIS
+    * o al primo trade eseguito dopo la codifica
+    * */
+    public ResponseCache.Response getPriceHistoryResponse(String monthYear){
+        YearMonth yearMonth = parseMonthYear(monthYear);
+        if(yearMonth == null) return encodeHistory(Collections.emptyMap());
+        //mese chiuso secondo il tempo dell'engine, non l'orologio di sistema: i timestamp delle esecuzioni non
+        //decrescono, quindi dopo un'esecuzione oltre la fine del mese nessun'altra puo' cadere nel mese
+        //(anche con un comando iniziato prima della mezzanotte o con l'orologio iniettato del replay)
+        long monthEnd = yearMonth.plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        boolean closed = executedTrades.lastTimestamp() >= monthEnd;
+        return historyCache.get(yearMonth, closed ? ResponseCache.IMMUTABLE : HISTORY_TTL_MILLIS,
+                closed ? 0 : tradeGeneration, () -> encodeHistory(getPriceHistory(yearMonth)));
+    }
+    
+    private ResponseCache.Response encodeHistory(Map<String, OHLC> history){
+        JsonObject response = new JsonObject();
+        int code;
+        if(history.isEmpty()){
+            code = 107;
+            response.addProperty("response", code);
+            response.addProperty("errorMessage", "[WorkerThread - history] No data available for the specified month and year");
+        } else {
+            code = 100;
+            response.addProperty("response", code);
+            response.add("priceHistory", gson.toJsonTree(history).getAsJsonObject());
+        }
+        return new ResponseCache.Response(code, response.toString());
+    }
+    
+    public ResponseCache<YearMonth> getHistoryCache() {
+        return historyCache;
+    }
+    
+    //null se il formato non e' valido
+    private static YearMonth parseMonthYear(String monthYear){
         // formato messaggio "MMYYYY"
         // estrazione i primi 2 caratteri come mese, i successivi 4 come anno
         if(monthYear.length() != 6){
             //se non rispetta la lunghezza 6
             //error gestione
-            return Collections.emptyMap();
+            return null;
         }
         
         String mmString = monthYear.substring(0,2);
@@ -764,35 +1113,96 @@ public class CrossServer {
             month = Integer.parseInt(mmString);
             year = Integer.parseInt(yyyyString);
         } catch (NumberFormatException e){
-            return Collections.emptyMap();
+            return null;
         }
         
         if (month <1 || month >12){
-            System.out.println("Invalid month value: "+ month);
-            return Collections.emptyMap();
+            Log.warn("[CrossServer - getPriceHistory] Invalid month value: {}", month);
+            return null;
         }
-        Map<String,OHLC> dailyMap = new TreeMap<>();
-        
-        synchronized (executedTrades){
-            for (Trade t: executedTrades){
-                Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-                cal.setTimeInMillis(t.getTimestamp());
-                
-                int y = cal.get(Calendar.YEAR);
-                int m = cal.get(Calendar.MONTH) + 1;  // inizia da 0
-                int d = cal.get(Calendar.DAY_OF_MONTH);
-                
-                if(y == year && m == month){
-                    //formattiamo YYYY-MM-DD
-                    String dayString = String.format("%04d-%02d-%02d",y,m,d);
-                    OHLC ohlc = dailyMap.getOrDefault(dayString,new OHLC());
-                    ohlc.update(t.getPrice());
-                    dailyMap.put(dayString,ohlc);
-                    System.out.println("Processed trade for day: " + dayString + " | Price: " + t.getPrice());
-                }
+        return YearMonth.of(year, month);
+    }
+    
+    private Map<String,OHLC> getPriceHistory(YearMonth yearMonth){
+        //candele giornaliere precalcolate del mese: O(giorni), nessuna lettura dei trade
+        long from = yearMonth.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        long to = yearMonth.plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        Map<String, OHLC> history = new TreeMap<>();
+        try {
+            for (Candle candle : candles.candles(CandleResolution.D1, from, to, 31)) {
+                OHLC ohlc = new OHLC();
+                ohlc.open = candle.open;
+                ohlc.high = candle.high;
+                ohlc.low = candle.low;
+                ohlc.close = candle.close;
+                ohlc.volume = candle.volume;
+                history.put(LocalDate.ofEpochDay(Math.floorDiv(candle.time, CandleResolution.D1.getMillis())).toString(), ohlc);
             }
+        } catch (IOException e) {
+            Log.error("[CrossServer - getPriceHistory] Error reading candles - {}", e.getMessage());
+            return Collections.emptyMap();
+        }
+        return history;
+    }
+    
+    //candele della risoluzione che intersecano [from, to), al massimo limit
+    public List<Candle> getCandles(CandleResolution resolution, long from, long to, int limit) throws IOException {
+        return candles.candles(resolution, from, to, limit);
+    }
+    
+    public static final int MAX_TRADES_PAGE = 1000;
+    
+    /*
+    * trade con timestamp in [from, to), a pagine di al massimo limit trade.
+    * ogni esecuzione produce i Trade dei suoi lati (bid poi ask), una pagina contiene solo esecuzioni intere.
+    * cursor: posizione da cui riprendere (nextCursor della pagina precedente), -1 per la prima pagina.
+    * gli estremi si trovano con l'indice temporale, vengono lette solo le esecuzioni della pagina
+    * */
+    public TradePage getTrades(long from, long to, int limit, long cursor){
+        limit = Math.max(2, Math.min(limit, MAX_TRADES_PAGE));
+        int start = executedTrades.lowerBound(from);
+        int end = executedTrades.lowerBound(to);
+        if(cursor > start) start = (int) Math.min(cursor, end);
+        List<Trade> trades = new ArrayList<>(Math.min(limit, 2 * (end - start)));
+        int i = start;
+        for(; i < end && trades.size() + 2 <= limit; i++){
+            trades.addAll(executedTrades.get(i).sides());
+        }
+        int pageEnd = i;
+        return new TradePage(trades, pageEnd < end ? pageEnd : -1);
+    }
+    
+    //aggregazioni sui trade con timestamp in [from, to), fasce di prezzo larghe priceBucket; null se le fasce sono troppe
+    public TradeAnalytics.Result getAnalytics(long from, long to, int priceBucket){
+        return analytics.analyze(from, to, priceBucket);
+    }
+    
+    //stato del mercato a fine di un comando: miglior bid/ask (0 se il lato e' vuoto), lastPrice, ordini a riposo e stop
+    public static class MarketView {
+        public final int bestBid;
+        public final int bestAsk;
+        public final int lastPrice;
+        public final int restingOrders;
+        public final int stopOrders;
+        
+        public MarketView(int bestBid, int bestAsk, int lastPrice, int restingOrders, int stopOrders) {
+            this.bestBid = bestBid;
+            this.bestAsk = bestAsk;
+            this.lastPrice = lastPrice;
+            this.restingOrders = restingOrders;
+            this.stopOrders = stopOrders;
+        }
+    }
+    
+    //pagina di getTrades, nextCursor = -1 se non ci sono altri trade nell'intervallo
+    public static class TradePage {
+        public final List<Trade> trades;
+        public final long nextCursor;
+        
+        public TradePage(List<Trade> trades, long nextCursor) {
+            this.trades = trades;
+            this.nextCursor = nextCursor;
         }
-        return dailyMap;
     }
     
     /**
@@ -803,8 +1213,9 @@ public class CrossServer {
         public int high = -1;
         public int low = -1;
         public int close = -1;
+        public long volume = 0;
         
-        public void update(int price) {
+        public void update(int price, int size) {
             if (open < 0) {
                 open = price;
                 close = price;
@@ -815,6 +1226,17 @@ public class CrossServer {
                 if (price < low) low = price;
                 close = price;
             }
+            volume += size;
+        }
+        
+        public OHLC copy() {
+            OHLC copy = new OHLC();
+            copy.open = open;
+            copy.high = high;
+            copy.low = low;
+            copy.close = close;
+            copy.volume = volume;
+            return copy;
         }
     }
     
@@ -0,0 +1,120 @@
+package cross.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+* eventi JDK Flight Recorder dell'engine, categoria "CROSS", disattivati di default:
+* si abilitano con le impostazioni JFR standard, ad esempio
+*   java -XX:StartFlightRecording=settings=profile,cross.OrderAccepted#enabled=true,... cross.server.ServerMain
+* oppure con un file .jfc. con gli eventi spenti begin/shouldCommit non registrano nulla e i campi non vengono scritti.
+* le durate (begin/end dell'evento) sono misurate dal thread che gestisce l'ordine o il salvataggio
+* */
+public final class EngineEvents {
+
+    private EngineEvents() {
+    }
+
+    @Name("cross.OrderAccepted")
+    @Label("Order Accepted")
+    @Category("CROSS")
+    @Description("Order accepted by the engine: duration covers lock wait, matching and book insertion")
+    @StackTrace(false)
+    public static class OrderAccepted extends Event {
+        @Label("Order Id")
+        public int orderId;
+        @Label("Side")
+        public String side;
+        @Label("Order Type")
+        public String orderType;
+        @Label("Price")
+        public int price;
+        @Label("Size")
+        public int size;
+        @Label("Remaining Size")
+        public int remainingSize;
+        @Label("Lock Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        public long lockWait;
+    }
+
+    @Name("cross.TradeExecuted")
+    @Label("Trade Executed")
+    @Category("CROSS")
+    @Description("Single fill between a bid and an ask order, duration covers stop checks, history and notifications")
+    @StackTrace(false)
+    public static class TradeExecuted extends Event {
+        @Label("Bid Order Id")
+        public int bidOrderId;
+        @Label("Ask Order Id")
+        public int askOrderId;
+        @Label("Price")
+        public int price;
+        @Label("Size")
+        public int size;
+        @Label("Ask Aggressor")
+        public boolean askAggressor;
+    }
+
+    @Name("cross.StopActivated")
+    @Label("Stop Activated")
+    @Category("CROSS")
+    @Description("Stop order triggered by the last price and executed as a market order")
+    @StackTrace(false)
+    public static class StopActivated extends Event {
+        @Label("Order Id")
+        public int orderId;
+        @Label("Side")
+        public String side;
+        @Label("Stop Price")
+        public int price;
+        @Label("Size")
+        public int size;
+        @Label("Last Price")
+        public int lastPrice;
+        @Label("Executed")
+        public boolean executed;
+    }
+
+    @Name("cross.Persist")
+    @Label("Persist")
+    @Category("CROSS")
+    @Description("Periodic save: start and end of the event are the start and end of the save")
+    @StackTrace(false)
+    public static class Persist extends Event {
+        @Label("Trades")
+        public int trades;
+        @Label("Bytes Written")
+        public long bytes;
+        @Label("Snapshot Written")
+        public boolean snapshot;
+        @Label("Snapshot Pause")
+        @Description("Engine read lock held to copy the orders and rotate the journal")
+        @Timespan(Timespan.NANOSECONDS)
+        public long snapshotPause;
+        @Label("Snapshot Encoding")
+        @Timespan(Timespan.NANOSECONDS)
+        public long snapshotEncoding;
+    }
+
+    @Name("cross.NotificationDropped")
+    @Label("Notification Dropped")
+    @Category("CROSS")
+    @Description("UDP trade notification that could not be sent")
+    @StackTrace(false)
+    public static class NotificationDropped extends Event {
+        @Label("Order Id")
+        public int orderId;
+        @Label("Price")
+        public int price;
+        @Label("Size")
+        public int size;
+        @Label("Destination")
+        public String destination;
+    }
+}
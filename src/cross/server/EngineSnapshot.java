@@ -0,0 +1,255 @@
+package cross.server;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+* snapshot binario dello stato completo dell'engine:
+* - header: magic, versione, sequenza, prossimo orderId, lastPrice, numero di esecuzioni gia' registrate
+* - tabella degli owner (ogni username scritto una volta sola)
+* - ordini ask e bid in ordine prezzo-tempo, poi gli stop order in ordine di inserimento
+* i comandi successivi allo snapshot si trovano nel journal con la stessa sequenza
+* */
+public class EngineSnapshot {
+
+    private static final int MAGIC = 0x43524F53; // "CROS"
+    private static final int VERSION = 2;
+    private static final Pattern FILE_PATTERN = Pattern.compile("engine-(\\d+)\\.snap");
+
+    public final long seq;
+    public final int nextOrderId;
+    public final int lastPrice;
+    public final int executionCount;
+    public final List<Order> asks;
+    public final List<Order> bids;
+    public final List<Order> stops;
+
+    private EngineSnapshot(long seq, int nextOrderId, int lastPrice, int executionCount,
+                           List<Order> asks, List<Order> bids, List<Order> stops) {
+        this.seq = seq;
+        this.nextOrderId = nextOrderId;
+        this.lastPrice = lastPrice;
+        this.executionCount = executionCount;
+        this.asks = asks;
+        this.bids = bids;
+        this.stops = stops;
+    }
+
+    public static Path path(String dataDir, long seq){
+        return Paths.get(dataDir, "engine-" + seq + ".snap");
+    }
+
+    //codifica in memoria, chiamata con il lock dell'engine acquisito dal chiamante
+    public static byte[] encode(long seq, int nextOrderId, int lastPrice, int executionCount,
+                                Iterable<Order> asks, Iterable<Order> bids,
+                                Collection<Order> stops) throws IOException {
+        return capture(asks, bids, stops, 1024).encode(seq, nextOrderId, lastPrice, executionCount);
+    }
+
+    //copia degli ordini sotto il lock dell'engine, da codificare dopo il rilascio (vedi Image)
+    public static Image capture(Iterable<Order> asks, Iterable<Order> bids, Collection<Order> stops, int expectedOrders){
+        Image image = new Image(Math.max(16, expectedOrders));
+        image.askCount = image.addAll(asks);
+        image.bidCount = image.addAll(bids);
+        image.stopCount = image.addAll(stops);
+        return image;
+    }
+
+    /*
+    * ordini del book e stop order copiati in colonne primitive (piu' il riferimento immutabile all'owner):
+    * la copia e' una sola scansione senza tabella degli owner ne' serializzazione, quindi il lock dell'engine
+    * resta acquisito solo per questa. encode produce gli stessi byte della codifica diretta
+    * */
+    public static final class Image {
+        private int count;
+        private int askCount;
+        private int bidCount;
+        private int stopCount;
+        private int[] ids;
+        private byte[] sides;
+        private byte[] types;
+        private int[] sizes;
+        private int[] filled;
+        private int[] prices;
+        private String[] owners;
+
+        private Image(int capacity) {
+            ids = new int[capacity];
+            sides = new byte[capacity];
+            types = new byte[capacity];
+            sizes = new int[capacity];
+            filled = new int[capacity];
+            prices = new int[capacity];
+            owners = new String[capacity];
+        }
+
+        private int addAll(Iterable<Order> orders){
+            int added = 0;
+            for(Order order : orders){
+                if(count == ids.length) grow();
+                ids[count] = order.getOrderId();
+                sides[count] = (byte) (order.getType().equals("ask") ? 1 : 0);
+                types[count] = orderTypeCode(order.getOrderType());
+                sizes[count] = order.getSize();
+                filled[count] = order.getSize() - order.getRemainingSize();
+                prices[count] = order.getPrice();
+                owners[count] = order.getOwner();
+                count++;
+                added++;
+            }
+            return added;
+        }
+
+        private void grow(){
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            sides = Arrays.copyOf(sides, capacity);
+            types = Arrays.copyOf(types, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            filled = Arrays.copyOf(filled, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+        }
+
+        public int size(){
+            return count;
+        }
+
+        //codifica nel formato dello snapshot, senza lock
+        public byte[] encode(long seq, int nextOrderId, int lastPrice, int executionCount) throws IOException {
+            Map<String,Integer> ownerIndex = new LinkedHashMap<>();
+            for(int i = 0; i < count; i++){
+                ownerIndex.putIfAbsent(owners[i], ownerIndex.size());
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + count * 22);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seq);
+            out.writeInt(nextOrderId);
+            out.writeInt(lastPrice);
+            out.writeInt(executionCount);
+
+            out.writeInt(ownerIndex.size());
+            for(String owner : ownerIndex.keySet()){
+                out.writeUTF(owner);
+            }
+
+            out.writeInt(askCount);
+            writeOrders(out, 0, askCount, ownerIndex);
+            out.writeInt(bidCount);
+            writeOrders(out, askCount, askCount + bidCount, ownerIndex);
+            out.writeInt(stopCount);
+            writeOrders(out, askCount + bidCount, count, ownerIndex);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void writeOrders(DataOutputStream out, int from, int to, Map<String,Integer> ownerIndex) throws IOException {
+            for(int i = from; i < to; i++){
+                out.writeInt(ids[i]);
+                out.writeByte(sides[i]);
+                out.writeByte(types[i]);
+                out.writeInt(sizes[i]);
+                out.writeInt(filled[i]);
+                out.writeInt(prices[i]);
+                out.writeInt(ownerIndex.get(owners[i]));
+            }
+        }
+    }
+
+    static byte orderTypeCode(String orderType){
+        switch (orderType){
+            case "limit": return 0;
+            case "market": return 1;
+            default: return 2; //stop
+        }
+    }
+
+    static String orderTypeName(int code){
+        switch (code){
+            case 0: return "limit";
+            case 1: return "market";
+            default: return "stop";
+        }
+    }
+
+    public static EngineSnapshot read(Path file) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))){
+            int magic = in.readInt();
+            int version = in.readInt();
+            if(magic != MAGIC || version != VERSION){
+                throw new IOException("[EngineSnapshot] Unsupported snapshot format: " + file);
+            }
+            long seq = in.readLong();
+            int nextOrderId = in.readInt();
+            int lastPrice = in.readInt();
+            int executionCount = in.readInt();
+
+            String[] owners = new String[in.readInt()];
+            for(int i = 0; i < owners.length; i++){
+                owners[i] = in.readUTF();
+            }
+            List<Order> asks = readOrders(in, owners);
+            List<Order> bids = readOrders(in, owners);
+            List<Order> stops = readOrders(in, owners);
+            return new EngineSnapshot(seq, nextOrderId, lastPrice, executionCount, asks, bids, stops);
+        }
+    }
+
+    private static List<Order> readOrders(DataInputStream in, String[] owners) throws IOException {
+        int count = in.readInt();
+        List<Order> orders = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            int orderId = in.readInt();
+            String type = in.readByte() == 1 ? "ask" : "bid";
+            String orderType = orderTypeName(in.readByte());
+            int size = in.readInt();
+            int filled = in.readInt();
+            int price = in.readInt();
+            Order order = new Order(orderId, type, size, price, orderType, owners[in.readInt()]);
+            if(filled > 0){
+                order.fill(filled);
+            }
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    //sequenze degli snapshot presenti nella directory, in ordine crescente
+    public static List<Long> listSequences(String dataDir){
+        return listSequences(dataDir, FILE_PATTERN);
+    }
+
+    static List<Long> listSequences(String dataDir, Pattern pattern){
+        List<Long> seqs = new ArrayList<>();
+        File[] files = new File(dataDir).listFiles();
+        if(files == null) return seqs;
+        for(File file : files){
+            Matcher m = pattern.matcher(file.getName());
+            if(m.matches()){
+                seqs.add(Long.parseLong(m.group(1)));
+            }
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+
+    //scrittura atomica: file temporaneo, fsync, rename
+    public static void write(Path target, byte[] data) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(tmp.toFile())){
+            fos.write(data);
+            fos.getFD().sync();
+        }
+        try{
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e){
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
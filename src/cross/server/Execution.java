@@ -0,0 +1,154 @@
+package cross.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+* una esecuzione (fill) tra un ordine bid e un ordine ask, un solo record per entrambi i lati:
+* orderId e owner (id compatto di OwnerTable, 0 = sconosciuto) di ciascun lato, prezzo, quantita',
+* timestamp e lato aggressore. i Trade per lato (notifiche, formato JSON) si ricavano su richiesta.
+* flags: bit 0 aggressore ask, bit 1-2 tipo ordine bid, bit 3-4 tipo ordine ask,
+* bit 5 aggressore sconosciuto, bit 6/7 lato bid/ask assente (storico importato non appaiato)
+* */
+public class Execution {
+
+    public static final int ASK_AGGRESSOR = 1;
+    public static final int AGGRESSOR_UNKNOWN = 1 << 5;
+    public static final int NO_BID = 1 << 6;
+    public static final int NO_ASK = 1 << 7;
+
+    private final long timestamp;
+    private final int price;
+    private final int size;
+    private final int bidOrderId;
+    private final int askOrderId;
+    private final int bidOwner;
+    private final int askOwner;
+    private final int flags;
+
+    public Execution(long timestamp, int price, int size, int bidOrderId, int askOrderId,
+                     int bidOwner, int askOwner, int flags) {
+        this.timestamp = timestamp;
+        this.price = price;
+        this.size = size;
+        this.bidOrderId = bidOrderId;
+        this.askOrderId = askOrderId;
+        this.bidOwner = bidOwner;
+        this.askOwner = askOwner;
+        this.flags = flags;
+    }
+
+    public static int flags(boolean askAggressor, String bidOrderType, String askOrderType){
+        return (askAggressor ? ASK_AGGRESSOR : 0)
+                | (EngineSnapshot.orderTypeCode(bidOrderType) << 1)
+                | (EngineSnapshot.orderTypeCode(askOrderType) << 3);
+    }
+
+    public static int bidOrderTypeCode(int flags){
+        return (flags >> 1) & 3;
+    }
+
+    public static int askOrderTypeCode(int flags){
+        return (flags >> 3) & 3;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getPrice() {
+        return price;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getBidOrderId() {
+        return bidOrderId;
+    }
+
+    public int getAskOrderId() {
+        return askOrderId;
+    }
+
+    public int getBidOwner() {
+        return bidOwner;
+    }
+
+    public int getAskOwner() {
+        return askOwner;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isAskAggressor() {
+        return (flags & ASK_AGGRESSOR) != 0;
+    }
+
+    //vista lato bid nel formato Trade
+    public Trade bidView(){
+        return new Trade(bidOrderId, "bid", EngineSnapshot.orderTypeName(bidOrderTypeCode(flags)), size, price, timestamp);
+    }
+
+    public Trade askView(){
+        return new Trade(askOrderId, "ask", EngineSnapshot.orderTypeName(askOrderTypeCode(flags)), size, price, timestamp);
+    }
+
+    //lati presenti, prima bid poi ask (l'ordine in cui venivano registrati i Trade)
+    public List<Trade> sides(){
+        List<Trade> sides = new ArrayList<>(2);
+        if((flags & NO_BID) == 0) sides.add(bidView());
+        if((flags & NO_ASK) == 0) sides.add(askView());
+        return sides;
+    }
+
+    /*
+    * ricostruisce le esecuzioni da Trade per lato (vecchio trades.json, segmenti versione 1):
+    * un bid e un ask consecutivi con stesso timestamp, prezzo e quantita' sono la stessa esecuzione,
+    * un lato senza controparte diventa un'esecuzione con l'altro lato assente. owner e aggressore sconosciuti
+    * */
+    public static class Pairer implements Consumer<Trade> {
+        private final Consumer<Execution> sink;
+        private Trade pending;
+
+        public Pairer(Consumer<Execution> sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void accept(Trade trade) {
+            if(pending != null && !pending.getType().equals(trade.getType())
+                    && pending.getTimestamp() == trade.getTimestamp()
+                    && pending.getPrice() == trade.getPrice() && pending.getSize() == trade.getSize()){
+                Trade bid = pending.getType().equals("bid") ? pending : trade;
+                Trade ask = bid == pending ? trade : pending;
+                sink.accept(new Execution(bid.getTimestamp(), bid.getPrice(), bid.getSize(), bid.getOrderId(), ask.getOrderId(),
+                        0, 0, AGGRESSOR_UNKNOWN | (EngineSnapshot.orderTypeCode(bid.getOrderType()) << 1)
+                                | (EngineSnapshot.orderTypeCode(ask.getOrderType()) << 3)));
+                pending = null;
+                return;
+            }
+            finish();
+            pending = trade;
+        }
+
+        //emette l'eventuale lato rimasto senza controparte
+        public void finish(){
+            if(pending == null) return;
+            Trade trade = pending;
+            pending = null;
+            int type = EngineSnapshot.orderTypeCode(trade.getOrderType());
+            if(trade.getType().equals("bid")){
+                sink.accept(new Execution(trade.getTimestamp(), trade.getPrice(), trade.getSize(), trade.getOrderId(), 0,
+                        0, 0, AGGRESSOR_UNKNOWN | NO_ASK | (type << 1)));
+            } else {
+                sink.accept(new Execution(trade.getTimestamp(), trade.getPrice(), trade.getSize(), 0, trade.getOrderId(),
+                        0, 0, AGGRESSOR_UNKNOWN | NO_BID | (type << 3)));
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package cross.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+* impronta SHA-256 della sequenza di esecuzioni prodotta dall'engine, con i nomi degli owner
+* (gli id di OwnerTable dipendono dallo storico gia' presente). due esecuzioni dello stesso flusso di comandi
+* producono la stessa impronta solo se tutti i campi di tutti i fill coincidono, nello stesso ordine
+* */
+public class ExecutionDigest {
+
+    private final MessageDigest digest = sha256();
+    private final ByteBuffer record = ByteBuffer.allocate(29);
+    private long count;
+
+    public void update(long timestamp, int price, int size, int bidOrderId, int askOrderId,
+                       String bidOwner, String askOwner, int flags) {
+        record.clear();
+        record.putLong(timestamp).putInt(price).putInt(size).putInt(bidOrderId).putInt(askOrderId).putInt(flags).put((byte) 0);
+        digest.update(record.array(), 0, record.position());
+        digest.update(bidOwner.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(askOwner.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        count++;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    //impronta corrente, il digest puo' continuare a ricevere esecuzioni
+    public byte[] value() {
+        try {
+            return ((MessageDigest) digest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("[ExecutionDigest] SHA-256 digest is not cloneable", e);
+        }
+    }
+
+    //impronta di uno stato del book codificato con EngineSnapshot.encode
+    public static byte[] of(byte[] data) {
+        return sha256().digest(data);
+    }
+
+    public static String hex(byte[] value) {
+        StringBuilder out = new StringBuilder(value.length * 2);
+        for (byte b : value) out.append(String.format("%02x", b));
+        return out.toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("[ExecutionDigest] SHA-256 not available", e);
+        }
+    }
+}
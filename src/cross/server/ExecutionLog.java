@@ -0,0 +1,109 @@
+package cross.server;
+
+import java.util.Arrays;
+
+/*
+* esecuzioni in memoria, append-only, in colonne di array primitivi a blocchi di dimensione fissa:
+* - un solo scrittore alla volta (chiamato sotto il write lock dell'engine)
+* - i lettori non prendono lock: leggono size (volatile) e vedono tutte le esecuzioni con indice < size
+* i blocchi non vengono mai riallocati, quindi la size letta e' un watermark stabile per uno snapshot.
+* i blocchi iniziali possono essere rilasciati (evictBefore) quando le esecuzioni sono gia' su disco:
+* get/visit non trovano gli indici rilasciati
+* */
+public class ExecutionLog {
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    //interi per esecuzione: price, size, bidOrderId, askOrderId, bidOwner, askOwner
+    private static final int INTS = 6;
+
+    private Chunk[] chunks = new Chunk[16];
+    private volatile int size;
+    //indici < evicted non sono piu' in memoria
+    private volatile int evicted;
+
+    private static final class Chunk {
+        final long[] timestamps = new long[CHUNK_SIZE];
+        final int[] ints = new int[CHUNK_SIZE * INTS];
+        final byte[] flags = new byte[CHUNK_SIZE];
+    }
+
+    //aggiunta in coda, l'esecuzione diventa visibile ai lettori con la scrittura di size
+    public void append(Execution execution){
+        int index = size;
+        int c = index >>> CHUNK_BITS;
+        if(c == chunks.length){
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        if(chunks[c] == null){
+            chunks[c] = new Chunk();
+        }
+        Chunk chunk = chunks[c];
+        int slot = index & CHUNK_MASK;
+        int base = slot * INTS;
+        chunk.timestamps[slot] = execution.getTimestamp();
+        chunk.ints[base] = execution.getPrice();
+        chunk.ints[base + 1] = execution.getSize();
+        chunk.ints[base + 2] = execution.getBidOrderId();
+        chunk.ints[base + 3] = execution.getAskOrderId();
+        chunk.ints[base + 4] = execution.getBidOwner();
+        chunk.ints[base + 5] = execution.getAskOwner();
+        chunk.flags[slot] = (byte) execution.getFlags();
+        size = index + 1;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public int evicted(){
+        return evicted;
+    }
+
+    private Chunk chunk(int index){
+        if(index < 0 || index >= size){
+            throw new IndexOutOfBoundsException("[ExecutionLog] index " + index + ", size " + size);
+        }
+        if(index < evicted) return null;
+        return chunks[index >>> CHUNK_BITS];
+    }
+
+    //null se l'esecuzione non e' piu' in memoria
+    public Execution get(int index){
+        Chunk chunk = chunk(index);
+        if(chunk == null) return null;
+        int slot = index & CHUNK_MASK;
+        int base = slot * INTS;
+        int[] ints = chunk.ints;
+        return new Execution(chunk.timestamps[slot], ints[base], ints[base + 1], ints[base + 2], ints[base + 3],
+                ints[base + 4], ints[base + 5], chunk.flags[slot] & 0xFF);
+    }
+
+    //passa le colonne al visitor senza creare oggetti, false se l'esecuzione non e' piu' in memoria
+    public boolean visit(int index, TradeStore.ExecutionVisitor visitor){
+        Chunk chunk = chunk(index);
+        if(chunk == null) return false;
+        int slot = index & CHUNK_MASK;
+        int base = slot * INTS;
+        int[] ints = chunk.ints;
+        visitor.visit(chunk.timestamps[slot], ints[base], ints[base + 1], ints[base + 4], ints[base + 5], chunk.flags[slot] & 0xFF);
+        return true;
+    }
+
+    /*
+    * rilascia i blocchi interi con indici < index, ritorna il numero di esecuzioni rilasciate.
+    * non deve essere concorrente con append (che puo' riallocare l'array dei blocchi)
+    * */
+    public int evictBefore(int index){
+        int from = evicted >>> CHUNK_BITS;
+        int limit = Math.min(index, size) >>> CHUNK_BITS;
+        if(limit <= from) return 0;
+        //prima il nuovo limite, poi il rilascio: un lettore che trova un blocco null legge da disco
+        evicted = limit << CHUNK_BITS;
+        for(int c = from; c < limit; c++){
+            chunks[c] = null;
+        }
+        return (limit - from) << CHUNK_BITS;
+    }
+}
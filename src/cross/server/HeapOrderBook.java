@@ -0,0 +1,117 @@
+package cross.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+* book in heap: per ogni lato una mappa ordinata prezzo -> coda FIFO di Order,
+* piu' l'indice orderId -> ordine per la cancellazione senza scansione del book
+* */
+public class HeapOrderBook implements OrderBook {
+
+    private final ConcurrentSkipListMap<Integer, ConcurrentLinkedQueue<Order>> askBook = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Integer, ConcurrentLinkedQueue<Order>> bidBook = new ConcurrentSkipListMap<>(Comparator.reverseOrder());
+    private final Map<Integer, Order> restingOrders = new HashMap<>();
+
+    private ConcurrentSkipListMap<Integer, ConcurrentLinkedQueue<Order>> side(boolean ask){
+        return ask ? askBook : bidBook;
+    }
+
+    @Override
+    public void add(Order order) {
+        restingOrders.put(order.getOrderId(), order);
+        side(order.getType().equals("ask")).computeIfAbsent(order.getPrice(), k -> new ConcurrentLinkedQueue<>()).add(order);
+    }
+
+    @Override
+    public Order peek(boolean ask, int depth) {
+        ConcurrentSkipListMap<Integer, ConcurrentLinkedQueue<Order>> book = side(ask);
+        while(true){
+            Map.Entry<Integer, ConcurrentLinkedQueue<Order>> best = book.firstEntry();
+            if(best == null) return null;
+            Order top = best.getValue().peek();
+            if(top != null) return top;
+            //livello vuoto: si passa al prossimo prezzo
+            book.remove(best.getKey());
+        }
+    }
+
+    @Override
+    public boolean removeFilled(Order top) {
+        ConcurrentSkipListMap<Integer, ConcurrentLinkedQueue<Order>> book = side(top.getType().equals("ask"));
+        ConcurrentLinkedQueue<Order> list = book.get(top.getPrice());
+        boolean removed = false;
+        if(list != null){
+            removed = list.poll() != null;
+            if(list.isEmpty()){
+                book.remove(top.getPrice());
+            }
+        }
+        restingOrders.remove(top.getOrderId());
+        return removed;
+    }
+
+    @Override
+    public boolean remove(int orderId) {
+        Order order = restingOrders.get(orderId);
+        if(order == null || order.getRemainingSize() <= 0){
+            return false;
+        }
+        ConcurrentSkipListMap<Integer, ConcurrentLinkedQueue<Order>> book = side(order.getType().equals("ask"));
+        ConcurrentLinkedQueue<Order> list = book.get(order.getPrice());
+        if(list == null || !list.remove(order)){
+            return false;
+        }
+        restingOrders.remove(orderId);
+        if(list.isEmpty()){
+            book.remove(order.getPrice());
+        }
+        return true;
+    }
+
+    @Override
+    public int available(boolean ask, int needed) {
+        int total = 0;
+        for(ConcurrentLinkedQueue<Order> level : side(ask).values()){
+            for(Order order : level){
+                total += order.getRemainingSize();
+                if(total >= needed) return total;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public Iterable<Order> orders(boolean ask) {
+        Collection<ConcurrentLinkedQueue<Order>> levels = side(ask).values();
+        //iteratori annidati: l'iterator() di uno stream con flatMap bufferizza ogni livello ed e' piu' lento
+        //della copia stessa (la scansione avviene sotto il lock dell'engine, vedi EngineSnapshot.capture)
+        return () -> new Iterator<>() {
+            private final Iterator<ConcurrentLinkedQueue<Order>> levelIterator = levels.iterator();
+            private Iterator<Order> level = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while(!level.hasNext() && levelIterator.hasNext()){
+                    level = levelIterator.next().iterator();
+                }
+                return level.hasNext();
+            }
+
+            @Override
+            public Order next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                return level.next();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for(ConcurrentLinkedQueue<Order> level : askBook.values()) size += level.size();
+        for(ConcurrentLinkedQueue<Order> level : bidBook.values()) size += level.size();
+        return size;
+    }
+}
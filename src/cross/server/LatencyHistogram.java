@@ -0,0 +1,79 @@
+package cross.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* istogramma di latenze in nanosecondi a bucket log-lineari (come HdrHistogram):
+* valori < 64 esatti, poi 32 sotto-bucket per ogni potenza di due (errore relativo massimo ~3%).
+* record e' lock-free (un incremento atomico e un max), i percentili si calcolano leggendo i contatori
+* senza fermare i thread che registrano: un valore registrato durante la lettura puo' mancare
+* */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    //fino a 2^62 ns
+    private static final int BUCKETS = (62 - SUB_BITS + 1) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucket(long value){
+        if(value < 2 * SUB_BUCKETS) return (int) Math.max(0, value);
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    //limite superiore (escluso) dei valori del bucket
+    static long upperBound(int bucket){
+        if(bucket < 2 * SUB_BUCKETS) return bucket + 1;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket - (long) shift * SUB_BUCKETS;
+        return (mantissa + 1) << shift;
+    }
+
+    public void record(long nanos){
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        long current = max.get();
+        while(nanos > current && !max.compareAndSet(current, nanos)){
+            current = max.get();
+        }
+    }
+
+    public long count(){
+        return count.sum();
+    }
+
+    public long max(){
+        return max.get();
+    }
+
+    public long mean(){
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    //valore sotto il quale cade la frazione quantile delle registrazioni (0 se vuoto)
+    public long percentile(double quantile){
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += snapshot[i];
+            if(seen >= rank) return Math.min(upperBound(i) - 1, max.get());
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,357 @@
+package cross.server;
+
+import cross.utils.Log;
+
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/*
+* nucleo di matching di CROSS, senza rete, persistenza ne' thread: book, stop order e lastPrice
+* con le stesse regole del server (limit in ordine prezzo-tempo, market accettati solo se completamente eseguibili,
+* stop convertiti in market quando lastPrice raggiunge lo stopPrice).
+* non e' thread-safe: CrossServer lo chiama sotto il proprio write lock, un backtest da un solo thread.
+* esecuzioni e modifiche del book vengono passate al Listener in modo sincrono, durante il comando
+* */
+public class MatchingEngine {
+
+    //callback dell'engine, tutte opzionali, chiamate dal thread del comando
+    public interface Listener {
+        //esecuzione tra il lato bid e il lato ask, fill gia' applicati; timestamp: istante del comando
+        default void onExecution(Order bid, Order ask, int price, int size, boolean askAggressor, long timestamp) {}
+
+        //limit order (o il suo residuo) aggiunto al book
+        default void onOrderRested(Order order) {}
+
+        //ordine a riposo o stop order rimosso da una cancellazione
+        default void onOrderCancelled(int orderId) {}
+
+        //market order o stop attivato scartato perche' non completamente eseguibile
+        default void onOrderDiscarded(Order order) {}
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {};
+
+    private final OrderBook book;
+    //stop order in attesa, in ordine di inserimento
+    private final List<Order> stopOrders = Collections.synchronizedList(new ArrayList<>());
+    //last price, usato per controllare stop
+    private int lastPrice = 1;
+    //ordini a riposo nel book, contati qui per non scorrere i livelli (OrderBook.size)
+    private int restingOrders;
+
+    private Listener listener = NO_LISTENER;
+    //istante dei comandi, letto una volta per comando: tutte le esecuzioni di un comando hanno lo stesso timestamp
+    private LongSupplier clock = System::currentTimeMillis;
+    private long commandMillis;
+    //stop attivati annidati nell'esecuzione corrente: depth dei peek sul book
+    private int matchDepth;
+
+    public MatchingEngine() {
+        this(new HeapOrderBook());
+    }
+
+    //book: storage degli ordini a riposo (HeapOrderBook o OffHeapOrderBook)
+    public MatchingEngine(OrderBook book) {
+        this.book = Objects.requireNonNull(book);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener == null ? NO_LISTENER : listener;
+    }
+
+    //orologio dei comandi, System.currentTimeMillis di default (in un backtest: l'istante del dato storico)
+    public void setClock(LongSupplier clock) {
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    public OrderBook getBook() {
+        return book;
+    }
+
+    //stop order in attesa, vista in sola lettura
+    public List<Order> getStopOrders() {
+        return Collections.unmodifiableList(stopOrders);
+    }
+
+    public int getLastPrice() {
+        return lastPrice;
+    }
+
+    public int getRestingOrders() {
+        return restingOrders;
+    }
+
+    /*
+    * ripristino dello stato (snapshot, stato iniziale di un backtest) senza matching ne' callback:
+    * gli stop order vanno in attesa, gli altri ordini direttamente nel book
+    * */
+    public void restore(Order order) {
+        if (order.getOrderType().equals("stop")) {
+            stopOrders.add(order);
+        } else {
+            book.add(order);
+            restingOrders++;
+        }
+    }
+
+    public void restoreLastPrice(int lastPrice) {
+        this.lastPrice = lastPrice;
+    }
+
+    //limit order: matching con il lato opposto, il residuo resta nel book
+    public void insertLimitOrder(Order order) {
+        commandMillis = clock.getAsLong();
+        matchLimitOrder(order);
+        if (order.getRemainingSize() > 0) {
+            book.add(order);
+            restingOrders++;
+            listener.onOrderRested(order);
+        }
+    }
+
+    //market order: eseguito solo se la liquidita' del lato opposto basta per l'intera size, altrimenti scartato (false)
+    public boolean insertMarketOrder(Order order) {
+        commandMillis = clock.getAsLong();
+        //lato ask contro i bid, lato bid contro gli ask
+        int totalAvailableSize = book.available(!order.getType().equals("ask"), order.getSize());
+        if (totalAvailableSize < order.getSize()) {
+            Log.info("[MatchingEngine - insertMarket] Market Order {} discarded: size not fully executable", order.getOrderId());
+            listener.onOrderDiscarded(order);
+            return false;
+        }
+        matchLimitOrder(order);
+        return true;
+    }
+
+    //stop order: in attesa fino all'attivazione, controllata a ogni esecuzione
+    public void insertStopOrder(Order order) {
+        commandMillis = clock.getAsLong();
+        stopOrders.add(order);
+    }
+
+    // rimuove un ordine (non eseguito) dal book o dalla lista stop.
+    // ritorna true se trovato e rimosso, altrimenti false
+    public boolean cancelOrder(int orderId) {
+        commandMillis = clock.getAsLong();
+        boolean removed = book.remove(orderId);
+        if (removed) restingOrders--;
+        if (!removed) removed = removeFromStopOrders(orderId);
+        if (removed) listener.onOrderCancelled(orderId);
+        return removed;
+    }
+
+    /*matching di limit order
+    * selling: type = ask, to be get matched, best bidding(buying) price should be greater or equal than asking(selling) price,
+    * therefore bestBid >= askPrice
+    *
+    * buying: type = bid, to be get matched, best asking(selling) price should be lesser or equal than bidding(buying) price,
+    * therefor bestAsk <= bidPrice
+    */
+    private void matchLimitOrder(Order incoming){
+        //caso ask (vendita)
+        if(incoming.getType().equals("ask")){
+            while(incoming.getRemainingSize() > 0) {
+                //finche esiste ordine, vado a prendere il primo del bid book (quindi matching con il valore massimo di bid (offerta))
+                //i livelli vuoti vengono saltati dal book
+                Order topBid = book.peek(false, matchDepth);
+                if (topBid == null) break; //no bid
+
+                int bestBidPrice = topBid.getPrice();
+                if (bestBidPrice < incoming.getPrice()) {
+                    //matching avviene sse il prezzo di vendita (ask, incoming.getPrice()) e' maggiore o uguale al prezzo piu' alto di offerta
+                    //matching fallito
+                    break;
+                }
+
+                //calcola tradeSize, ovvero la size di ordine da matchare
+                int tradeSize = Math.min(incoming.getRemainingSize(),topBid.getRemainingSize());
+                executeTrade(topBid,incoming,bestBidPrice,tradeSize,true);
+
+                //se il volume dell'ordine e' vuota allora elimina l'ordine dal book
+                if(topBid.getRemainingSize() == 0){
+                    if(book.removeFilled(topBid)) restingOrders--;
+                }
+            }
+        } else {
+            //caso bid, logica uguale alla precedente
+            while(incoming.getRemainingSize() > 0) {
+                Order topAsk = book.peek(true, matchDepth);
+                if (topAsk == null) break;
+                int bestAskPrice = topAsk.getPrice();
+                int tradeSize = Math.min(incoming.getRemainingSize(),topAsk.getRemainingSize());
+                executeTrade(incoming,topAsk,bestAskPrice,tradeSize,false);
+
+
+                if(topAsk.getRemainingSize() == 0){
+                    if(book.removeFilled(topAsk)) restingOrders--;
+                }
+            }
+        }
+    }
+
+    /*
+     matching di market order, price = 0
+    * selling: type = ask => contro i bid
+    * buying: type = bid => contro gli ask
+    * */
+    private void matchMarketOrder(Order incoming){
+        if(incoming.getType().equals("ask")){
+            while(incoming.getRemainingSize() > 0) {
+                Order topBid = book.peek(false, matchDepth);
+                if (topBid == null) {
+                    Log.debug("[MatchingEngine - matchMarket] No bids available to match the market ask order");
+                    break;
+                }
+
+                int tradeSize = Math.min(incoming.getRemainingSize(),topBid.getRemainingSize());
+                if(Log.isEnabled(Log.DEBUG)){
+                    Log.debug("[MatchingEngine - matchMarket] Matching market ask order with bid price: {} | Trade size: {}", topBid.getPrice(), tradeSize);
+                }
+                executeTrade(topBid,incoming,topBid.getPrice(),tradeSize,true);
+
+                if(topBid.getRemainingSize() == 0){
+                    if(book.removeFilled(topBid)) restingOrders--;
+                }
+            }
+        } else {
+            //type bid
+            while(incoming.getRemainingSize() > 0){
+                Order topAsk = book.peek(true, matchDepth);
+                if (topAsk == null) {
+                    Log.debug("[MatchingEngine - matchMarket] No asks available to match the market bid order");
+                    break;
+                }
+
+                int tradeSize = Math.min(incoming.getRemainingSize(),topAsk.getRemainingSize());
+                if(Log.isEnabled(Log.DEBUG)){
+                    Log.debug("[MatchingEngine - matchMarket] Matching market bid order with ask price: {} | Trade size: {}", topAsk.getPrice(), tradeSize);
+                }
+                executeTrade(incoming,topAsk,topAsk.getPrice(),tradeSize,false);
+
+                if(topAsk.getRemainingSize() == 0){
+                    if(book.removeFilled(topAsk)) restingOrders--;
+                }
+
+            }
+        }
+    }
+
+    //ogni volta che cambia lastPrice, controlliamo se scatta qualche stopOrder
+    private void checkStopOrders(){
+        Iterator<Order> iterator = stopOrders.iterator();
+        while(iterator.hasNext()){
+            Order order = iterator.next();
+            try{
+            if(order.getType().equals("ask")){
+                if(Log.isEnabled(Log.DEBUG)){
+                    Log.debug("[MatchingEngine - checkStop] Activating Stop Ask Order ID: {} | Size: {} | Stop Price: {}", order.getOrderId(), order.getRemainingSize(), order.getPrice());
+                }
+                //lastPrice <= stopPrice
+                if(lastPrice <= order.getPrice()){
+                    int totalAvailable = book.available(false, order.getRemainingSize());
+                    if(totalAvailable < order.getRemainingSize()){
+                        Log.info("[MatchingEngine - checkStop] Stop Ask Order ID: {} discarded: size not fully executable (required: {}, available: {})",
+                                order.getOrderId(), order.getRemainingSize(), totalAvailable);
+                        iterator.remove();
+                        listener.onOrderDiscarded(order);
+                    } else{
+                    //converti in market, price = 0 va bene perche' il prezzo sara' quello del mercato
+                    Order market = new Order(order.getOrderId(), "ask", order.getRemainingSize(), 0, "market", order.getOwner());
+                    iterator.remove();
+                    activateStop(order, market);
+                    }
+                }
+            } else {
+                //type: bid, scatta se lastPrice >= stopPrice
+                if(lastPrice >= order.getPrice()) {
+                    int totalAvailable = book.available(true, order.getRemainingSize());
+                    if (totalAvailable < order.getRemainingSize()) {
+                        Log.info("[MatchingEngine - checkStop] Stop Bid Order ID: {} discarded: size not fully executable (required: {}, available: {})",
+                                order.getOrderId(), order.getRemainingSize(), totalAvailable);
+                        iterator.remove();
+                        listener.onOrderDiscarded(order);
+                    } else {
+                        if(Log.isEnabled(Log.DEBUG)){
+                            Log.debug("[MatchingEngine - checkStop] Activating Stop Bid Order ID: {} | Size: {} | Stop Price: {}", order.getOrderId(), order.getRemainingSize(), order.getPrice());
+                        }
+                        Order market = new Order(order.getOrderId(), "bid", order.getRemainingSize(), 0, "market", order.getOwner());
+                        iterator.remove();
+                        activateStop(order, market);
+                    }
+                }
+            }
+            } catch (Exception e) {
+                Log.error("[MatchingEngine - checkStop] checkStopOrders: Exception while checking stop orders - {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    //esecuzione dello stop come market order, con l'evento JFR di attivazione
+    private void activateStop(Order stop, Order market){
+        EngineEvents.StopActivated event = new EngineEvents.StopActivated();
+        event.begin();
+        int triggerPrice = lastPrice;
+        matchDepth++;
+        try{
+            matchMarketOrder(market);
+        } finally {
+            matchDepth--;
+        }
+        if(event.shouldCommit()){
+            event.orderId = stop.getOrderId();
+            event.side = stop.getType();
+            event.price = stop.getPrice();
+            event.size = market.getSize();
+            event.lastPrice = triggerPrice;
+            event.executed = market.getRemainingSize() == 0;
+            event.commit();
+        }
+    }
+
+    //esecuzione trade di dimensione tradeSize al prezzo price, tra un orderAsk e un orderBid
+    private void executeTrade(Order bidSide, Order askSide, int price, int tradeSize, boolean askAggressor){
+        //assumiamo che bidSide sia sempre "bid" e askSide sia sempre "ask", garantita dal matching
+        EngineEvents.TradeExecuted event = new EngineEvents.TradeExecuted();
+        event.begin();
+        try{
+        //esecuzione fill
+        bidSide.fill(tradeSize);
+        askSide.fill(tradeSize);
+
+        //lastprice
+        lastPrice= price;
+        //argomenti int: il controllo del livello evita il boxing a ogni fill
+        if(Log.isEnabled(Log.DEBUG)){
+            Log.debug("[MatchingEngine - executeTrade] Trade executed: Bid ID={} | Ask ID={} | Price={} | Size={}", bidSide.getOrderId(), askSide.getOrderId(), price, tradeSize);
+        }
+
+        //stopcheck: le esecuzioni degli stop attivati arrivano al listener prima di questa
+        checkStopOrders();
+
+        listener.onExecution(bidSide, askSide, price, tradeSize, askAggressor, commandMillis);
+        } catch (Exception e){
+            Log.error("[MatchingEngine - executeTrade] Exception during trade execution - {}", e.getMessage(), e);
+        } finally {
+            if(event.shouldCommit()){
+                event.bidOrderId = bidSide.getOrderId();
+                event.askOrderId = askSide.getOrderId();
+                event.price = price;
+                event.size = tradeSize;
+                event.askAggressor = askAggressor;
+                event.commit();
+            }
+        }
+    }
+
+    private boolean removeFromStopOrders(int orderId){
+        Iterator<Order> iterator = stopOrders.iterator();
+        while(iterator.hasNext()){
+            Order order = iterator.next();
+            if(order.getOrderId() == orderId && order.getRemainingSize()>0){
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+}
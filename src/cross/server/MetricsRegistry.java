@@ -0,0 +1,100 @@
+package cross.server;
+
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+* metriche del server, sempre attive:
+* - operazioni del protocollo: conteggio, errori, istogramma di latenza
+* - timer: durate interne (matching, attesa del lock, persistenza, ...)
+* - gauge: valori letti solo quando vengono richieste le statistiche (profondita' del book, stop order, ...)
+* la registrazione non prende lock (LongAdder e LatencyHistogram), le latenze sono riportate in microsecondi
+* */
+public class MetricsRegistry {
+
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final long startMillis = System.currentTimeMillis();
+
+    public static class Operation {
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        public void record(long nanos, boolean error){
+            latency.record(nanos);
+            if(error) errors.increment();
+        }
+    }
+
+    public Operation operation(String name){
+        return operations.computeIfAbsent(name, k -> new Operation());
+    }
+
+    public LatencyHistogram timer(String name){
+        return timers.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    public void gauge(String name, LongSupplier supplier){
+        gauges.put(name, supplier);
+    }
+
+    /*
+    * {"uptimeMillis":..., "operations":{"insertLimitOrder":{"count","errors","p50","p99","p999","max","mean"}, ...},
+    *  "timers":{...stessi campi senza errors}, "gauges":{"bookDepth":..., ...}}
+    * */
+    public JsonObject toJson(){
+        JsonObject root = new JsonObject();
+        root.addProperty("uptimeMillis", System.currentTimeMillis() - startMillis);
+        JsonObject ops = new JsonObject();
+        new TreeMap<>(operations).forEach((name, op) -> {
+            JsonObject stats = latencyJson(op.latency);
+            stats.addProperty("errors", op.errors.sum());
+            ops.add(name, stats);
+        });
+        root.add("operations", ops);
+        JsonObject timerStats = new JsonObject();
+        new TreeMap<>(timers).forEach((name, histogram) -> timerStats.add(name, latencyJson(histogram)));
+        root.add("timers", timerStats);
+        JsonObject gaugeValues = new JsonObject();
+        new TreeMap<>(gauges).forEach((name, supplier) -> gaugeValues.addProperty(name, supplier.getAsLong()));
+        root.add("gauges", gaugeValues);
+        return root;
+    }
+
+    private static JsonObject latencyJson(LatencyHistogram histogram){
+        JsonObject stats = new JsonObject();
+        stats.addProperty("count", histogram.count());
+        stats.addProperty("p50", micros(histogram.percentile(0.50)));
+        stats.addProperty("p99", micros(histogram.percentile(0.99)));
+        stats.addProperty("p999", micros(histogram.percentile(0.999)));
+        stats.addProperty("max", micros(histogram.max()));
+        stats.addProperty("mean", micros(histogram.mean()));
+        return stats;
+    }
+
+    private static double micros(long nanos){
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+
+    //tabella per la console del server
+    public String format(){
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-22s %10s %8s %10s %10s %10s %10s  (us)%n", "operation", "count", "errors", "p50", "p99", "p999", "max"));
+        new TreeMap<>(operations).forEach((name, op) -> appendRow(out, name, op.latency, op.errors.sum()));
+        new TreeMap<>(timers).forEach((name, histogram) -> appendRow(out, "[" + name + "]", histogram, -1));
+        new TreeMap<>(gauges).forEach((name, supplier) -> out.append(String.format("%-22s %10d%n", name, supplier.getAsLong())));
+        return out.toString();
+    }
+
+    private static void appendRow(StringBuilder out, String name, LatencyHistogram histogram, long errors){
+        out.append(String.format("%-22s %10d %8s %10.1f %10.1f %10.1f %10.1f%n", name, histogram.count(),
+                errors < 0 ? "-" : Long.toString(errors), micros(histogram.percentile(0.50)), micros(histogram.percentile(0.99)),
+                micros(histogram.percentile(0.999)), micros(histogram.max())));
+    }
+}
@@ -1,37 +1,59 @@
 package cross.server;
+import cross.utils.Log;
 import java.io.IOException;
 import java.net.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 //supporto per inviare pacchetti UDP a un client con ip:port specificati
 public class NotificationService {
     
     private final DatagramSocket socket;
     private volatile boolean isRunning;
+    //l'invio e' sincrono sul thread del matching: la "coda" sono gli invii in corso
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LatencyHistogram sendLatency;
     
     public NotificationService(DatagramSocket socket) {
+        this(socket, new LatencyHistogram());
+    }
+    
+    //sendLatency: durata di ogni invio, registrata nelle metriche del server
+    public NotificationService(DatagramSocket socket, LatencyHistogram sendLatency) {
         this.socket = socket;
+        this.sendLatency = sendLatency;
         this.isRunning = true;
     }
     
+    public int inFlight(){
+        return inFlight.get();
+    }
+    
     //invio notifica testuale (JSON) al cleintNotificationInto speficicato
-    public void sendNotificiation(CrossServer.ClientNotificationInfo info, String message){
+    //ritorna false se la notifica non e' stata inviata (servizio terminato o errore di invio)
+    public boolean sendNotificiation(CrossServer.ClientNotificationInfo info, String message){
         if(!isRunning) {
-            System.err.println("[NotificationService] Attempt to send notification after termination");
-            return;
+            Log.warn("[NotificationService] Attempt to send notification after termination");
+            return false;
         }
+        long start = System.nanoTime();
+        inFlight.incrementAndGet();
         try{
             byte[] buf = message.getBytes();
             InetAddress address = InetAddress.getByName(info.ip);
             DatagramPacket packet = new DatagramPacket(buf, buf.length, address, info.port);
             socket.send(packet);
-            System.out.println("[NotificationService]: Notification sent to " + info.ip + ":" + info.port);
+            Log.debug("[NotificationService]: Notification sent to {}:{}", info.ip, info.port);
+            return true;
         } catch (IOException e) {
             if(isRunning) { //verifica che l'errore non sia dovuto dalla terminazione
-            System.err.println("[NotificationService] Error sending UDP message to "+ info.ip +": " + info.port);
-            e.printStackTrace();
+            Log.error("[NotificationService] Error sending UDP message to {}:{}", info.ip, info.port, e);
             } else {
                 //ignora
             }
+            return false;
+        } finally {
+            inFlight.decrementAndGet();
+            sendLatency.record(System.nanoTime() - start);
         }
     }
     
@@ -39,6 +61,6 @@ public class NotificationService {
     public void terminate(){
         isRunning = false;
         socket.close();
-        System.out.println("[NotificationService] terminated, socket closed");
+        Log.info("[NotificationService] terminated, socket closed");
     }
 }
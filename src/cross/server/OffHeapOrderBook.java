@@ -0,0 +1,378 @@
+package cross.server;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/*
+* book con gli ordini fuori dalla heap, per book molto profondi: il costo delle GC non dipende dal numero di ordini.
+* - ogni ordine occupa uno slot a dimensione fissa in segmenti di memoria diretta:
+*   orderId | owner | price | size | filled | flags (lato, tipo) | next | prev (4 byte ciascuno)
+* - gli slot liberati vanno in una free list (collegata dal campo next) e vengono riusati
+* - ogni livello di prezzo e' una lista doppiamente collegata di slot (FIFO), in una mappa ordinata per lato
+* - orderId -> slot in una tabella hash su array primitivi, owner come id compatti
+* in heap restano solo i livelli di prezzo, la tabella hash e i nomi degli owner.
+* peek non alloca: ritorna un Cursor riusato (uno per lato e livello di annidamento), un Order che legge e scrive
+* lo slot su cui e' posizionato. orders() crea invece copie staccate dal book, per lo snapshot.
+* la memoria diretta dei segmenti viene rilasciata quando il book non e' piu' raggiungibile
+* */
+public class OffHeapOrderBook implements OrderBook {
+
+    private static final int SLOT_BYTES = 32;
+    private static final int ORDER_ID = 0;
+    private static final int OWNER = 4;
+    private static final int PRICE = 8;
+    private static final int SIZE = 12;
+    private static final int FILLED = 16;
+    private static final int FLAGS = 20;
+    private static final int NEXT = 24;
+    private static final int PREV = 28;
+
+    private static final int SEGMENT_BITS = 16;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SLOTS - 1;
+    private static final int NONE = -1;
+
+    private ByteBuffer[] segments = new ByteBuffer[4];
+    //slot mai usati a partire da allocated, slot liberati nella free list
+    private int allocated;
+    private int freeHead = NONE;
+
+    private final TreeMap<Integer, Level> askLevels = new TreeMap<>();
+    private final TreeMap<Integer, Level> bidLevels = new TreeMap<>(Comparator.reverseOrder());
+    private final SlotIndex index = new SlotIndex();
+
+    private final Map<String, Integer> ownerIds = new HashMap<>();
+    private String[] owners = new String[64];
+    private int ownerCount;
+    //cursori di peek, indice: depth * 2 + lato (1 ask)
+    private Cursor[] cursors = new Cursor[4];
+
+    //estremi della lista di slot di un livello di prezzo
+    private static final class Level {
+        int head = NONE;
+        int tail = NONE;
+    }
+
+    private TreeMap<Integer, Level> side(boolean ask){
+        return ask ? askLevels : bidLevels;
+    }
+
+    private ByteBuffer segment(int slot){
+        return segments[slot >>> SEGMENT_BITS];
+    }
+
+    private int get(int slot, int field){
+        return segment(slot).getInt((slot & SEGMENT_MASK) * SLOT_BYTES + field);
+    }
+
+    private void set(int slot, int field, int value){
+        segment(slot).putInt((slot & SEGMENT_MASK) * SLOT_BYTES + field, value);
+    }
+
+    private int allocate(){
+        if(freeHead != NONE){
+            int slot = freeHead;
+            freeHead = get(slot, NEXT);
+            return slot;
+        }
+        int slot = allocated++;
+        int s = slot >>> SEGMENT_BITS;
+        if(s == segments.length){
+            segments = Arrays.copyOf(segments, s * 2);
+        }
+        if(segments[s] == null){
+            segments[s] = ByteBuffer.allocateDirect(SEGMENT_SLOTS * SLOT_BYTES);
+        }
+        return slot;
+    }
+
+    private void free(int slot){
+        set(slot, NEXT, freeHead);
+        freeHead = slot;
+    }
+
+    private int ownerId(String owner){
+        Integer id = ownerIds.get(owner);
+        if(id != null) return id;
+        if(ownerCount == owners.length){
+            owners = Arrays.copyOf(owners, ownerCount * 2);
+        }
+        owners[ownerCount] = owner;
+        ownerIds.put(owner, ownerCount);
+        return ownerCount++;
+    }
+
+    @Override
+    public void add(Order order) {
+        boolean ask = order.getType().equals("ask");
+        int slot = allocate();
+        set(slot, ORDER_ID, order.getOrderId());
+        set(slot, OWNER, ownerId(order.getOwner()));
+        set(slot, PRICE, order.getPrice());
+        set(slot, SIZE, order.getSize());
+        set(slot, FILLED, order.getSize() - order.getRemainingSize());
+        set(slot, FLAGS, (ask ? 1 : 0) | (EngineSnapshot.orderTypeCode(order.getOrderType()) << 1));
+        set(slot, NEXT, NONE);
+        Level level = side(ask).computeIfAbsent(order.getPrice(), k -> new Level());
+        set(slot, PREV, level.tail);
+        if(level.tail == NONE) level.head = slot;
+        else set(level.tail, NEXT, slot);
+        level.tail = slot;
+        index.put(order.getOrderId(), slot);
+    }
+
+    //toglie lo slot dal suo livello e lo libera, il livello vuoto viene rimosso
+    private void unlink(int slot){
+        boolean ask = (get(slot, FLAGS) & 1) == 1;
+        int price = get(slot, PRICE);
+        Level level = side(ask).get(price);
+        int next = get(slot, NEXT);
+        int prev = get(slot, PREV);
+        if(prev == NONE) level.head = next;
+        else set(prev, NEXT, next);
+        if(next == NONE) level.tail = prev;
+        else set(next, PREV, prev);
+        if(level.head == NONE){
+            side(ask).remove(price);
+        }
+        index.remove(get(slot, ORDER_ID));
+        free(slot);
+    }
+
+    @Override
+    public Order peek(boolean ask, int depth) {
+        TreeMap<Integer, Level> levels = side(ask);
+        while(true){
+            Map.Entry<Integer, Level> best = levels.firstEntry();
+            if(best == null) return null;
+            if(best.getValue().head != NONE){
+                Cursor cursor = cursor(ask, depth);
+                cursor.slot = best.getValue().head;
+                return cursor;
+            }
+            levels.remove(best.getKey());
+        }
+    }
+
+    private Cursor cursor(boolean ask, int depth){
+        int i = depth * 2 + (ask ? 1 : 0);
+        if(i >= cursors.length){
+            cursors = Arrays.copyOf(cursors, Math.max(cursors.length * 2, i + 1));
+        }
+        Cursor cursor = cursors[i];
+        if(cursor == null){
+            cursor = new Cursor();
+            cursors[i] = cursor;
+        }
+        return cursor;
+    }
+
+    @Override
+    public boolean removeFilled(Order top) {
+        Level level = side(top.getType().equals("ask")).get(top.getPrice());
+        if(level != null && level.head != NONE){
+            unlink(level.head);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean remove(int orderId) {
+        int slot = index.get(orderId);
+        if(slot == NONE || get(slot, SIZE) - get(slot, FILLED) <= 0){
+            return false;
+        }
+        unlink(slot);
+        return true;
+    }
+
+    @Override
+    public int available(boolean ask, int needed) {
+        int total = 0;
+        for(Level level : side(ask).values()){
+            for(int slot = level.head; slot != NONE; slot = get(slot, NEXT)){
+                total += get(slot, SIZE) - get(slot, FILLED);
+                if(total >= needed) return total;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public Iterable<Order> orders(boolean ask) {
+        return () -> new Iterator<>() {
+            private final Iterator<Level> levels = side(ask).values().iterator();
+            private int slot = NONE;
+
+            @Override
+            public boolean hasNext() {
+                while(slot == NONE && levels.hasNext()){
+                    slot = levels.next().head;
+                }
+                return slot != NONE;
+            }
+
+            @Override
+            public Order next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                Order order = copy(slot);
+                slot = get(slot, NEXT);
+                return order;
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    //Order in heap con lo stato corrente dello slot, indipendente dal book
+    private Order copy(int slot){
+        Order order = new Order(get(slot, ORDER_ID), (get(slot, FLAGS) & 1) == 1 ? "ask" : "bid", get(slot, SIZE), get(slot, PRICE),
+                EngineSnapshot.orderTypeName((get(slot, FLAGS) >> 1) & 3), owners[get(slot, OWNER)]);
+        int filled = get(slot, FILLED);
+        if(filled > 0) order.fill(filled);
+        return order;
+    }
+
+    //vista riposizionabile su uno slot: tutti i campi letti dallo slot, quantita' eseguita scritta nello slot
+    private final class Cursor extends Order {
+        private int slot = NONE;
+
+        Cursor() {
+            super(0, null, 0, 0, null, null);
+        }
+
+        @Override
+        public int getOrderId() {
+            return get(slot, ORDER_ID);
+        }
+
+        @Override
+        public String getType() {
+            return (get(slot, FLAGS) & 1) == 1 ? "ask" : "bid";
+        }
+
+        @Override
+        public int getSize() {
+            return get(slot, SIZE);
+        }
+
+        @Override
+        public int getPrice() {
+            return get(slot, PRICE);
+        }
+
+        @Override
+        public String getOrderType() {
+            return EngineSnapshot.orderTypeName((get(slot, FLAGS) >> 1) & 3);
+        }
+
+        @Override
+        public String getOwner() {
+            return owners[get(slot, OWNER)];
+        }
+
+        @Override
+        public int getRemainingSize() {
+            return get(slot, SIZE) - get(slot, FILLED);
+        }
+
+        @Override
+        public void fill(int qty) {
+            if(qty <= 0){
+                throw new IllegalArgumentException("[Order] The quantity to fill must be positive.");
+            }
+            int filled = get(slot, FILLED);
+            if(filled + qty > get(slot, SIZE)){
+                throw new IllegalArgumentException("[Order] It is impossibile to fill more than initial size of the order.");
+            }
+            set(slot, FILLED, filled + qty);
+        }
+    }
+
+    //orderId -> slot, indirizzamento aperto con scansione lineare su array primitivi
+    private static final class SlotIndex {
+        private static final int EMPTY = Integer.MIN_VALUE;
+        private int[] keys;
+        private int[] values;
+        private int mask;
+        private int size;
+
+        SlotIndex() {
+            allocate(1 << 10);
+        }
+
+        private void allocate(int capacity){
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            mask = capacity - 1;
+        }
+
+        private int home(int key){
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        int size(){
+            return size;
+        }
+
+        int get(int key){
+            for(int i = home(key); keys[i] != EMPTY; i = (i + 1) & mask){
+                if(keys[i] == key) return values[i];
+            }
+            return NONE;
+        }
+
+        void put(int key, int value){
+            if(2 * (size + 1) > keys.length){
+                int[] oldKeys = keys;
+                int[] oldValues = values;
+                allocate(keys.length * 2);
+                for(int i = 0; i < oldKeys.length; i++){
+                    if(oldKeys[i] != EMPTY) insert(oldKeys[i], oldValues[i]);
+                }
+            }
+            if(insert(key, value)) size++;
+        }
+
+        private boolean insert(int key, int value){
+            int i = home(key);
+            for(; keys[i] != EMPTY; i = (i + 1) & mask){
+                if(keys[i] == key){
+                    values[i] = value;
+                    return false;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            return true;
+        }
+
+        //cancellazione con spostamento all'indietro: nessuna tombstone
+        void remove(int key){
+            int i = home(key);
+            while(keys[i] != key){
+                if(keys[i] == EMPTY) return;
+                i = (i + 1) & mask;
+            }
+            int j = i;
+            while(true){
+                j = (j + 1) & mask;
+                if(keys[j] == EMPTY) break;
+                int k = home(keys[j]);
+                //la chiave in j resta dov'e' se la sua posizione naturale e' in (i, j]
+                if(i <= j ? (i < k && k <= j) : (i < k || k <= j)) continue;
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            keys[i] = EMPTY;
+            size--;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package cross.server;
+
+/*
+* storage degli ordini a riposo (limit non completamente evasi), lati ask e bid in ordine prezzo-tempo.
+* il matching resta in MatchingEngine, che usa solo queste operazioni: ogni implementazione deve
+* comportarsi come la coda per livello di prezzo originale (HeapOrderBook).
+* nel server tutte le chiamate avvengono con il lock dell'engine (write lock per le modifiche, read lock per le letture)
+* */
+public interface OrderBook {
+
+    //accoda l'ordine in fondo al suo livello di prezzo
+    void add(Order order);
+
+    /*
+    * primo ordine del livello migliore del lato (prezzo massimo per i bid, minimo per gli ask), null se vuoto.
+    * i fill sull'ordine ritornato (Order.fill) sono visibili subito nel book.
+    * l'ordine puo' essere una vista riusata dal book: resta valido fino al prossimo peek dello stesso lato
+    * con lo stesso depth. depth: annidamento del matching (uno stop attivato durante un'esecuzione
+    * esegue il suo market order con depth + 1 mentre l'ordine del livello esterno e' ancora in uso)
+    * */
+    Order peek(boolean ask, int depth);
+
+    //peek fuori dal matching
+    default Order peek(boolean ask) {
+        return peek(ask, 0);
+    }
+
+    //toglie dal livello del prezzo di top il primo ordine (top, completamente eseguito), e il livello se resta vuoto;
+    //false se il livello era gia' vuoto
+    boolean removeFilled(Order top);
+
+    //rimuove un ordine a riposo non completamente eseguito, false se non presente
+    boolean remove(int orderId);
+
+    //somma delle quantita' residue del lato in ordine prezzo-tempo, fermandosi appena raggiunge needed
+    int available(boolean ask, int needed);
+
+    //ordini a riposo nel lato, in ordine prezzo-tempo (per lo snapshot)
+    Iterable<Order> orders(boolean ask);
+
+    int size();
+}
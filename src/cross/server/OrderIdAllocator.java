@@ -0,0 +1,134 @@
+package cross.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/*
+* allocazione degli orderId senza lock sul percorso caldo:
+* - ogni thread prende dal contatore globale un blocco di BLOCK_IDS id con un solo getAndAdd
+*   e li consegna in locale, senza contesa con gli altri thread
+* - il limite degli id riservati (high-water mark) e' registrato su disco a intervalli di RESERVE_IDS:
+*   nessun id oltre il limite viene consegnato prima che il nuovo limite sia durevole, quindi dopo un
+*   riavvio (anche dopo un crash che perde la coda del journal) si riparte dal limite senza ripetere id
+* gli id restano unici ma non sono piu' crescenti nel tempo tra thread diversi, e a ogni riavvio
+* gli id riservati e non consegnati vengono saltati.
+* file: due slot in settori distinti, scritti a turno (magic, limite, CRC32): uno slot troncato
+* dal crash viene ignorato e vale l'altro
+* */
+public class OrderIdAllocator implements Closeable {
+
+    private static final int MAGIC = 0x4F494448; // "OIDH"
+    private static final int SLOT_BYTES = 12;
+    private static final int SLOT_STRIDE = 512;
+    static final int BLOCK_IDS = 256;
+    static final int RESERVE_IDS = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_BYTES);
+    private final CRC32 crc = new CRC32();
+    //primo id non ancora assegnato a un blocco
+    private final AtomicInteger nextBlock;
+    //id < reservedLimit sono coperti dal limite su disco
+    private volatile int reservedLimit;
+    private int writeSlot;
+    //blocco corrente del thread: prossimo id, fine (esclusa)
+    private final ThreadLocal<int[]> blocks = ThreadLocal.withInitial(() -> new int[2]);
+
+    private OrderIdAllocator(FileChannel channel, int limit, int writeSlot) {
+        this.channel = channel;
+        this.nextBlock = new AtomicInteger(limit);
+        this.reservedLimit = limit;
+        this.writeSlot = writeSlot;
+    }
+
+    //apre (o crea) il file del limite, il primo id consegnato e' il limite registrato (almeno 1)
+    public static OrderIdAllocator open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            int first = readSlot(channel, 0);
+            int second = readSlot(channel, 1);
+            //la prossima scrittura va sullo slot piu' vecchio, quello valido resta intatto
+            return new OrderIdAllocator(channel, Math.max(1, Math.max(first, second)), first >= second ? 1 : 0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    //limite di uno slot, 0 se vuoto o corrotto
+    private static int readSlot(FileChannel channel, int index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_BYTES);
+        long position = (long) index * SLOT_STRIDE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return 0;
+        }
+        buffer.flip();
+        if (buffer.getInt() != MAGIC) return 0;
+        int limit = buffer.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 8);
+        return (int) crc.getValue() == buffer.getInt() ? limit : 0;
+    }
+
+    //porta il prossimo id almeno a floor (id gia' usati da snapshot e journal), prima di servire richieste
+    public synchronized void advanceTo(int floor) {
+        if (floor > nextBlock.get()) nextBlock.set(floor);
+    }
+
+    public int next() {
+        int[] block = blocks.get();
+        if (block[0] == block[1]) claim(block);
+        return block[0]++;
+    }
+
+    private void claim(int[] block) {
+        int start = nextBlock.getAndAdd(BLOCK_IDS);
+        if (start < 0 || start > Integer.MAX_VALUE - BLOCK_IDS) {
+            throw new IllegalStateException("[OrderIdAllocator] Order id space exhausted");
+        }
+        int end = start + BLOCK_IDS;
+        if (end > reservedLimit) reserve(end);
+        block[0] = start;
+        block[1] = end;
+    }
+
+    //estende il limite su disco (write + force) oltre needed, una volta ogni RESERVE_IDS id
+    private synchronized void reserve(int needed) {
+        if (needed <= reservedLimit) return;
+        int limit = (int) Math.min(Integer.MAX_VALUE, (long) needed + RESERVE_IDS);
+        try {
+            slot.clear();
+            slot.putInt(MAGIC).putInt(limit);
+            crc.reset();
+            crc.update(slot.array(), 0, 8);
+            slot.putInt((int) crc.getValue());
+            slot.flip();
+            long position = (long) writeSlot * SLOT_STRIDE;
+            while (slot.hasRemaining()) {
+                channel.write(slot, position + slot.position());
+            }
+            channel.force(false);
+            writeSlot ^= 1;
+        } catch (IOException e) {
+            //senza limite durevole nessun id oltre il precedente puo' essere consegnato
+            throw new IllegalStateException("[OrderIdAllocator] Cannot record order id high-water mark - " + e.getMessage(), e);
+        }
+        reservedLimit = limit;
+    }
+
+    //limite registrato su disco: nessun id consegnato lo supera
+    public int getReservedLimit() {
+        return reservedLimit;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
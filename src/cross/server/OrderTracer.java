@@ -0,0 +1,140 @@
+package cross.server;
+
+import cross.utils.Log;
+
+/*
+* tracciamento opzionale della latenza di ogni ordine, per fasi (System.nanoTime):
+* richiesta decodificata (thread della connessione) -> presa in carico dall'executor (attesa in coda)
+* -> lock acquisito -> matching terminato -> risposta scritta, piu' l'ultima notifica UDP inviata durante il matching.
+* dalla presa in carico l'ordine e' gestito interamente dal thread dell'executor, quindi la traccia corrente e' thread-local.
+* ogni fase ha un istogramma nelle metriche (trace.*), gli ordini piu' lenti della soglia vengono scritti nel log.
+* disattivato, ogni punto di misura costa una lettura volatile
+* */
+public class OrderTracer {
+
+    private volatile boolean enabled;
+    private volatile long slowNanos;
+
+    private final ThreadLocal<Trace> current = ThreadLocal.withInitial(Trace::new);
+
+    private final LatencyHistogram queueStage;
+    private final LatencyHistogram lockStage;
+    private final LatencyHistogram matchStage;
+    private final LatencyHistogram notifyStage;
+    private final LatencyHistogram responseStage;
+    private final LatencyHistogram totalStage;
+
+    private static class Trace {
+        boolean active;
+        String operation;
+        long decoded;
+        long started;
+        long lockAcquired;
+        long matched;
+        long lastNotification;
+        int notifications;
+    }
+
+    public OrderTracer(MetricsRegistry metrics) {
+        queueStage = metrics.timer("trace.queue");
+        lockStage = metrics.timer("trace.lock");
+        matchStage = metrics.timer("trace.match");
+        notifyStage = metrics.timer("trace.notify");
+        responseStage = metrics.timer("trace.response");
+        totalStage = metrics.timer("trace.total");
+    }
+
+    //slowMicros: soglia oltre la quale la traccia completa viene scritta nel log (0: tutte)
+    public void configure(boolean enabled, long slowMicros) {
+        if (slowMicros < 0) {
+            throw new IllegalArgumentException("[OrderTracer] Slow order threshold must not be negative");
+        }
+        this.slowNanos = slowMicros * 1000;
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    //richiesta presa in carico dal thread corrente: inizio della traccia dalla decodifica (decodedNanos)
+    public void begin(String operation, long decodedNanos, long startedNanos) {
+        if (!enabled) return;
+        Trace trace = current.get();
+        trace.active = true;
+        trace.operation = operation;
+        trace.decoded = decodedNanos;
+        trace.started = startedNanos;
+        trace.lockAcquired = 0;
+        trace.matched = 0;
+        trace.lastNotification = 0;
+        trace.notifications = 0;
+    }
+
+    public void lockAcquired() {
+        if (!enabled) return;
+        Trace trace = current.get();
+        if (trace.active && trace.lockAcquired == 0) trace.lockAcquired = System.nanoTime();
+    }
+
+    public void matched() {
+        if (!enabled) return;
+        Trace trace = current.get();
+        if (trace.active) trace.matched = System.nanoTime();
+    }
+
+    public void notificationSent() {
+        if (!enabled) return;
+        Trace trace = current.get();
+        if (trace.active) {
+            trace.lastNotification = System.nanoTime();
+            trace.notifications++;
+        }
+    }
+
+    //risposta scritta: chiusura della traccia, aggiornamento degli istogrammi e log degli ordini lenti
+    public void responseWritten(int orderId) {
+        if (!enabled) return;
+        Trace trace = current.get();
+        if (!trace.active) return;
+        trace.active = false;
+        long now = System.nanoTime();
+        long total = now - trace.decoded;
+        totalStage.record(total);
+        queueStage.record(trace.started - trace.decoded);
+        long previous = trace.started;
+        if (trace.lockAcquired != 0) {
+            lockStage.record(trace.lockAcquired - previous);
+            previous = trace.lockAcquired;
+        }
+        if (trace.matched != 0) {
+            matchStage.record(trace.matched - previous);
+            previous = trace.matched;
+        }
+        if (trace.lastNotification != 0) notifyStage.record(trace.lastNotification - trace.decoded);
+        responseStage.record(now - previous);
+
+        if (total >= slowNanos) {
+            Log.warn("[OrderTracer] Slow {} order {}: {}", trace.operation, orderId, format(trace, now));
+        }
+    }
+
+    //tempi dall'inizio della richiesta, in microsecondi
+    private static String format(Trace trace, long responseWritten) {
+        StringBuilder out = new StringBuilder();
+        out.append("total ").append(micros(responseWritten - trace.decoded)).append(" us | decoded 0")
+                .append(" | started +").append(micros(trace.started - trace.decoded));
+        if (trace.lockAcquired != 0) out.append(" | lock +").append(micros(trace.lockAcquired - trace.decoded));
+        if (trace.matched != 0) out.append(" | matched +").append(micros(trace.matched - trace.decoded));
+        if (trace.lastNotification != 0) {
+            out.append(" | last udp +").append(micros(trace.lastNotification - trace.decoded))
+                    .append(" (").append(trace.notifications).append(" sent)");
+        }
+        out.append(" | response +").append(micros(responseWritten - trace.decoded));
+        return out.toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+}
@@ -0,0 +1,83 @@
+package cross.server;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+* username <-> id compatto usato nelle esecuzioni (id 0 = owner sconosciuto).
+* persistito in append su owners.dat (un writeUTF per nome, l'id e' la posizione a partire da 1):
+* flush() viene chiamato prima di confermare i segmenti, cosi' ogni id su disco ha il suo nome.
+* un solo scrittore (write lock dell'engine), lettori senza lock come in ExecutionLog
+* */
+public class OwnerTable {
+
+    private final Path path;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private String[] names = new String[64];
+    private volatile int count = 1;
+    //nomi gia' scritti su disco (solo thread di persistenza)
+    private int persisted = 1;
+
+    public OwnerTable(Path path) throws IOException {
+        this.path = path;
+        if(!Files.exists(path)) return;
+        byte[] data = Files.readAllBytes(path);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int valid = 0;
+        try{
+            while(valid < data.length){
+                add(in.readUTF());
+                valid = data.length - in.available();
+            }
+        } catch (EOFException e){
+            //nome troncato da un crash: nessun segmento confermato lo usa, viene scartato
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)){
+                channel.truncate(valid);
+            }
+        }
+        persisted = count;
+    }
+
+    //id del nome, assegnato al primo uso
+    public int intern(String name){
+        Integer id = ids.get(name);
+        return id != null ? id : add(name);
+    }
+
+    private int add(String name){
+        int id = count;
+        if(id == names.length){
+            names = Arrays.copyOf(names, id * 2);
+        }
+        names[id] = name;
+        ids.put(name, id);
+        count = id + 1;
+        return id;
+    }
+
+    //null per l'id 0 o sconosciuto
+    public String name(int id){
+        return id > 0 && id < count ? names[id] : null;
+    }
+
+    public synchronized void flush() throws IOException {
+        int n = count;
+        if(persisted == n) return;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))){
+            for(int id = persisted; id < n; id++){
+                out.writeUTF(names[id]);
+            }
+        }
+        try(FileOutputStream sync = new FileOutputStream(path.toFile(), true)){
+            sync.getFD().sync();
+        }
+        persisted = n;
+    }
+}
@@ -0,0 +1,163 @@
+package cross.server;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* executor separati per classe di richiesta, ognuno con thread, coda limitata e priorita' propri:
+* - AUTH: register, login, logout, updateCredentials
+* - ORDER: inserimento e cancellazione ordini
+* - QUERY: storico, candele, trade, analytics
+* una raffica di query o di registrazioni occupa solo il proprio executor, l'order entry resta isolato.
+* a coda piena la richiesta viene rifiutata subito (WorkerThread risponde 503), senza bloccare la connessione.
+* la priorita' dei thread e' un'indicazione per lo scheduler del sistema operativo.
+* l'attesa in coda di ogni classe finisce nelle metriche (queue.auth, queue.order, queue.query)
+* */
+public class RequestPools {
+
+    public enum Kind {
+        AUTH("auth"), ORDER("order"), QUERY("query");
+
+        private final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    //classe dell'operazione, null per le operazioni leggere eseguite sul thread della connessione (getStats, sconosciute)
+    public static Kind classify(String operation){
+        if(operation == null) return null;
+        switch (operation){
+            case "register":
+            case "login":
+            case "logout":
+            case "updateCredentials":
+                return Kind.AUTH;
+            case "insertLimitOrder":
+            case "insertMarketOrder":
+            case "insertStopOrder":
+            case "cancelOrder":
+                return Kind.ORDER;
+            case "getPriceHistory":
+            case "getCandles":
+            case "getTrades":
+            case "getAnalytics":
+                return Kind.QUERY;
+            default:
+                return null;
+        }
+    }
+
+    private static final class Settings {
+        final int threads;
+        final int queue;
+        final int priority;
+
+        Settings(int threads, int queue, int priority) {
+            this.threads = threads;
+            this.queue = queue;
+            this.priority = priority;
+        }
+    }
+
+    private final MetricsRegistry metrics;
+    private final Map<Kind, Settings> settings = new EnumMap<>(Kind.class);
+    private final Map<Kind, ThreadPoolExecutor> executors = new EnumMap<>(Kind.class);
+    private volatile boolean started;
+
+    public RequestPools(MetricsRegistry metrics) {
+        this.metrics = metrics;
+        //l'order entry e' serializzato dal write lock dell'engine: pochi thread bastano, con la priorita' piu' alta
+        settings.put(Kind.AUTH, new Settings(2, 256, Thread.NORM_PRIORITY));
+        settings.put(Kind.ORDER, new Settings(4, 1024, Thread.NORM_PRIORITY + 2));
+        settings.put(Kind.QUERY, new Settings(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), 256, Thread.NORM_PRIORITY - 2));
+    }
+
+    //prima di start(): thread, posti in coda e priorita' (Thread.MIN_PRIORITY..MAX_PRIORITY) della classe
+    public synchronized void configure(Kind kind, int threads, int queue, int priority){
+        if(started) throw new IllegalStateException("[RequestPools] Pools already started");
+        if(threads < 1 || queue < 1 || priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY){
+            throw new IllegalArgumentException("[RequestPools] Invalid " + kind.getLabel() + " pool: threads " + threads
+                    + ", queue " + queue + ", priority " + priority);
+        }
+        settings.put(kind, new Settings(threads, queue, priority));
+    }
+
+    public synchronized int getThreads(Kind kind){
+        return settings.get(kind).threads;
+    }
+
+    public synchronized int getQueueCapacity(Kind kind){
+        return settings.get(kind).queue;
+    }
+
+    public synchronized int getPriority(Kind kind){
+        return settings.get(kind).priority;
+    }
+
+    public synchronized void start(){
+        if(started) return;
+        for(Kind kind : Kind.values()){
+            Settings s = settings.get(kind);
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(s.threads, s.threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(s.queue), r -> {
+                        Thread t = new Thread(r, "cross-" + kind.getLabel() + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        t.setPriority(s.priority);
+                        return t;
+                    });
+            executors.put(kind, executor);
+            metrics.gauge("queued." + kind.getLabel(), () -> executor.getQueue().size());
+        }
+        started = true;
+    }
+
+    //accoda il task nell'executor della classe, false se la coda e' piena o gli executor sono fermi
+    public boolean execute(Kind kind, Runnable task){
+        if(!started) return false;
+        ThreadPoolExecutor executor = executors.get(kind);
+        LatencyHistogram queueWait = metrics.timer("queue." + kind.getLabel());
+        long submitted = System.nanoTime();
+        try{
+            executor.execute(() -> {
+                queueWait.record(System.nanoTime() - submitted);
+                task.run();
+            });
+            return true;
+        } catch (RejectedExecutionException e){
+            return false;
+        }
+    }
+
+    public synchronized void shutdown(){
+        for(ThreadPoolExecutor executor : executors.values()){
+            executor.shutdownNow();
+        }
+    }
+
+    //stop ordinato: nessuna nuova richiesta (rifiutata con 503), attesa dei task accodati e in corso
+    //entro timeout, poi interruzione di quelli rimasti. true se tutti gli executor si sono svuotati
+    public synchronized boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        for(ThreadPoolExecutor executor : executors.values()){
+            executor.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained = true;
+        for(ThreadPoolExecutor executor : executors.values()){
+            drained &= executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        shutdown();
+        return drained;
+    }
+}
@@ -0,0 +1,137 @@
+package cross.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/*
+* cache LRU di risposte gia' codificate (JSON, con il codice di risposta per le metriche),
+* limitata dalla dimensione totale delle risposte:
+* - una voce immutabile resta valida finche' non viene espulsa
+* - una voce mutabile scade dopo ttlMillis o quando cambia la generazione passata dal chiamante
+*   (es. contatore dei trade eseguiti)
+* richieste concorrenti per la stessa chiave attendono un'unica computazione (single-flight),
+* che avviene fuori dal monitor della cache
+* */
+public class ResponseCache<K> {
+
+    public static final long IMMUTABLE = Long.MAX_VALUE;
+
+    private final long maxChars;
+    private final LinkedHashMap<K, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long chars;
+    private long hits;
+    private long misses;
+
+    public ResponseCache(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    public Response get(K key, long ttlMillis, long generation, Supplier<Response> loader){
+        Entry entry;
+        boolean owner = false;
+        synchronized (this){
+            entry = entries.get(key);
+            if(entry == null || entry.generation != generation || entry.isExpired()){
+                if(entry != null) remove(key, entry);
+                entry = new Entry(generation, ttlMillis);
+                entries.put(key, entry);
+                owner = true;
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        if(!owner){
+            try{
+                return entry.value.join();
+            } catch (CompletionException e){
+                if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+        Response value;
+        try{
+            value = loader.get();
+        } catch (RuntimeException e){
+            synchronized (this){
+                if(entries.get(key) == entry) remove(key, entry);
+            }
+            entry.value.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this){
+            entry.complete(value.body.length());
+            if(entries.get(key) == entry){
+                chars += entry.chars;
+                evict();
+            }
+        }
+        entry.value.complete(value);
+        return value;
+    }
+
+    private void remove(K key, Entry entry){
+        entries.remove(key);
+        chars -= entry.chars;
+    }
+
+    //espulsione delle voci meno usate di recente, le computazioni in corso non vengono espulse
+    private void evict(){
+        Iterator<Map.Entry<K, Entry>> it = entries.entrySet().iterator();
+        while(chars > maxChars && it.hasNext()){
+            Entry entry = it.next().getValue();
+            if(!entry.value.isDone()) continue;
+            it.remove();
+            chars -= entry.chars;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getChars() {
+        return chars;
+    }
+
+    //risposta codificata e il suo codice (100 successo), condivisa tra le richieste
+    public static final class Response {
+        public final int code;
+        public final String body;
+
+        public Response(int code, String body) {
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    private static final class Entry {
+        final CompletableFuture<Response> value = new CompletableFuture<>();
+        final long generation;
+        final long ttlMillis;
+        long expiresAt = Long.MAX_VALUE;
+        long chars;
+
+        Entry(long generation, long ttlMillis) {
+            this.generation = generation;
+            this.ttlMillis = ttlMillis;
+        }
+
+        void complete(long chars){
+            this.chars = chars;
+            if(ttlMillis != IMMUTABLE) expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        boolean isExpired(){
+            return expiresAt != Long.MAX_VALUE && System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
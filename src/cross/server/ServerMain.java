@@ -1,7 +1,10 @@
 package cross.server;
 
+import cross.utils.Log;
+
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Properties;
 import java.util.Scanner;
@@ -25,13 +28,64 @@ public class ServerMain {
             return;
         }
         
+        //finestra dei trade in memoria (opzionale): numero massimo e/o eta' massima in minuti
+        int windowTrades;
+        long windowMinutes;
+        try{
+            windowTrades = Integer.parseInt(props.getProperty("tradeWindowTrades", "1000000"));
+            windowMinutes = Long.parseLong(props.getProperty("tradeWindowMinutes", "0"));
+        } catch (NumberFormatException e){
+            System.err.println("[ServerMain] Invalid trade window in server_config.properties");
+            return;
+        }
+        
+        //log: livello, directory dei file a rotazione (vuota = solo console), dimensione e numero dei file
+        try{
+            String logDir = props.getProperty("logDir", "../logs").trim();
+            Log.configure(Log.parseLevel(props.getProperty("logLevel", "INFO")),
+                    logDir.isEmpty() ? null : Paths.get(logDir), "server",
+                    Long.parseLong(props.getProperty("logFileMB", "64")) << 20,
+                    Integer.parseInt(props.getProperty("logFiles", "5")),
+                    Boolean.parseBoolean(props.getProperty("logConsole", "true")));
+        } catch (IOException | IllegalArgumentException e){
+            System.err.println("[ServerMain] Invalid log configuration in server_config.properties - " + e.getMessage());
+            return;
+        }
+        
+        //storage del book: heap (default) oppure offheap per book molto profondi
+        OrderBook book;
+        switch (props.getProperty("orderBook", "heap").trim().toLowerCase()){
+            case "heap": book = new HeapOrderBook(); break;
+            case "offheap": book = new OffHeapOrderBook(); break;
+            default:
+                System.err.println("[ServerMain] Invalid orderBook in server_config.properties (heap or offheap)");
+                return;
+        }
+        
         CrossServer server;
         Thread serverThread = null;
         try{
-            server = new CrossServer(port);
-        } catch (IOException e){
-            System.out.println("[ServerMain] Server initialization error");
-            e.printStackTrace();
+            server = new CrossServer(port, book);
+            server.setTradeWindow(windowTrades, windowMinutes * 60_000L);
+            //tracce di latenza per ordine (opzionali): ordini oltre traceSlowMicros scritti nel log
+            server.getTracer().configure(Boolean.parseBoolean(props.getProperty("traceOrders", "false")),
+                    Long.parseLong(props.getProperty("traceSlowMicros", "10000")));
+            //executor per classe di richiesta: <classe>Threads, <classe>Queue, <classe>Priority con classe auth, order o query
+            RequestPools pools = server.getRequestPools();
+            for(RequestPools.Kind kind : RequestPools.Kind.values()){
+                String prefix = kind.getLabel();
+                pools.configure(kind,
+                        Integer.parseInt(props.getProperty(prefix + "Threads", Integer.toString(pools.getThreads(kind))).trim()),
+                        Integer.parseInt(props.getProperty(prefix + "Queue", Integer.toString(pools.getQueueCapacity(kind))).trim()),
+                        Integer.parseInt(props.getProperty(prefix + "Priority", Integer.toString(pools.getPriority(kind))).trim()));
+            }
+            //cattura dei comandi per il replay offline (CommandReplay)
+            if(Boolean.parseBoolean(props.getProperty("captureCommands", "false"))){
+                server.startCapture();
+            }
+        } catch (IOException | IllegalArgumentException e){
+            Log.error("[ServerMain] Server initialization error", e);
+            Log.shutdown();
             return;
         }
         //avvio server in un thread separato
@@ -41,39 +95,39 @@ public class ServerMain {
                 finalServer.start();
             } catch (IOException e) {
                 if (finalServer.isRunning()) {
-                    System.err.println("[ServerMain] Error during execution of server");
-                    e.printStackTrace();
+                    Log.error("[ServerMain] Error during execution of server", e);
                 }
             }
         });
         
         serverThread.start();
-        System.out.println("[ServerMain] Server started, to terminate server: 'exit', 'quit' or 'close'");
+        System.out.println("[ServerMain] Server started, to terminate server: 'exit', 'quit' or 'close', metrics: 'stats'");
     //thread principale per ascoltare i comandi della console
     try(Scanner scanner = new Scanner(System.in)){
         while(true){
             String command = scanner.nextLine().trim().toLowerCase();
             if(Arrays.asList("exit", "quit", "close").contains(command)){
-                System.out.println("[ServerMain] Server terminated");
+                Log.info("[ServerMain] Server terminated");
                 finalServer.stop();
                 break;
+            } else if(command.equals("stats")){
+                System.out.print(finalServer.getMetrics().format());
             } else {
                 System.out.println("[ServerMain] Unknown server command: " + command);
                 }
             }
         } catch (Exception e){
-            System.err.println("[ServerMain] Error during reading command");
-            e.printStackTrace();
+            Log.error("[ServerMain] Error during reading command", e);
     }
     
     //attesa per terminazione thread di server
         try{
             serverThread.join();
         } catch (InterruptedException e) {
-            System.err.println("[ServerMain] Main thread interrupted");
-            e.printStackTrace();
+            Log.error("[ServerMain] Main thread interrupted", e);
         }
      
-        System.out.println("[ServerMain] Server correctly terminated");
+        Log.info("[ServerMain] Server correctly terminated");
+        Log.shutdown();
     }
 }
@@ -0,0 +1,214 @@
+package cross.server;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+* aggregazioni sullo storico dei trade in un intervallo [from, to):
+* numero di esecuzioni, volume, VWAP, massimo/minimo, volume per lato e tipo d'ordine, volume per lato aggressore,
+* controvalore scambiato per utente (entrambi i lati), distribuzione del volume per fascia di prezzo.
+* la scansione e' divisa in blocchi di SPLIT_RECORDS esecuzioni eseguiti su un ForkJoinPool dedicato
+* (separato dai thread che gestiscono gli ordini), i parziali sono interi e si sommano,
+* quindi il risultato e' identico a quello della scansione sequenziale.
+* la distribuzione ha al massimo MAX_DISTRIBUTION_BUCKETS fasce: un parziale che le supera ferma
+* tutta la scansione (controllo ogni CHECK_RECORDS esecuzioni) e la richiesta viene rifiutata
+* */
+public class TradeAnalytics implements AutoCloseable {
+
+    public static final int MAX_DISTRIBUTION_BUCKETS = 10_000;
+    private static final int SPLIT_RECORDS = 1 << 16;
+    private static final int CHECK_RECORDS = 1 << 12;
+
+    private final TradeStore store;
+    private final ForkJoinPool pool;
+
+    public TradeAnalytics(TradeStore store, int parallelism) {
+        this.store = store;
+        this.pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("analytics-" + t.getPoolIndex());
+            t.setDaemon(true);
+            return t;
+        }, null, false);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    //scansione parallela sul pool dedicato, null se le fasce di prezzo superano MAX_DISTRIBUTION_BUCKETS
+    public Result analyze(long from, long to, int priceBucket){
+        int start = store.lowerBound(from);
+        int end = store.lowerBound(to);
+        Partial partial = pool.invoke(new ScanTask(this, start, end, priceBucket, new AtomicBoolean()));
+        return partial.toResult(from, to, priceBucket, store.owners());
+    }
+
+    //riferimento sequenziale sul thread chiamante
+    public Result analyzeSequential(long from, long to, int priceBucket){
+        int start = store.lowerBound(from);
+        int end = store.lowerBound(to);
+        return scan(start, end, priceBucket, new AtomicBoolean()).toResult(from, to, priceBucket, store.owners());
+    }
+
+    //a tratti di CHECK_RECORDS, si ferma appena un parziale (questo o un altro task) supera le fasce ammesse
+    private Partial scan(int start, int end, int priceBucket, AtomicBoolean overflow){
+        Partial partial = new Partial();
+        TradeStore.ExecutionVisitor visitor = (timestamp, price, size, bidOwner, askOwner, flags) ->
+                partial.add(price, size, bidOwner, askOwner, flags, priceBucket);
+        for(int i = start; i < end && !partial.overflow && !overflow.get(); i += CHECK_RECORDS){
+            store.scan(i, Math.min(end, i + CHECK_RECORDS), visitor);
+        }
+        if(partial.overflow || overflow.get()){
+            partial.overflow = true;
+            overflow.set(true);
+        }
+        return partial;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    //statico con l'analytics esplicito: il task non trattiene l'istanza esterna (mai serializzato)
+    @SuppressWarnings("serial")
+    private static final class ScanTask extends RecursiveTask<Partial> {
+        private final TradeAnalytics analytics;
+        private final int start;
+        private final int end;
+        private final int priceBucket;
+        //condiviso da tutti i task della stessa richiesta
+        private final AtomicBoolean overflow;
+
+        ScanTask(TradeAnalytics analytics, int start, int end, int priceBucket, AtomicBoolean overflow) {
+            this.analytics = analytics;
+            this.start = start;
+            this.end = end;
+            this.priceBucket = priceBucket;
+            this.overflow = overflow;
+        }
+
+        @Override
+        protected Partial compute() {
+            if(end - start <= SPLIT_RECORDS){
+                return analytics.scan(start, end, priceBucket, overflow);
+            }
+            int mid = (start + end) >>> 1;
+            ScanTask left = new ScanTask(analytics, start, mid, priceBucket, overflow);
+            left.fork();
+            Partial right = new ScanTask(analytics, mid, end, priceBucket, overflow).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    //accumulatore di un blocco, solo somme intere
+    private static final class Partial {
+        long fills;
+        long volume;
+        long notional;
+        int high = Integer.MIN_VALUE;
+        int low = Integer.MAX_VALUE;
+        //indice: lato (0 bid, 1 ask) * 3 + tipo ordine
+        final long[] sideVolume = new long[6];
+        //indice: aggressore bid, ask, sconosciuto (storico importato)
+        final long[] aggressorVolume = new long[3];
+        //id owner -> controvalore
+        final HashMap<Integer, Long> turnover = new HashMap<>();
+        final HashMap<Integer, Long> distribution = new HashMap<>();
+        //piu' di MAX_DISTRIBUTION_BUCKETS fasce: parziale da scartare
+        boolean overflow;
+
+        void add(int price, int size, int bidOwner, int askOwner, int flags, int priceBucket){
+            long value = (long) price * size;
+            if((flags & Execution.NO_BID) == 0){
+                sideVolume[Execution.bidOrderTypeCode(flags)] += size;
+                if(bidOwner != 0) turnover.merge(bidOwner, value, Long::sum);
+            }
+            if((flags & Execution.NO_ASK) == 0){
+                sideVolume[3 + Execution.askOrderTypeCode(flags)] += size;
+                if(askOwner != 0) turnover.merge(askOwner, value, Long::sum);
+            }
+            aggressorVolume[(flags & Execution.AGGRESSOR_UNKNOWN) != 0 ? 2 : flags & Execution.ASK_AGGRESSOR] += size;
+            fills++;
+            volume += size;
+            notional += value;
+            if(price > high) high = price;
+            if(price < low) low = price;
+            distribution.merge(Math.floorDiv(price, priceBucket) * priceBucket, (long) size, Long::sum);
+            if(distribution.size() > MAX_DISTRIBUTION_BUCKETS) overflow = true;
+        }
+
+        Partial merge(Partial other){
+            fills += other.fills;
+            volume += other.volume;
+            notional += other.notional;
+            high = Math.max(high, other.high);
+            low = Math.min(low, other.low);
+            for(int i = 0; i < sideVolume.length; i++){
+                sideVolume[i] += other.sideVolume[i];
+            }
+            for(int i = 0; i < aggressorVolume.length; i++){
+                aggressorVolume[i] += other.aggressorVolume[i];
+            }
+            other.turnover.forEach((owner, value) -> turnover.merge(owner, value, Long::sum));
+            overflow |= other.overflow;
+            if(!overflow){
+                other.distribution.forEach((bucket, size) -> distribution.merge(bucket, size, Long::sum));
+                if(distribution.size() > MAX_DISTRIBUTION_BUCKETS) overflow = true;
+            }
+            return this;
+        }
+
+        Result toResult(long from, long to, int priceBucket, OwnerTable owners){
+            if(overflow) return null;
+            Result result = new Result();
+            result.from = from;
+            result.to = to;
+            result.fills = fills;
+            result.volume = volume;
+            result.vwap = volume > 0 ? (notional + volume / 2) / volume : 0;
+            result.high = fills > 0 ? high : 0;
+            result.low = fills > 0 ? low : 0;
+            String[] sides = {"bid", "ask"};
+            for(int side = 0; side < 2; side++){
+                Map<String, Long> byType = new LinkedHashMap<>();
+                for(int type = 0; type < 3; type++){
+                    byType.put(EngineSnapshot.orderTypeName(type), sideVolume[side * 3 + type]);
+                }
+                result.volumeBySide.put(sides[side], byType);
+            }
+            result.volumeByAggressor.put("bid", aggressorVolume[0]);
+            result.volumeByAggressor.put("ask", aggressorVolume[1]);
+            result.volumeByAggressor.put("unknown", aggressorVolume[2]);
+            turnover.forEach((owner, value) -> result.turnoverByUser.put(owners.name(owner), value));
+            result.priceBucket = priceBucket;
+            result.priceDistribution = new TreeMap<>(distribution);
+            return result;
+        }
+    }
+
+    //risultato serializzato in JSON (campi pubblici, come OHLC)
+    public static class Result {
+        public long from;
+        public long to;
+        public long fills;
+        public long volume;
+        public long vwap;
+        public int high;
+        public int low;
+        public Map<String, Map<String, Long>> volumeBySide = new LinkedHashMap<>();
+        public Map<String, Long> volumeByAggressor = new LinkedHashMap<>();
+        //username -> controvalore (price * size) scambiato come bid o ask
+        public Map<String, Long> turnoverByUser = new TreeMap<>();
+        public int priceBucket;
+        //inizio fascia di prezzo -> volume
+        public Map<Integer, Long> priceDistribution;
+    }
+}
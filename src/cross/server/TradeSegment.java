@@ -0,0 +1,210 @@
+package cross.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+* segmento su disco con le esecuzioni di un singolo mese (UTC), layout colonnare a larghezza fissa:
+* - header: magic, versione, record per blocco, numero di record confermati
+* - blocchi di BLOCK_RECORDS esecuzioni, ogni blocco contiene le colonne una dopo l'altra:
+*   timestamp (8 byte) | price | size | bidOrderId | askOrderId | bidOwner | askOwner (4 ciascuno) | flags (1)
+* i record oltre il count dell'header (scrittura interrotta) vengono ignorati.
+* la lettura avviene tramite MappedByteBuffer, senza copie in heap.
+* un segmento con magic, versione o dimensione dei blocchi diversi viene rifiutato all'apertura
+* */
+public class TradeSegment implements Closeable {
+
+    private static final int MAGIC = 0x54524453; // "TRDS"
+    private static final int VERSION = 2;
+    static final int HEADER_BYTES = 64;
+    static final int BLOCK_RECORDS = 4096;
+
+    //offset delle colonne all'interno di un blocco
+    private static final int TS_OFFSET = 0;
+    private static final int PRICE_OFFSET = TS_OFFSET + 8 * BLOCK_RECORDS;
+    private static final int SIZE_OFFSET = PRICE_OFFSET + 4 * BLOCK_RECORDS;
+    private static final int BID_ID_OFFSET = SIZE_OFFSET + 4 * BLOCK_RECORDS;
+    private static final int ASK_ID_OFFSET = BID_ID_OFFSET + 4 * BLOCK_RECORDS;
+    private static final int BID_OWNER_OFFSET = ASK_ID_OFFSET + 4 * BLOCK_RECORDS;
+    private static final int ASK_OWNER_OFFSET = BID_OWNER_OFFSET + 4 * BLOCK_RECORDS;
+    private static final int FLAGS_OFFSET = ASK_OWNER_OFFSET + 4 * BLOCK_RECORDS;
+    static final int BLOCK_BYTES = FLAGS_OFFSET + BLOCK_RECORDS;
+
+    private static final int COUNT_POSITION = 16;
+    //blocchi per finestra mappata in lettura (~540 MB): le posizioni in una finestra restano int,
+    //un segmento oltre i 2 GB viene letto con piu' finestre
+    static final int WINDOW_BLOCKS = 4096;
+
+    private final Path path;
+    private final FileChannel channel;
+    //record confermati su disco (scritti solo dal thread di persistenza, letti dalle query)
+    private volatile int count;
+    //record scritti ma non ancora confermati nell'header
+    private int pending;
+    private MappedByteBuffer writeBlock;
+    private int writeBlockIndex = -1;
+
+    private TradeSegment(Path path, FileChannel channel, int count) {
+        this.path = path;
+        this.channel = channel;
+        this.count = count;
+    }
+
+    public static TradeSegment open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int count = 0;
+        if(channel.size() == 0){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(BLOCK_RECORDS).putInt(0).putLong(0);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            header.flip();
+            int magic = header.getInt();
+            int version = header.getInt();
+            int blockRecords = header.getInt();
+            if(magic != MAGIC || version != VERSION || blockRecords != BLOCK_RECORDS){
+                channel.close();
+                throw new IOException("[TradeSegment] Unsupported segment format: " + path);
+            }
+            header.getInt();
+            count = (int) header.getLong();
+        }
+        return new TradeSegment(path, channel, count);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    //scrive un record dopo quelli gia' presenti, visibile solo dopo commit()
+    public void write(Execution execution) throws IOException {
+        int index = count + pending;
+        int block = index / BLOCK_RECORDS;
+        int slot = index % BLOCK_RECORDS;
+        if(block != writeBlockIndex){
+            if(writeBlock != null) writeBlock.force();
+            writeBlock = channel.map(FileChannel.MapMode.READ_WRITE, blockPosition(block), BLOCK_BYTES);
+            writeBlockIndex = block;
+        }
+        writeBlock.putLong(TS_OFFSET + slot * 8, execution.getTimestamp());
+        writeBlock.putInt(PRICE_OFFSET + slot * 4, execution.getPrice());
+        writeBlock.putInt(SIZE_OFFSET + slot * 4, execution.getSize());
+        writeBlock.putInt(BID_ID_OFFSET + slot * 4, execution.getBidOrderId());
+        writeBlock.putInt(ASK_ID_OFFSET + slot * 4, execution.getAskOrderId());
+        writeBlock.putInt(BID_OWNER_OFFSET + slot * 4, execution.getBidOwner());
+        writeBlock.putInt(ASK_OWNER_OFFSET + slot * 4, execution.getAskOwner());
+        writeBlock.put(FLAGS_OFFSET + slot, (byte) execution.getFlags());
+        pending++;
+    }
+
+    //rende durevoli i record scritti: prima i dati, poi il count nell'header
+    //ritorna i byte di dati confermati
+    public long commit() throws IOException {
+        if(pending == 0) return 0;
+        if(writeBlock != null) writeBlock.force();
+        count += pending;
+        long bytes = (long) pending * (BLOCK_BYTES / BLOCK_RECORDS);
+        pending = 0;
+        ByteBuffer countBuffer = ByteBuffer.allocate(8).putLong(0, count);
+        channel.write(countBuffer, COUNT_POSITION);
+        channel.force(false);
+        return bytes;
+    }
+
+    //mappa in sola lettura i primi records record, gia' confermati, a finestre di WINDOW_BLOCKS blocchi
+    public Reader reader(int records) throws IOException {
+        int blocks = (records + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+        ByteBuffer[] windows = new ByteBuffer[(blocks + WINDOW_BLOCKS - 1) / WINDOW_BLOCKS];
+        for(int w = 0; w < windows.length; w++){
+            int first = w * WINDOW_BLOCKS;
+            int count = Math.min(WINDOW_BLOCKS, blocks - first);
+            windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, blockPosition(first), (long) count * BLOCK_BYTES);
+        }
+        return new Reader(windows, records);
+    }
+
+    private static long blockPosition(int block){
+        return HEADER_BYTES + (long) block * BLOCK_BYTES;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeBlock = null;
+        channel.close();
+    }
+
+    //accesso colonnare ai record di un segmento mappato a finestre (vedi WINDOW_BLOCKS)
+    public static class Reader {
+        private final ByteBuffer[] windows;
+        private final int count;
+
+        Reader(ByteBuffer[] windows, int count) {
+            this.windows = windows;
+            this.count = count;
+        }
+
+        public int count(){
+            return count;
+        }
+
+        private ByteBuffer window(int index){
+            return windows[index / BLOCK_RECORDS / WINDOW_BLOCKS];
+        }
+
+        //posizione all'interno della finestra: al massimo WINDOW_BLOCKS * BLOCK_BYTES
+        private static int position(int index, int columnOffset, int width){
+            return (index / BLOCK_RECORDS % WINDOW_BLOCKS) * BLOCK_BYTES + columnOffset + (index % BLOCK_RECORDS) * width;
+        }
+
+        public long timestamp(int index){
+            return window(index).getLong(position(index, TS_OFFSET, 8));
+        }
+
+        public int price(int index){
+            return window(index).getInt(position(index, PRICE_OFFSET, 4));
+        }
+
+        public int size(int index){
+            return window(index).getInt(position(index, SIZE_OFFSET, 4));
+        }
+
+        public int bidOrderId(int index){
+            return window(index).getInt(position(index, BID_ID_OFFSET, 4));
+        }
+
+        public int askOrderId(int index){
+            return window(index).getInt(position(index, ASK_ID_OFFSET, 4));
+        }
+
+        public int bidOwner(int index){
+            return window(index).getInt(position(index, BID_OWNER_OFFSET, 4));
+        }
+
+        public int askOwner(int index){
+            return window(index).getInt(position(index, ASK_OWNER_OFFSET, 4));
+        }
+
+        //come Execution.getFlags
+        public int flags(int index){
+            return window(index).get(position(index, FLAGS_OFFSET, 1)) & 0xFF;
+        }
+
+        public Execution execution(int index){
+            return new Execution(timestamp(index), price(index), size(index), bidOrderId(index), askOrderId(index),
+                    bidOwner(index), askOwner(index), flags(index));
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package cross.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+* storico delle esecuzioni, un record per fill (Execution):
+* - su disco: un TradeSegment per mese, lo storico precedente all'avvio non viene caricato in heap
+* - in memoria: le esecuzioni dall'avvio (ExecutionLog append-only, array primitivi)
+* - owners.dat: i nomi degli owner, nei record compare solo il loro id (OwnerTable)
+* gli indici sono globali: le prime baseCount esecuzioni sono quelle trovate su disco all'avvio.
+* flush() copia sui segmenti le esecuzioni in memoria fino a un watermark, evict() libera la memoria di quelle
+* gia' su disco fuori dalla finestra recente: da quel momento vengono lette dai segmenti mappati.
+* le esecuzioni sono in ordine di timestamp: TradeTimeIndex risolve un intervallo di tempo in posizioni globali
+* */
+public class TradeStore implements Closeable {
+
+    private static final Pattern FILE_PATTERN = Pattern.compile("trades-(\\d{4})-(\\d{2})\\.seg");
+
+    private final Path directory;
+    private final Map<YearMonth, TradeSegment> segments = new ConcurrentHashMap<>();
+    //record presenti in ogni segmento all'avvio
+    private final Map<YearMonth, Integer> startupCounts = new HashMap<>();
+    /*
+    * posizione globale -> tratto contiguo di un segmento: un tratto per ogni mese su disco all'avvio
+    * e uno per ogni mese iniziato dopo l'avvio (i trade successivi si accodano al segmento del loro mese)
+    * */
+    private final NavigableMap<Integer, Range> ranges = new ConcurrentSkipListMap<>();
+    //lettori mappati dei segmenti, rimappati quando servono record scritti dopo la mappatura
+    private final Map<YearMonth, TradeSegment.Reader> readers = new ConcurrentHashMap<>();
+    private final TradeTimeIndex timeIndex = new TradeTimeIndex();
+
+    private final int baseCount;
+    private final ExecutionLog recent = new ExecutionLog();
+    private final OwnerTable owners;
+    //mese dell'ultimo trade accodato (write lock dell'engine)
+    private YearMonth lastMonth;
+    private volatile long lastTimestamp = Long.MIN_VALUE;
+    //indice globale del primo trade non ancora su disco (solo thread di persistenza)
+    private int flushed;
+
+    private record Range(YearMonth month, int localStart) {}
+
+    public TradeStore(String directory) throws IOException {
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory);
+        this.owners = new OwnerTable(this.directory.resolve("owners.dat"));
+        int total = 0;
+        File[] files = this.directory.toFile().listFiles();
+        if(files != null){
+            for(File file : files){
+                Matcher m = FILE_PATTERN.matcher(file.getName());
+                if(!m.matches()) continue;
+                YearMonth month = YearMonth.of(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+                TradeSegment segment = TradeSegment.open(file.toPath());
+                segments.put(month, segment);
+                startupCounts.put(month, segment.getCount());
+                total += segment.getCount();
+            }
+        }
+        this.baseCount = total;
+        this.flushed = total;
+        
+        //indice per giorno dei trade su disco: una ricerca binaria per giorno, senza leggere tutti i record
+        int base = 0;
+        for(YearMonth month : new TreeSet<>(startupCounts.keySet())){
+            int onDisk = startupCounts.get(month);
+            if(onDisk == 0) continue;
+            TradeSegment.Reader reader = segments.get(month).reader(onDisk);
+            ranges.put(base, new Range(month, 0));
+            readers.put(month, reader);
+            lastMonth = month;
+            lastTimestamp = reader.timestamp(onDisk - 1);
+            //fino al giorno dell'ultimo trade: i giorni successivi verranno indicizzati dai nuovi trade
+            long lastDay = TradeTimeIndex.epochDay(lastTimestamp);
+            for(long epochDay = month.atDay(1).toEpochDay(); epochDay <= lastDay; epochDay++){
+                timeIndex.add(epochDay, base + lowerBound(reader, 0, onDisk, epochDay * 86_400_000L));
+            }
+            base += onDisk;
+        }
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    //nomi degli owner delle esecuzioni
+    public OwnerTable owners(){
+        return owners;
+    }
+
+    //numero totale di esecuzioni (su disco all'avvio + eseguite dall'avvio)
+    public int size(){
+        return baseCount + recent.size();
+    }
+
+    //chiamato sotto il write lock dell'engine, i timestamp non decrescono
+    public void append(Execution execution){
+        int index = size();
+        recent.append(execution);
+        lastTimestamp = execution.getTimestamp();
+        long epochDay = TradeTimeIndex.epochDay(execution.getTimestamp());
+        if(epochDay > timeIndex.lastDay()){
+            timeIndex.add(epochDay, index);
+            //un nuovo mese inizia un nuovo tratto, nel suo segmento
+            YearMonth month = monthOf(execution.getTimestamp());
+            if(!month.equals(lastMonth)){
+                ranges.put(index, new Range(month, startupCounts.getOrDefault(month, 0)));
+                lastMonth = month;
+            }
+        }
+    }
+    
+    //esecuzione in posizione globale index: in memoria se nella finestra recente, altrimenti dal segmento
+    public Execution get(int index){
+        if(index >= baseCount){
+            Execution execution = recent.get(index - baseCount);
+            if(execution != null) return execution;
+        }
+        Map.Entry<Integer, Range> range = ranges.floorEntry(index);
+        int local = range.getValue().localStart() + index - range.getKey();
+        return reader(range.getValue().month(), local).execution(local);
+    }
+    
+    public long timestamp(int index){
+        if(index >= baseCount){
+            Execution execution = recent.get(index - baseCount);
+            if(execution != null) return execution.getTimestamp();
+        }
+        Map.Entry<Integer, Range> range = ranges.floorEntry(index);
+        int local = range.getValue().localStart() + index - range.getKey();
+        return reader(range.getValue().month(), local).timestamp(local);
+    }
+    
+    //lettore che copre almeno il record local del segmento del mese
+    private TradeSegment.Reader reader(YearMonth month, int local){
+        TradeSegment.Reader reader = readers.get(month);
+        if(reader == null || local >= reader.count()){
+            TradeSegment segment = segments.get(month);
+            try{
+                reader = segment.reader(segment.getCount());
+            } catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+            readers.put(month, reader);
+        }
+        return reader;
+    }
+    
+    //timestamp dell'ultima esecuzione, Long.MIN_VALUE se lo storico e' vuoto
+    public long lastTimestamp(){
+        return lastTimestamp;
+    }
+    
+    //esecuzioni attualmente in memoria
+    public int inMemory(){
+        return recent.size() - recent.evicted();
+    }
+    
+    /*
+    * posizione globale della prima esecuzione con timestamp >= timestamp (size() se non esiste):
+    * le esecuzioni [lowerBound(from), lowerBound(to)) sono quelle dell'intervallo [from, to)
+    * */
+    public int lowerBound(long timestamp){
+        int size = size();
+        int[] bounds = timeIndex.bounds(TradeTimeIndex.epochDay(timestamp), size);
+        int low = bounds[0];
+        int high = Math.min(bounds[1], size);
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(timestamp(mid) < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+    
+    private static int lowerBound(TradeSegment.Reader reader, int low, int high, long timestamp){
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(reader.timestamp(mid) < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /*
+    * importazione diretta su disco (migrazione dal vecchio trades.json), da usare solo
+    * all'avvio prima di aprire lo store: i trade passano direttamente ai segmenti, senza restare in heap.
+    * i Trade per lato vengono riappaiati in esecuzioni (Execution.Pairer), i segmenti vengono confermati alla chiusura
+    * */
+    public static Importer importer(String directory) throws IOException {
+        return new Importer(new TradeStore(directory));
+    }
+    
+    public static class Importer implements Consumer<Trade>, Closeable {
+        private final TradeStore store;
+        private final Execution.Pairer pairer = new Execution.Pairer(this::write);
+        private YearMonth currentMonth;
+        private TradeSegment current;
+        private int trades;
+        private int count;
+        
+        private Importer(TradeStore store) {
+            this.store = store;
+        }
+        
+        @Override
+        public void accept(Trade trade) {
+            pairer.accept(trade);
+            trades++;
+        }
+        
+        //esecuzione gia' appaiata (gli owner vanno registrati con owners())
+        public void write(Execution execution) {
+            try{
+                YearMonth month = monthOf(execution.getTimestamp());
+                if(!month.equals(currentMonth)){
+                    currentMonth = month;
+                    current = store.segmentFor(month);
+                }
+                current.write(execution);
+                count++;
+            } catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        public OwnerTable owners(){
+            return store.owners;
+        }
+        
+        //trade per lato ricevuti
+        public int getCount() {
+            return trades;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            pairer.finish();
+            try{
+                store.owners.flush();
+                for(TradeSegment segment : store.segments.values()){
+                    segment.commit();
+                }
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /*
+    * scrive sui segmenti le esecuzioni in memoria con indice globale < watermark.
+    * prima i nomi degli owner, poi i segmenti nell'ordine in cui sono stati toccati (ordine temporale),
+    * cosi' dopo un crash lo storico su disco e' sempre un prefisso. ritorna i byte scritti
+    * */
+    public synchronized long flush(int watermark) throws IOException {
+        owners.flush();
+        List<TradeSegment> touched = new ArrayList<>();
+        YearMonth currentMonth = null;
+        TradeSegment current = null;
+        for(int i = flushed; i < watermark; i++){
+            Execution execution = recent.get(i - baseCount);
+            YearMonth month = monthOf(execution.getTimestamp());
+            if(!month.equals(currentMonth)){
+                currentMonth = month;
+                current = segmentFor(month);
+                if(!touched.contains(current)) touched.add(current);
+            }
+            current.write(execution);
+        }
+        long bytes = 0;
+        for(TradeSegment segment : touched){
+            bytes += segment.commit();
+        }
+        flushed = Math.max(flushed, watermark);
+        return bytes;
+    }
+    
+    /*
+    * libera la memoria delle esecuzioni gia' su disco fuori dalla finestra recente: oltre le ultime maxTrades
+    * o piu' vecchi di maxAgeMillis (0: nessun limite di eta'). la memoria si libera a blocchi interi.
+    * chiamato dal thread di persistenza con il read lock dell'engine (nessun append concorrente),
+    * ritorna il numero di esecuzioni rimosse dalla memoria
+    * */
+    public synchronized int evict(int maxTrades, long maxAgeMillis, long now){
+        int boundary = size() - maxTrades;
+        if(maxAgeMillis > 0) boundary = Math.max(boundary, lowerBound(now - maxAgeMillis));
+        boundary = Math.min(boundary, flushed);
+        if(boundary <= baseCount) return 0;
+        return recent.evictBefore(boundary - baseCount);
+    }
+
+    private TradeSegment segmentFor(YearMonth month) throws IOException {
+        TradeSegment segment = segments.get(month);
+        if(segment == null){
+            segment = TradeSegment.open(directory.resolve(String.format("trades-%04d-%02d.seg", month.getYear(), month.getMonthValue())));
+            segments.put(month, segment);
+        }
+        return segment;
+    }
+
+    static YearMonth monthOf(long timestamp){
+        return YearMonth.from(Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC));
+    }
+
+    @FunctionalInterface
+    public interface ExecutionVisitor {
+        //owner: id di owners(), flags: come Execution.getFlags
+        void visit(long timestamp, int price, int size, int bidOwner, int askOwner, int flags);
+    }
+    
+    /*
+    * visita le esecuzioni nelle posizioni globali [start, end): dalla memoria quelle nella finestra recente,
+    * le altre leggendo le colonne dei segmenti mappati. puo' essere chiamata da piu' thread su intervalli diversi
+    * */
+    public void scan(int start, int end, ExecutionVisitor visitor){
+        int i = start;
+        while(i < end){
+            if(i >= baseCount && recent.visit(i - baseCount, visitor)){
+                i++;
+                continue;
+            }
+            //tratto su disco: fino alla fine del tratto, dell'intervallo o delle esecuzioni rimosse dalla memoria
+            Map.Entry<Integer, Range> range = ranges.floorEntry(i);
+            Integer next = ranges.higherKey(i);
+            int stop = Math.min(end, next == null ? end : next);
+            stop = Math.min(stop, Math.max(baseCount + recent.evicted(), i + 1));
+            int local = range.getValue().localStart() + i - range.getKey();
+            TradeSegment.Reader reader = reader(range.getValue().month(), local + stop - i - 1);
+            for(; i < stop; i++, local++){
+                visitor.visit(reader.timestamp(local), reader.price(local), reader.size(local),
+                        reader.bidOwner(local), reader.askOwner(local), reader.flags(local));
+            }
+        }
+    }
+    
+    //visita, mese per mese, le esecuzioni presenti su disco all'avvio con timestamp >= from leggendo le colonne dai segmenti mappati
+    public void forEachOnDisk(long from, ExecutionVisitor visitor) throws IOException {
+        scan(Math.min(lowerBound(from), baseCount), baseCount, visitor);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(TradeSegment segment : segments.values()){
+            segment.close();
+        }
+    }
+}
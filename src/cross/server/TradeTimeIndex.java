@@ -0,0 +1,65 @@
+package cross.server;
+
+import java.util.Arrays;
+
+/*
+* indice sparso tempo -> posizione sullo storico dei trade (ordinato per timestamp):
+* per ogni giorno UTC la posizione globale del primo trade del giorno.
+* un intervallo [from, to) si risolve cercando il giorno nella tabella e poi con una ricerca binaria
+* sui soli trade di quel giorno. un solo scrittore (write lock dell'engine), lettori senza lock:
+* gli array vengono scritti prima di count (volatile), come in ExecutionLog
+* */
+public class TradeTimeIndex {
+
+    private static final long DAY_MILLIS = 86_400_000L;
+
+    private long[] days = new long[64];
+    private int[] offsets = new int[64];
+    private volatile int count;
+
+    public static long epochDay(long timestamp){
+        return Math.floorDiv(timestamp, DAY_MILLIS);
+    }
+
+    //registra l'inizio di un giorno successivo all'ultimo indicizzato
+    public void add(long epochDay, int offset){
+        int n = count;
+        if(n > 0 && epochDay <= days[n - 1]) return;
+        if(n == days.length){
+            days = Arrays.copyOf(days, n * 2);
+            offsets = Arrays.copyOf(offsets, n * 2);
+        }
+        days[n] = epochDay;
+        offsets[n] = offset;
+        count = n + 1;
+    }
+
+    public int size(){
+        return count;
+    }
+
+    public long lastDay(){
+        int n = count;
+        return n == 0 ? Long.MIN_VALUE : days[n - 1];
+    }
+
+    /*
+    * posizioni [start, end) in cui cadono i trade del giorno: start e' l'inizio dell'ultimo giorno
+    * indicizzato <= epochDay, end l'inizio del giorno indicizzato successivo (o total)
+    * */
+    public int[] bounds(long epochDay, int total){
+        int n = count;
+        long[] d = days;
+        int[] o = offsets;
+        int low = 0;
+        int high = n;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(d[mid] <= epochDay) low = mid + 1;
+            else high = mid;
+        }
+        int start = low == 0 ? 0 : o[low - 1];
+        int end = low < n ? o[low] : total;
+        return new int[]{start, end};
+    }
+}
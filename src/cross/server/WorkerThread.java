@@ -2,6 +2,7 @@ package cross.server;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import cross.utils.Log;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -9,6 +10,8 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class WorkerThread implements Runnable{
     
@@ -18,6 +21,13 @@ public class WorkerThread implements Runnable{
     private BufferedReader in;
     private PrintWriter out;
     
+    //esito della richiesta corrente, per il conteggio degli errori nelle metriche
+    private boolean requestFailed;
+    //ordine della richiesta corrente (risposta o cancelOrder), per le tracce di latenza
+    private int lastOrderId;
+    private static final Set<String> ORDER_OPERATIONS = new HashSet<>(Arrays.asList(
+            "insertLimitOrder", "insertMarketOrder", "insertStopOrder", "cancelOrder"));
+    
     public WorkerThread(Socket clientSocket, CrossServer server) {
         this.clientSocket = clientSocket;
         this.server = server;
@@ -34,10 +44,15 @@ public class WorkerThread implements Runnable{
             while ((line = in.readLine()) != null) {
                 try{
                     JsonObject request = JsonParser.parseString(line).getAsJsonObject();
-                    handleRequest(request);
+                    //inizio della richiesta per tracce e metriche: comprende l'attesa in coda
+                    long decoded = System.nanoTime();
+                    execute(request, decoded);
+                } catch (InterruptedException e){
+                    //server in chiusura
+                    Thread.currentThread().interrupt();
+                    break;
                 } catch (Exception e){
-                    System.err.println("[WorkerThread - run] Error handling request - " + e.getMessage());
-                    e.printStackTrace();
+                    Log.error("[WorkerThread - run] Error handling request - {}", e.getMessage(), e);
                     JsonObject errorResponse = new JsonObject();
                     errorResponse.addProperty("response", 500);
                     errorResponse.addProperty("errorMessage", "[WorkerThread - run] Internal server error");
@@ -45,26 +60,62 @@ public class WorkerThread implements Runnable{
                 }
             }
         } catch (IOException e){
-            e.printStackTrace();
+            Log.warn("[WorkerThread - run] Connection error with {} - {}", clientSocket.getRemoteSocketAddress(), e.getMessage());
         }
             finally {
             //fallback per i client che disconnettono senza fare log out
             String user = server.socketMap.remove(clientSocket);
             if(user != null){
                 server.loggedUsers.remove(user);
-                System.out.println("[WorkerThread] logged out " + user);
+                Log.info("[WorkerThread] logged out {}", user);
             }
             try {
                 clientSocket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.warn("[WorkerThread - run] Error closing socket - {}", e.getMessage());
             }
-            System.out.println("[WorkerThread - run] Connection terminated with " + clientSocket.getRemoteSocketAddress());
+            Log.info("[WorkerThread - run] Connection terminated with {}", clientSocket.getRemoteSocketAddress());
+        }
+    }
+    
+    /*
+    * esecuzione della richiesta sull'executor della sua classe (RequestPools), attendendo la risposta:
+    * una richiesta alla volta per connessione, le risposte restano nell'ordine delle richieste.
+    * la richiesta gira sul thread dell'executor, ma latenza e traccia partono da decoded (thread della connessione)
+    * */
+    private void execute(JsonObject request, long decoded) throws Exception {
+        String operation = request.has("operation") ? request.get("operation").getAsString() : null;
+        RequestPools.Kind kind = RequestPools.classify(operation);
+        if(kind == null){
+            //operazioni leggere o non valide: sul thread della connessione
+            handleRequest(request, decoded);
+            return;
         }
+        FutureTask<Void> task = new FutureTask<>(() -> handleRequest(request, decoded), null);
+        if(!server.getRequestPools().execute(kind, task)){
+            rejectBusy(operation, kind, decoded);
+            return;
+        }
+        try{
+            task.get();
+        } catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+    
+    //coda della classe piena: rifiuto immediato, contato come errore dell'operazione
+    private void rejectBusy(String operation, RequestPools.Kind kind, long decoded){
+        JsonObject response = new JsonObject();
+        if(kind == RequestPools.Kind.ORDER) response.addProperty("orderId", -1);
+        response.addProperty("response", 503);
+        response.addProperty("errorMessage", "[WorkerThread - request] Server busy: " + kind.getLabel() + " queue full, retry later");
+        send(response);
+        server.getMetrics().operation(operation).record(System.nanoTime() - decoded, true);
     }
     
-    //decodifica di Json
-    private void handleRequest(JsonObject request){
+    //decodifica di Json, decoded: istante della decodifica sul thread della connessione
+    private void handleRequest(JsonObject request, long decoded){
         if (!request.has("operation")){
             //campo operation mancante, non sappiamo cosa fare -> errore
             JsonObject response = new JsonObject();
@@ -75,8 +126,34 @@ public class WorkerThread implements Runnable{
         }
         // prendo tipo di operazione dal json, e passo ad apposito handler definito
         String operation = request.get("operation").getAsString();
-        System.out.println("[WorkerThread] operation received " + operation);
-        
+        Log.debug("[WorkerThread] operation received {}", operation);
+        
+        long started = System.nanoTime();
+        requestFailed = false;
+        lastOrderId = -1;
+        boolean traced = ORDER_OPERATIONS.contains(operation);
+        if(traced){
+            try{
+                if(request.has("orderId")) lastOrderId = request.get("orderId").getAsInt();
+            } catch (NumberFormatException | UnsupportedOperationException | IllegalStateException e){
+                //validato dall'handler
+            }
+            server.getTracer().begin(operation, decoded, started);
+        }
+        String metric = operation;
+        try {
+            metric = dispatch(operation, request);
+        } catch (RuntimeException e){
+            requestFailed = true;
+            throw e;
+        } finally {
+            if(traced) server.getTracer().responseWritten(lastOrderId);
+            server.getMetrics().operation(metric).record(System.nanoTime() - decoded, requestFailed);
+        }
+    }
+    
+    //ritorna il nome con cui registrare l'operazione nelle metriche ("unknown" per le operazioni non previste)
+    private String dispatch(String operation, JsonObject request){
         switch (operation){
             // ********** GESTIONE UTENTI **********
             
@@ -120,15 +197,33 @@ public class WorkerThread implements Runnable{
                 handlePriceHistory(request);
                 break;
                 
+            case "getCandles":
+                handleCandles(request);
+                break;
+                
+            case "getTrades":
+                handleTrades(request);
+                break;
+                
+            case "getAnalytics":
+                handleAnalytics(request);
+                break;
+                
+            case "getStats":
+                handleStats(request);
+                break;
+                
             default:
                 //operazione sconosciuta
                 JsonObject response = new JsonObject();
                 response.addProperty("response",103);
                 response.addProperty("errorMessage","[WorkerThread - request] Invalid request: unknown operation "+ operation);
                 send(response);
+                return "unknown";
         }
-        
+        return operation;
     }
+    
     //----------------------------------------------------------------
     // GESTIONE UTENTI
     //----------------------------------------------------------------
@@ -371,7 +466,7 @@ public class WorkerThread implements Runnable{
         
         JsonObject response = new JsonObject();
         if(!request.has("type") || !request.has("size") || !request.has("stopPrice")){
-            System.err.println("[WorkerThread - insertStop] Missing required fields.");
+            Log.warn("[WorkerThread - insertStop] Missing required fields.");
             response.addProperty("orderId",-1);
             send(response);
             return;
@@ -505,23 +600,236 @@ public class WorkerThread implements Runnable{
             return;
         }
         
-        Map<String, CrossServer.OHLC> history = server.getPriceHistory(monthYear);
+        //risposta gia' codificata, condivisa tra richieste dello stesso mese: il codice resta nelle metriche
+        ResponseCache.Response history = server.getPriceHistoryResponse(monthYear);
+        if(history.code != 100) requestFailed = true;
+        send(history.body);
         
-        if(history.isEmpty()){
+    }
+
+    private void handleCandles(JsonObject request){
+            /* getCandles
+            {
+                "operation": "getCandles",
+                "resolution": "1m" | "5m" | "1h" | "1d",
+                "from": <ms UTC>,
+                "to": <ms UTC, escluso>,
+                "limit": <opzionale>
+            }
+            */
+        JsonObject response = new JsonObject();
+        
+        if(!request.has("resolution") || !request.has("from") || !request.has("to")){
+            response.addProperty("response", 103);
+            response.addProperty("errorMessage", "[WorkerThread - candles] Missing parameter: resolution, from and to are required");
+            send(response);
+            return;
+        }
+        
+        CandleResolution resolution = CandleResolution.parse(request.get("resolution").getAsString());
+        if(resolution == null){
+            response.addProperty("response", 104);
+            response.addProperty("errorMessage", "[WorkerThread - candles] Invalid resolution: should be 1m, 5m, 1h or 1d");
+            send(response);
+            return;
+        }
+        
+        long from;
+        long to;
+        int limit;
+        try{
+            from = request.get("from").getAsLong();
+            to = request.get("to").getAsLong();
+            limit = request.has("limit") ? request.get("limit").getAsInt() : CandleAggregator.MAX_QUERY_CANDLES;
+        } catch (NumberFormatException | UnsupportedOperationException e){
+            response.addProperty("response", 105);
+            response.addProperty("errorMessage", "[WorkerThread - candles] from, to and limit must be integers");
+            send(response);
+            return;
+        }
+        
+        if(from >= to || limit <= 0){
+            response.addProperty("response", 106);
+            response.addProperty("errorMessage", "[WorkerThread - candles] Invalid range: from must precede to, limit must be positive");
+            send(response);
+            return;
+        }
+        
+        //verifica utente autenticato
+        String user = server.socketMap.get(clientSocket);
+        if(user == null){
             response.addProperty("response", 107);
-            response.addProperty("errorMessage", "[WorkerThread - history] No data available for the specified month and year");
-        } else {
+            response.addProperty("errorMessage", "[WorkerThread - candles] User not logged in");
+            send(response);
+            return;
+        }
+        
+        try{
+            List<Candle> candles = server.getCandles(resolution, from, to, limit);
             response.addProperty("response", 100);
-            JsonObject historyJson = server.getGson().toJsonTree(history).getAsJsonObject();
-            response.add("priceHistory", historyJson);
+            response.add("candles", server.getGson().toJsonTree(candles));
+        } catch (IOException e){
+            response.addProperty("response", 103);
+            response.addProperty("errorMessage", "[WorkerThread - candles] Error reading candles: " + e.getMessage());
+        }
+        
+        send(response);
+    }
+
+    private void handleTrades(JsonObject request){
+            /* getTrades
+            {
+                "operation": "getTrades",
+                "from": <ms UTC>,
+                "to": <ms UTC, escluso>,
+                "limit": <opzionale, max 1000>,
+                "cursor": <opzionale, nextCursor della pagina precedente>
+            }
+            */
+        JsonObject response = new JsonObject();
+        
+        if(!request.has("from") || !request.has("to")){
+            response.addProperty("response", 103);
+            response.addProperty("errorMessage", "[WorkerThread - trades] Missing parameter: from and to are required");
+            send(response);
+            return;
+        }
+        
+        long from;
+        long to;
+        int limit;
+        long cursor;
+        try{
+            from = request.get("from").getAsLong();
+            to = request.get("to").getAsLong();
+            limit = request.has("limit") ? request.get("limit").getAsInt() : CrossServer.MAX_TRADES_PAGE;
+            cursor = request.has("cursor") ? request.get("cursor").getAsLong() : -1;
+        } catch (NumberFormatException | UnsupportedOperationException e){
+            response.addProperty("response", 105);
+            response.addProperty("errorMessage", "[WorkerThread - trades] from, to, limit and cursor must be integers");
+            send(response);
+            return;
+        }
+        
+        if(from >= to || limit <= 0){
+            response.addProperty("response", 106);
+            response.addProperty("errorMessage", "[WorkerThread - trades] Invalid range: from must precede to, limit must be positive");
+            send(response);
+            return;
         }
         
+        //verifica utente autenticato
+        String user = server.socketMap.get(clientSocket);
+        if(user == null){
+            response.addProperty("response", 107);
+            response.addProperty("errorMessage", "[WorkerThread - trades] User not logged in");
+            send(response);
+            return;
+        }
+        
+        CrossServer.TradePage page = server.getTrades(from, to, limit, cursor);
+        response.addProperty("response", 100);
+        response.add("trades", server.getGson().toJsonTree(page.trades));
+        if(page.nextCursor >= 0) response.addProperty("nextCursor", page.nextCursor);
+        
         send(response);
+    }
+
+    private void handleAnalytics(JsonObject request){
+            /* getAnalytics
+            {
+                "operation": "getAnalytics",
+                "from": <ms UTC>,
+                "to": <ms UTC, escluso>,
+                "priceBucket": <opzionale, ampiezza delle fasce di prezzo, default 100>
+            }
+            */
+        JsonObject response = new JsonObject();
         
+        if(!request.has("from") || !request.has("to")){
+            response.addProperty("response", 103);
+            response.addProperty("errorMessage", "[WorkerThread - analytics] Missing parameter: from and to are required");
+            send(response);
+            return;
+        }
+        
+        long from;
+        long to;
+        int priceBucket;
+        try{
+            from = request.get("from").getAsLong();
+            to = request.get("to").getAsLong();
+            priceBucket = request.has("priceBucket") ? request.get("priceBucket").getAsInt() : 100;
+        } catch (NumberFormatException | UnsupportedOperationException e){
+            response.addProperty("response", 105);
+            response.addProperty("errorMessage", "[WorkerThread - analytics] from, to and priceBucket must be integers");
+            send(response);
+            return;
+        }
+        
+        if(from >= to || priceBucket <= 0){
+            response.addProperty("response", 106);
+            response.addProperty("errorMessage", "[WorkerThread - analytics] Invalid range: from must precede to, priceBucket must be positive");
+            send(response);
+            return;
+        }
+        
+        //verifica utente autenticato
+        String user = server.socketMap.get(clientSocket);
+        if(user == null){
+            response.addProperty("response", 107);
+            response.addProperty("errorMessage", "[WorkerThread - analytics] User not logged in");
+            send(response);
+            return;
+        }
+        
+        TradeAnalytics.Result result = server.getAnalytics(from, to, priceBucket);
+        if(result == null){
+            response.addProperty("response", 106);
+            response.addProperty("errorMessage", "[WorkerThread - analytics] Too many price buckets: increase priceBucket");
+        } else {
+            response.addProperty("response", 100);
+            response.add("analytics", server.getGson().toJsonTree(result));
+        }
+        
+        send(response);
+    }
+
+    //----------------------------------------------------------------
+    // STATISTICHE
+    //----------------------------------------------------------------
+    private void handleStats(JsonObject request){
+        /* getStats
+        {
+            "operation": "getStats"
+        }
+        risposta: response 100, stats: {uptimeMillis, operations, timers, gauges} (latenze in microsecondi)
+        */
+        JsonObject response = new JsonObject();
+        String user = server.socketMap.get(clientSocket);
+        if(user == null){
+            response.addProperty("response", 107);
+            response.addProperty("errorMessage", "[WorkerThread - stats] User not logged in");
+            send(response);
+            return;
+        }
+        response.addProperty("response", 100);
+        response.add("stats", server.getMetrics().toJson());
+        send(response);
     }
 
     private void send(JsonObject object){
-        out.println(object.toString());
+        //errore: codice di risposta diverso da 100 oppure ordine rifiutato (orderId -1)
+        if((object.has("response") && object.get("response").getAsInt() != 100)
+                || (object.has("orderId") && object.get("orderId").getAsInt() == -1)){
+            requestFailed = true;
+        }
+        if(object.has("orderId")) lastOrderId = object.get("orderId").getAsInt();
+        send(object.toString());
+    }
+    
+    private void send(String encoded){
+        out.println(encoded);
         out.flush();
     }
     
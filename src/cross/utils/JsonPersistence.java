@@ -2,10 +2,13 @@ package cross.utils;
 
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 import cross.server.Trade;
 
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 
 public class JsonPersistence {
@@ -16,14 +19,14 @@ public class JsonPersistence {
     public static void loadUsers(String filename, Map<String,String> userMap){
         File file = new File(filename);
         if(!file.exists()){
-            System.out.println("[JsonPersistence - loadUsers] File does not exist");
+            Log.info("[JsonPersistence - loadUsers] File does not exist");
             return;
         }
         try(Reader reader = new FileReader(file)){
             Type type =  new TypeToken<Map<String, Map<String,String>>>() {}.getType();
             Map<String,Map<String,String>> root = gson.fromJson(reader, type);
             if(root == null || !root.containsKey("users")){
-                System.out.println("[JsonPersistence - loadUsers] Key 'users' not found");
+                Log.warn("[JsonPersistence - loadUsers] Key 'users' not found");
                 return;
             }
             
@@ -31,69 +34,99 @@ public class JsonPersistence {
             Map<String,String> loadedUsers = root.get("users");
             if(loadedUsers != null){
                 userMap.putAll(loadedUsers);
-                System.out.println("[JsonPersistence - loadUsers] Successfully loaded "+ loadedUsers.size()+ " users");
+                Log.info("[JsonPersistence - loadUsers] Successfully loaded {} users", loadedUsers.size());
             } else {
-                System.out.println("[JsonPersistence - loadUsers] No users found ");
+                Log.info("[JsonPersistence - loadUsers] No users found ");
             }
         }catch (IOException e){
-            e.printStackTrace();
+            Log.error("[JsonPersistence - loadUsers] Error reading {}", filename, e);
         }
     }
     
-    //salva utenti su file JSON, stesso formato
-    public static void saveUsers(String filename, Map<String,String> userMap){
+    //salva utenti su file JSON, stesso formato. ritorna i byte scritti, -1 in caso di errore
+    public static long saveUsers(String filename, Map<String,String> userMap){
         Map<String, Object> root = new HashMap<>();
         root.put("users", userMap);
         
-        try(Writer writer = new FileWriter(filename)){
-            gson.toJson(root,writer);
+        try{
+            return writeAtomically(filename, writer -> gson.toJson(root,writer));
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("[JsonPersistence - saveUsers] Error writing {}", filename, e);
+            return -1;
         }
     }
     
     //carica lista di trade da file JSON
+    //parsing in streaming, senza albero JSON intermedio (vedi TradeJsonLoader)
     public static List<Trade> loadTrades(String filePath){
-        try(FileReader reader = new FileReader(filePath)){
-            JsonObject jsonObject = JsonParser.parseReader(reader).getAsJsonObject();
-            Type tradeListType =  new TypeToken<List<Trade>>() {}.getType();
-            
-            List<Trade> trades = gson.fromJson(jsonObject.getAsJsonArray("trades"),tradeListType);
-            if(trades == null){
-                trades = new ArrayList<>();
-            }
+        try{
+            List<Trade> trades = new ArrayList<>();
+            TradeJsonLoader.load(filePath, trades::add, null);
             return trades;
         }catch (FileNotFoundException e){
-            System.err.println("[JsonPersistence - loadTrades] Trades file not found: " + filePath+ ". Starting with empty trade list");
+            Log.warn("[JsonPersistence - loadTrades] Trades file not found: {}. Starting with empty trade list", filePath);
             return new ArrayList<>();
         } catch (IOException e) {
-            System.err.println("[JsonPersistence - loadTrades] Error loading trades from: " + filePath+ ":" + e.getMessage());
+            Log.error("[JsonPersistence - loadTrades] Error loading trades from: {}: {}", filePath, e.getMessage());
             return new ArrayList<>();
         }
     }
-    //salvataggio di lista di trade su file JSON
-    public static void saveTrades(String filename, List<Trade> trades){
-        Map<String, Object> root = new HashMap<>();
-        List<Map<String,Object>> tradesList = new ArrayList<>();
-        
-        for(Trade trade : trades){
-            Map<String,Object> tradeMap = new HashMap<>();
-            tradeMap.put("orderId", trade.getOrderId());
-            tradeMap.put("type", trade.getType());
-            tradeMap.put("orderType", trade.getOrderType());
-            tradeMap.put("size", trade.getSize());
-            tradeMap.put("price", trade.getPrice());
-            tradeMap.put("timestamp", trade.getTimestamp());
-            tradesList.add(tradeMap);
-        }
-            root.put("trades", tradesList);
-        
-        try (Writer writer = new FileWriter(filename)){
-            gson.toJson(root,writer);
-            System.out.println("[JsonPersistence - saveTrades] successfully saved in "+ filename);
+    //salvataggio di lista di trade su file JSON, scritti in streaming senza mappe intermedie
+    //ritorna i byte scritti, -1 in caso di errore
+    public static long saveTrades(String filename, List<Trade> trades){
+        try{
+            long bytes = writeAtomically(filename, writer -> {
+                JsonWriter json = new JsonWriter(writer);
+                json.beginObject();
+                json.name("trades");
+                json.beginArray();
+                for(Trade trade : trades){
+                    json.beginObject();
+                    json.name("orderId").value(trade.getOrderId());
+                    json.name("type").value(trade.getType());
+                    json.name("orderType").value(trade.getOrderType());
+                    json.name("size").value(trade.getSize());
+                    json.name("price").value(trade.getPrice());
+                    json.name("timestamp").value(trade.getTimestamp());
+                    json.endObject();
+                }
+                json.endArray();
+                json.endObject();
+                json.flush();
+            });
+            Log.info("[JsonPersistence - saveTrades] successfully saved in {}", filename);
+            return bytes;
         } catch (IOException e) {
-            System.out.println("[JsonPersistence - saveTrades] error saving " + filename);
-            e.printStackTrace();
+            Log.error("[JsonPersistence - saveTrades] error saving {}", filename, e);
+            return -1;
+        }
+    }
+    
+    @FunctionalInterface
+    public interface WriterAction {
+        void write(Writer writer) throws IOException;
+    }
+    
+    /*
+    * scrittura atomica: contenuto su file temporaneo, fsync, poi rename sul file finale.
+    * un crash durante il salvataggio lascia intatto il file precedente
+    * ritorna la dimensione in byte del file scritto
+    * */
+    public static long writeAtomically(String filename, WriterAction action) throws IOException {
+        Path target = Paths.get(filename);
+        Path tmp = Paths.get(filename + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(tmp.toFile());
+            Writer writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8), 1 << 16)){
+            action.write(writer);
+            writer.flush();
+            fos.getFD().sync();
+        }
+        long bytes = Files.size(tmp);
+        try{
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e){
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
         }
+        return bytes;
     }
 }
@@ -0,0 +1,166 @@
+package cross.utils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/*
+* logging del server: livelli, messaggi con segnaposto {} formattati solo dal thread di scrittura,
+* appender asincrono (LogAppender) con file a rotazione ed eco opzionale su console.
+* una chiamata sotto la soglia costa un confronto con un volatile: nessuna formattazione,
+* nessuna concatenazione (gli argomenti vanno passati separati, non concatenati nel messaggio).
+* gli argomenti primitivi vengono pero' convertiti in oggetti prima della chiamata: sui percorsi caldi
+* la chiamata va racchiusa in un controllo isEnabled.
+* finche' non viene chiamato configure i messaggi INFO e superiori vanno solo su console
+* */
+public final class Log {
+
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+
+    static final String[] NAMES = {"DEBUG", "INFO", "WARN", "ERROR"};
+
+    private static volatile int threshold = INFO;
+    private static volatile LogAppender appender;
+
+    private Log() {}
+
+    public static int parseLevel(String level){
+        for(int i = 0; i < NAMES.length; i++){
+            if(NAMES[i].equalsIgnoreCase(level.trim())) return i;
+        }
+        if("OFF".equalsIgnoreCase(level.trim())) return OFF;
+        throw new IllegalArgumentException("[Log] Unknown level: " + level);
+    }
+
+    /*
+    * directory: null per la sola console. i file sono <name>.log, <name>.log.1 ... <name>.log.(files-1),
+    * ruotati quando il corrente supera maxFileBytes
+    * */
+    public static synchronized void configure(int level, Path directory, String name, long maxFileBytes, int files,
+                                              boolean console) throws IOException {
+        LogAppender next = new LogAppender(directory, name, maxFileBytes, files, console);
+        LogAppender previous = appender;
+        appender = next;
+        threshold = level;
+        if(previous != null) previous.close();
+    }
+
+    //scrive i messaggi ancora in coda e chiude i file
+    public static synchronized void shutdown(){
+        LogAppender current = appender;
+        appender = null;
+        if(current != null) current.close();
+    }
+
+    public static boolean isEnabled(int level){
+        return level >= threshold;
+    }
+
+    public static long dropped(){
+        LogAppender current = appender;
+        return current == null ? 0 : current.dropped();
+    }
+
+    private static LogAppender appender(){
+        LogAppender current = appender;
+        if(current != null) return current;
+        synchronized (Log.class){
+            if(appender == null){
+                try{
+                    appender = new LogAppender(null, null, 0, 0, true);
+                } catch (IOException e){
+                    throw new IllegalStateException(e);
+                }
+            }
+            return appender;
+        }
+    }
+
+    private static void log(int level, String message, Object a1, Object a2, Object a3, Object a4, Object[] more, int argc, Throwable error){
+        appender().append(level, message, a1, a2, a3, a4, more, argc, error);
+    }
+
+    public static void debug(String message){
+        if(DEBUG >= threshold) log(DEBUG, message, null, null, null, null, null, 0, null);
+    }
+
+    public static void debug(String message, Object a1){
+        if(DEBUG >= threshold) log(DEBUG, message, a1, null, null, null, null, 1, null);
+    }
+
+    public static void debug(String message, Object a1, Object a2){
+        if(DEBUG >= threshold) log(DEBUG, message, a1, a2, null, null, null, 2, null);
+    }
+
+    public static void debug(String message, Object a1, Object a2, Object a3){
+        if(DEBUG >= threshold) log(DEBUG, message, a1, a2, a3, null, null, 3, null);
+    }
+
+    public static void debug(String message, Object a1, Object a2, Object a3, Object a4){
+        if(DEBUG >= threshold) log(DEBUG, message, a1, a2, a3, a4, null, 4, null);
+    }
+
+    public static void info(String message){
+        if(INFO >= threshold) log(INFO, message, null, null, null, null, null, 0, null);
+    }
+
+    public static void info(String message, Object a1){
+        if(INFO >= threshold) log(INFO, message, a1, null, null, null, null, 1, null);
+    }
+
+    public static void info(String message, Object a1, Object a2){
+        if(INFO >= threshold) log(INFO, message, a1, a2, null, null, null, 2, null);
+    }
+
+    public static void info(String message, Object a1, Object a2, Object a3){
+        if(INFO >= threshold) log(INFO, message, a1, a2, a3, null, null, 3, null);
+    }
+
+    public static void info(String message, Object... args){
+        if(INFO >= threshold) log(INFO, message, null, null, null, null, args, args.length, null);
+    }
+
+    public static void warn(String message){
+        if(WARN >= threshold) log(WARN, message, null, null, null, null, null, 0, null);
+    }
+
+    public static void warn(String message, Object a1){
+        if(WARN >= threshold) log(WARN, message, a1, null, null, null, null, 1, null);
+    }
+
+    public static void warn(String message, Object a1, Object a2){
+        if(WARN >= threshold) log(WARN, message, a1, a2, null, null, null, 2, null);
+    }
+
+    public static void warn(String message, Object a1, Object a2, Object a3){
+        if(WARN >= threshold) log(WARN, message, a1, a2, a3, null, null, 3, null);
+    }
+
+    public static void error(String message){
+        if(ERROR >= threshold) log(ERROR, message, null, null, null, null, null, 0, null);
+    }
+
+    public static void error(String message, Object a1){
+        if(ERROR >= threshold) log(ERROR, message, a1, null, null, null, null, 1, null);
+    }
+
+    public static void error(String message, Object a1, Object a2){
+        if(ERROR >= threshold) log(ERROR, message, a1, a2, null, null, null, 2, null);
+    }
+
+    //messaggio con stack trace
+    public static void error(String message, Throwable error){
+        if(ERROR >= threshold) log(ERROR, message, null, null, null, null, null, 0, error);
+    }
+
+    public static void error(String message, Object a1, Throwable error){
+        if(ERROR >= threshold) log(ERROR, message, a1, null, null, null, null, 1, error);
+    }
+
+    public static void error(String message, Object a1, Object a2, Throwable error){
+        if(ERROR >= threshold) log(ERROR, message, a1, a2, null, null, null, 2, error);
+    }
+}
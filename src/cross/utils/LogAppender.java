@@ -0,0 +1,248 @@
+package cross.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+* appender asincrono di Log: ring buffer a dimensione fissa di eventi preallocati, piu' produttori, un consumatore.
+* - il produttore prenota una sequenza con un CAS, copia riferimenti e timestamp nello slot e lo pubblica:
+*   nessun lock, nessuna formattazione, nessuna I/O sul thread chiamante
+* - se il buffer e' pieno il messaggio viene scartato e contato (il thread dell'engine non aspetta mai il disco)
+* - il thread "log-writer" formatta i messaggi, li scrive sul file corrente (ruotato oltre maxFileBytes)
+*   ed eventualmente su console, e fa flush quando la coda si svuota
+* */
+class LogAppender implements Closeable {
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+
+    private static final class Event {
+        int level;
+        long timestamp;
+        String thread;
+        String message;
+        Object a1, a2, a3, a4;
+        Object[] more;
+        int argc;
+        Throwable error;
+    }
+
+    private final Event[] ring = new Event[CAPACITY];
+    //sequenza+1 pubblicata in ogni slot, 0 = mai scritto
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private long reportedDropped;
+
+    private final Path directory;
+    private final String name;
+    private final long maxFileBytes;
+    private final int files;
+    private final boolean console;
+    private Writer file;
+    private long fileBytes;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final StringBuilder line = new StringBuilder(256);
+
+    LogAppender(Path directory, String name, long maxFileBytes, int files, boolean console) throws IOException {
+        for(int i = 0; i < CAPACITY; i++){
+            ring[i] = new Event();
+        }
+        this.directory = directory;
+        this.name = name;
+        this.maxFileBytes = maxFileBytes;
+        this.files = Math.max(1, files);
+        this.console = console;
+        if(directory != null){
+            Files.createDirectories(directory);
+            openFile();
+        }
+        writer = new Thread(this::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    long dropped(){
+        return dropped.sum();
+    }
+
+    void append(int level, String message, Object a1, Object a2, Object a3, Object a4, Object[] more, int argc, Throwable error){
+        long seq;
+        do{
+            seq = claimed.get();
+            if(seq - consumed >= CAPACITY || !running){
+                dropped.increment();
+                return;
+            }
+        } while(!claimed.compareAndSet(seq, seq + 1));
+        Event event = ring[(int) seq & MASK];
+        event.level = level;
+        event.timestamp = System.currentTimeMillis();
+        event.thread = Thread.currentThread().getName();
+        event.message = message;
+        event.a1 = a1;
+        event.a2 = a2;
+        event.a3 = a3;
+        event.a4 = a4;
+        event.more = more;
+        event.argc = argc;
+        event.error = error;
+        published.set((int) seq & MASK, seq + 1);
+    }
+
+    private void drainLoop(){
+        while(true){
+            boolean wrote = drain();
+            if(!running && consumed == claimed.get()) break;
+            if(!wrote){
+                flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        flush();
+    }
+
+    //scrive gli eventi pubblicati in ordine di sequenza, false se non ce n'erano
+    private boolean drain(){
+        boolean wrote = false;
+        long seq = consumed;
+        while(published.get((int) seq & MASK) == seq + 1){
+            Event event = ring[(int) seq & MASK];
+            write(event);
+            event.message = null;
+            event.a1 = event.a2 = event.a3 = event.a4 = null;
+            event.more = null;
+            event.error = null;
+            event.thread = null;
+            consumed = ++seq;
+            wrote = true;
+        }
+        long lost = dropped.sum();
+        if(lost != reportedDropped){
+            writeLine(Log.WARN, "[Log] " + (lost - reportedDropped) + " messages dropped, queue full", null);
+            reportedDropped = lost;
+        }
+        return wrote;
+    }
+
+    private void write(Event event){
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(event.timestamp)).append(' ')
+                .append(Log.NAMES[event.level]).append(" [").append(event.thread).append("] ");
+        format(event);
+        writeLine(event.level, line.toString(), event.error);
+    }
+
+    //sostituisce i {} con gli argomenti, in ordine
+    private void format(Event event){
+        String message = event.message;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while(arg < event.argc && (at = message.indexOf("{}", from)) >= 0){
+            line.append(message, from, at).append(argument(event, arg++));
+            from = at + 2;
+        }
+        line.append(message, from, message.length());
+    }
+
+    private static Object argument(Event event, int index){
+        if(event.more != null) return event.more[index];
+        switch (index){
+            case 0: return event.a1;
+            case 1: return event.a2;
+            case 2: return event.a3;
+            default: return event.a4;
+        }
+    }
+
+    private void writeLine(int level, String text, Throwable error){
+        String trace = null;
+        if(error != null){
+            StringWriter stack = new StringWriter();
+            error.printStackTrace(new PrintWriter(stack));
+            trace = stack.toString();
+        }
+        if(console){
+            PrintStream out = level >= Log.WARN ? System.err : System.out;
+            out.println(text);
+            if(trace != null) out.print(trace);
+        }
+        if(file == null) return;
+        try{
+            file.write(text);
+            file.write('\n');
+            fileBytes += text.length() + 1;
+            if(trace != null){
+                file.write(trace);
+                fileBytes += trace.length();
+            }
+            if(fileBytes >= maxFileBytes) rotate();
+        } catch (IOException e){
+            System.err.println("[LogAppender] Error writing log file - " + e.getMessage());
+        }
+    }
+
+    private Path filePath(int index){
+        return directory.resolve(index == 0 ? name + ".log" : name + ".log." + index);
+    }
+
+    private void openFile() throws IOException {
+        Path path = filePath(0);
+        fileBytes = Files.exists(path) ? Files.size(path) : 0;
+        file = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path.toFile(), true), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    //server.log -> server.log.1 -> ... il piu' vecchio viene eliminato
+    private void rotate() throws IOException {
+        file.close();
+        Files.deleteIfExists(filePath(files - 1));
+        for(int i = files - 2; i >= 0; i--){
+            if(Files.exists(filePath(i))){
+                Files.move(filePath(i), filePath(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        openFile();
+    }
+
+    private void flush(){
+        if(console) System.out.flush();
+        if(file == null) return;
+        try{
+            file.flush();
+        } catch (IOException e){
+            System.err.println("[LogAppender] Error flushing log file - " + e.getMessage());
+        }
+    }
+
+    //smette di accettare messaggi, attende la scrittura di quelli in coda
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try{
+            writer.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        if(file != null){
+            try{
+                file.close();
+            } catch (IOException e){
+                System.err.println("[LogAppender] Error closing log file - " + e.getMessage());
+            }
+        }
+    }
+}
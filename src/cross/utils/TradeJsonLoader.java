@@ -0,0 +1,275 @@
+package cross.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import cross.server.Trade;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/*
+* caricamento in streaming del formato trades.json ({"trades":[{...},{...}]}) senza albero intermedio:
+* - sequenziale: un solo JsonReader, un trade alla volta
+* - parallelo: il file viene letto a blocchi tagliati sull'ultimo oggetto completo, ogni blocco
+*   e' parsato su un thread del pool in un batch compatto (array primitivi), i batch vengono
+*   consegnati al sink nell'ordine del file. al massimo threads+1 blocchi sono in memoria
+* in entrambi i casi la heap usata non dipende dalla dimensione del file
+* */
+public class TradeJsonLoader {
+
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final long PROGRESS_EVERY = 1_000_000;
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        void onProgress(long tradesLoaded, long bytesRead, long totalBytes);
+    }
+
+    //progress sul log del server, usato all'avvio
+    public static final ProgressListener CONSOLE_PROGRESS = (trades, bytes, total) ->
+            Log.info("[TradeJsonLoader] Loaded {} trades ({}%)", trades, total > 0 ? bytes * 100 / total : 100);
+
+    //caricamento sequenziale, ritorna il numero di trade passati al sink
+    public static long load(String filePath, Consumer<Trade> sink, ProgressListener progress) throws IOException {
+        File file = new File(filePath);
+        long total = file.length();
+        try(CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            JsonReader reader = new JsonReader(new InputStreamReader(counting, StandardCharsets.UTF_8))){
+            long count = 0;
+            reader.beginObject();
+            while(reader.hasNext()){
+                if(!reader.nextName().equals("trades")){
+                    reader.skipValue();
+                    continue;
+                }
+                if(reader.peek() == JsonToken.NULL){
+                    reader.nextNull();
+                    continue;
+                }
+                reader.beginArray();
+                while(reader.hasNext()){
+                    sink.accept(readTrade(reader));
+                    if(++count % PROGRESS_EVERY == 0 && progress != null){
+                        progress.onProgress(count, counting.count, total);
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            if(progress != null) progress.onProgress(count, total, total);
+            return count;
+        }
+    }
+
+    //caricamento a blocchi parsati in parallelo su threads thread, l'ordine dei trade e' preservato
+    public static long loadParallel(String filePath, int threads, Consumer<Trade> sink, ProgressListener progress) throws IOException {
+        if(threads <= 1){
+            return load(filePath, sink, progress);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "trade-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        try(FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)){
+            long total = channel.size();
+            long bytesRead = 0;
+            long count = 0;
+            long nextProgress = PROGRESS_EVERY;
+            ArrayDeque<Future<TradeBatch>> inFlight = new ArrayDeque<>();
+            byte[] carry = new byte[0];
+            boolean first = true;
+            boolean done = false;
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+
+            while(!done || !inFlight.isEmpty()){
+                //lettura del blocco successivo finche' c'e' spazio nella coda
+                while(!done && inFlight.size() <= threads){
+                    buffer.clear();
+                    int n = channel.read(buffer);
+                    if(n <= 0){
+                        done = true;
+                        break;
+                    }
+                    bytesRead += n;
+                    byte[] block = Arrays.copyOf(carry, carry.length + n);
+                    System.arraycopy(buffer.array(), 0, block, carry.length, n);
+
+                    int start = 0;
+                    if(first){
+                        //salto dell'intestazione {"trades":[
+                        start = indexOf(block, (byte) '[', 0, block.length);
+                        if(start < 0){
+                            carry = block;
+                            continue;
+                        }
+                        start++;
+                        first = false;
+                    }
+                    //fine dell'array: tutto cio' che segue viene ignorato
+                    int arrayEnd = indexOf(block, (byte) ']', start, block.length);
+                    int end = arrayEnd >= 0 ? arrayEnd : lastIndexOf(block, (byte) '}', start, block.length) + 1;
+                    if(end <= start){
+                        carry = block;
+                        continue;
+                    }
+                    final byte[] chunk = block;
+                    final int from = start;
+                    final int to = end;
+                    inFlight.add(pool.submit(() -> parseChunk(chunk, from, to)));
+                    carry = arrayEnd >= 0 ? new byte[0] : Arrays.copyOfRange(block, end, block.length);
+                    if(arrayEnd >= 0) done = true;
+                }
+                if(inFlight.isEmpty()) break;
+
+                //consegna in ordine del batch piu' vecchio
+                TradeBatch batch = inFlight.poll().get();
+                for(int i = 0; i < batch.size; i++){
+                    sink.accept(batch.trade(i));
+                }
+                count += batch.size;
+                if(count >= nextProgress && progress != null){
+                    progress.onProgress(count, bytesRead, total);
+                    nextProgress = count + PROGRESS_EVERY;
+                }
+            }
+            if(progress != null) progress.onProgress(count, total, total);
+            return count;
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("[TradeJsonLoader] Interrupted while loading " + filePath);
+        } catch (ExecutionException e){
+            throw new IOException("[TradeJsonLoader] Error parsing " + filePath + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    //blocco di oggetti separati da virgole: parsato come array [ ... ]
+    private static TradeBatch parseChunk(byte[] data, int from, int to) throws IOException {
+        int first = indexOf(data, (byte) '{', from, to);
+        TradeBatch batch = new TradeBatch(Math.max(16, (to - from) / 64));
+        if(first < 0) return batch;
+        InputStream in = new SequenceInputStream(
+                new ByteArrayInputStream(new byte[]{'['}),
+                new SequenceInputStream(new ByteArrayInputStream(data, first, to - first), new ByteArrayInputStream(new byte[]{']'})));
+        try(JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8))){
+            reader.beginArray();
+            while(reader.hasNext()){
+                batch.add(readTrade(reader));
+            }
+            reader.endArray();
+        }
+        return batch;
+    }
+
+    private static Trade readTrade(JsonReader reader) throws IOException {
+        int orderId = 0;
+        String type = "bid";
+        String orderType = "limit";
+        int size = 0;
+        int price = 0;
+        long timestamp = 0;
+        reader.beginObject();
+        while(reader.hasNext()){
+            switch (reader.nextName()){
+                case "orderId": orderId = reader.nextInt(); break;
+                case "type": type = reader.nextString(); break;
+                case "orderType": orderType = reader.nextString(); break;
+                case "size": size = reader.nextInt(); break;
+                case "price": price = reader.nextInt(); break;
+                case "timestamp": timestamp = reader.nextLong(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Trade(orderId, type, orderType, size, price, timestamp);
+    }
+
+    private static int indexOf(byte[] data, byte b, int from, int to){
+        for(int i = from; i < to; i++){
+            if(data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, byte b, int from, int to){
+        for(int i = to - 1; i >= from; i--){
+            if(data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    //trade di un blocco in array primitivi, stringhe di lato/tipo condivise
+    private static class TradeBatch {
+        int size;
+        int[] orderIds;
+        int[] sizes;
+        int[] prices;
+        long[] timestamps;
+        String[] types;
+        String[] orderTypes;
+
+        TradeBatch(int capacity) {
+            orderIds = new int[capacity];
+            sizes = new int[capacity];
+            prices = new int[capacity];
+            timestamps = new long[capacity];
+            types = new String[capacity];
+            orderTypes = new String[capacity];
+        }
+
+        void add(Trade trade){
+            if(size == orderIds.length){
+                int capacity = size * 2;
+                orderIds = Arrays.copyOf(orderIds, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                prices = Arrays.copyOf(prices, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                types = Arrays.copyOf(types, capacity);
+                orderTypes = Arrays.copyOf(orderTypes, capacity);
+            }
+            orderIds[size] = trade.getOrderId();
+            sizes[size] = trade.getSize();
+            prices[size] = trade.getPrice();
+            timestamps[size] = trade.getTimestamp();
+            types[size] = trade.getType().intern();
+            orderTypes[size] = trade.getOrderType().intern();
+            size++;
+        }
+
+        Trade trade(int i){
+            return new Trade(orderIds[i], types[i], orderTypes[i], sizes[i], prices[i], timestamps[i]);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0) count += n;
+            return n;
+        }
+    }
+}
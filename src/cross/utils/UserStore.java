@@ -0,0 +1,181 @@
+package cross.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * archivio utenti con persistenza incrementale:
+ * - users.json resta il formato compatto (snapshot completo)
+ * - ogni account modificato viene accodato a un log append-only (una riga JSON per record)
+ * - la scrittura del log avviene su un thread dedicato, mai sul thread della richiesta
+ * la compattazione riscrive users.json e svuota il log
+ * */
+public class UserStore {
+
+    private final String usersFile;
+    private final String logFile;
+    private final Gson gson = new Gson();
+
+    //username -> password
+    private final Map<String,String> users = new ConcurrentHashMap<>();
+    //account modificati ma non ancora scritti nel log
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    //true se users.json non riflette piu' lo stato corrente
+    private final AtomicBoolean modified = new AtomicBoolean(false);
+
+    //singolo thread: append e compattazione sono serializzati tra loro
+    private final ExecutorService writer;
+    private Writer logWriter;
+
+    public UserStore(String usersFile, String logFile) {
+        this.usersFile = usersFile;
+        this.logFile = logFile;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "user-store-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    //caricamento: snapshot users.json + replay del log
+    public void load(){
+        JsonPersistence.loadUsers(usersFile, users);
+
+        File file = new File(logFile);
+        int replayed = 0;
+        if(file.exists()){
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))){
+                String line;
+                while((line = reader.readLine()) != null){
+                    if(line.isBlank()) continue;
+                    try{
+                        JsonObject record = JsonParser.parseString(line).getAsJsonObject();
+                        users.put(record.get("username").getAsString(), record.get("password").getAsString());
+                        replayed++;
+                    } catch (Exception e){
+                        //riga troncata (crash durante l'append): si ignora
+                        Log.warn("[UserStore - load] Skipping malformed log record");
+                    }
+                }
+            } catch (IOException e){
+                Log.error("[UserStore - load] Error reading {}: {}", logFile, e.getMessage());
+            }
+        }
+        if(replayed > 0){
+            Log.info("[UserStore - load] Replayed {} user records from log", replayed);
+            modified.set(true);
+            compact();
+        }
+    }
+
+    public int size(){
+        return users.size();
+    }
+
+    public boolean checkPassword(String username, String password){
+        String stored = users.get(username);
+        return stored != null && stored.equals(password);
+    }
+
+    //ritorna true se l'utente e' stato aggiunto
+    public boolean register(String username, String password){
+        if(users.putIfAbsent(username, password) != null){
+            return false;
+        }
+        markDirty(username);
+        return true;
+    }
+
+    //ritorna true se la password e' stata aggiornata
+    public boolean updatePassword(String username, String oldPassword, String newPassword){
+        if(!users.replace(username, oldPassword, newPassword)){
+            return false;
+        }
+        markDirty(username);
+        return true;
+    }
+
+    private void markDirty(String username){
+        modified.set(true);
+        dirty.add(username);
+        //un solo flush in coda alla volta, gli altri account vengono raccolti dallo stesso flush
+        if(flushScheduled.compareAndSet(false, true)){
+            writer.execute(this::flush);
+        }
+    }
+
+    //scrive nel log solo gli account modificati (eseguito sul thread writer)
+    private void flush(){
+        flushScheduled.set(false);
+        if(dirty.isEmpty()) return;
+        try{
+            if(logWriter == null){
+                logWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8));
+            }
+            for(String username : dirty){
+                dirty.remove(username);
+                String password = users.get(username);
+                if(password == null) continue;
+                JsonObject record = new JsonObject();
+                record.addProperty("username", username);
+                record.addProperty("password", password);
+                logWriter.write(gson.toJson(record));
+                logWriter.write('\n');
+            }
+            logWriter.flush();
+        } catch (IOException e){
+            Log.error("[UserStore - flush] Error appending to {}: {}", logFile, e.getMessage());
+        }
+    }
+
+    //riscrive users.json con lo stato corrente e svuota il log, in coda agli append gia' schedulati
+    //il future restituisce i byte scritti (0 se non c'era nulla da compattare, -1 in caso di errore)
+    public Future<Long> compact(){
+        return writer.submit(() -> {
+            flush();
+            if(!modified.getAndSet(false)){
+                return 0L;
+            }
+            //copia immutabile: la serializzazione non vede modifiche concorrenti
+            Map<String,String> snapshot = Map.copyOf(users);
+            long bytes = JsonPersistence.saveUsers(usersFile, snapshot);
+            if(bytes < 0){
+                //salvataggio fallito: il log resta l'unica copia delle modifiche
+                modified.set(true);
+                return bytes;
+            }
+            try{
+                if(logWriter != null){
+                    logWriter.close();
+                    logWriter = null;
+                }
+                //troncamento: i record successivi allo snapshot finiscono nel nuovo log
+                new FileOutputStream(logFile, false).close();
+            } catch (IOException e){
+                Log.error("[UserStore - compact] Error truncating {}: {}", logFile, e.getMessage());
+            }
+            return bytes;
+        });
+    }
+
+    //compattazione finale e terminazione del thread writer
+    public void close(){
+        try{
+            compact().get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e){
+            Log.error("[UserStore - close] Final compaction failed: {}", e.getMessage());
+        }
+        writer.shutdown();
+    }
+}